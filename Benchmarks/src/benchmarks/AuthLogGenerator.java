@@ -0,0 +1,95 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Class that generates synthetic authentication logs (like /var/log/auth.log)
+ * with the SSH lines that OccurrencesSearch detects, mixed with normal lines.
+ * The dates are spread over the last hour, so all of them are in the window
+ * of a search of more than one hour
+ * @author Aaron Rodriguez Bueno
+ */
+public class AuthLogGenerator {
+    private static final String [] USERS = {"admin", "test", "oracle", "ubuntu", "pi", "git", "postgres", "user"};
+    private static final long SPAN = 3600*1000L;    //The milliseconds covered by the log
+    
+    /**
+     * Generates a log
+     * @param filename The file to create (it is overwritten)
+     * @param lines The number of lines
+     * @param ips The number of distinct attacker IPs
+     * @param seed The seed of the random generator (same seed, same log)
+     * @throws IOException 
+     */
+    public static void generate(String filename, int lines, int ips, long seed) throws IOException{
+        Random random = new Random(seed);
+        SimpleDateFormat format = new SimpleDateFormat("MMM dd HH:mm:ss", Locale.ENGLISH);
+        long end = System.currentTimeMillis() - 1000;
+        long start = end - SPAN;
+        
+        try(PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(filename, false)))){
+            for(int i = 0; i < lines; i++){
+                String date = format.format(new Date(start + SPAN*i/lines));
+                String ip = ip(random.nextInt(Math.max(1, ips)));
+                int pid = 1000 + random.nextInt(30000);
+                
+                switch(random.nextInt(5)){
+                    case 0:
+                        out.println(date+" server sshd["+pid+"]: refused connect from host"+pid+" ("+ip+")");
+                        break;
+                    case 1:
+                        out.println(date+" server sshd["+pid+"]: Invalid user "+USERS[random.nextInt(USERS.length)]+" from "+ip);
+                        break;
+                    case 2:
+                        //Valid user but invalid password (it needs the line before)
+                        out.println(date+" server sshd["+pid+"]: last message repeated 2 times");
+                        out.println(date+" server sshd["+pid+"]: Failed password for root from "+ip+" port 22 ssh2");
+                        i++;
+                        break;
+                    case 3:
+                        out.println(date+" server sshd["+pid+"]: Accepted publickey for git from "+ip+" port 22 ssh2");
+                        break;
+                    default:
+                        out.println(date+" server CRON["+pid+"]: pam_unix(cron:session): session closed for user root");
+                        break;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Returns the IP number n (different n, different IP)
+     * @param n The number of the IP
+     * @return The IP
+     */
+    public static String ip(int n){
+        return "10."+((n >> 16) & 255)+"."+((n >> 8) & 255)+"."+(n & 255);
+    }
+    
+    /**
+     * Generates a log from the command line
+     * @param args The file name, the number of lines and the number of IPs
+     * @throws IOException 
+     */
+    public static void main(String[] args) throws IOException{
+        if(args.length < 3){
+            System.err.println("Usage: AuthLogGenerator file lines ips [seed]");
+            System.exit(1);
+        }
+        
+        long seed = (args.length > 3) ? Long.parseLong(args[3]) : 42;
+        generate(args[0], Integer.parseInt(args[1]), Integer.parseInt(args[2]), seed);
+    }
+}
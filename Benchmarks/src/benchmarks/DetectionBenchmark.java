@@ -0,0 +1,117 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package benchmarks;
+
+import Occurrences.OccurrencesList;
+import OccurrencesSearch.OccurrencesSearch;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import myagent.MyAgent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the detection of the SSH attackers: the search in the 
+ * authentication log, the counting of the occurrences and the IP checking
+ * @author Aaron Rodriguez Bueno
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+//OccurrencesSearch translates some months to Spanish before parsing the dates
+@Fork(value = 1, jvmArgsAppend = {"-Duser.language=es", "-Duser.country=ES", "-Djava.locale.providers=COMPAT"})
+public class DetectionBenchmark {
+    
+    @Param({"1000", "100000", "1000000"})
+    public int lines;
+    
+    @Param({"10", "1000", "100000"})
+    public int ips;
+    
+    private File log;
+    private OccurrencesSearch search;
+    private String [] attackers;
+    private String [] dates;
+    
+    /**
+     * Generates the log and the IPs of the benchmarks
+     * @throws IOException 
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException{
+        log = File.createTempFile("auth", ".log");
+        AuthLogGenerator.generate(log.getPath(), lines, ips, 42);
+        search = new OccurrencesSearch(log.getPath());
+        
+        attackers = new String[lines];
+        dates = new String[lines];
+        for(int i = 0; i < lines; i++){
+            attackers[i] = AuthLogGenerator.ip(i % ips);
+            dates[i] = "2017 Oct 19 10:00:00";
+        }
+    }
+    
+    /**
+     * Deletes the log
+     */
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        log.delete();
+    }
+    
+    /**
+     * Searchs the attackers in the whole log
+     * @return The attackers
+     * @throws IOException 
+     */
+    @Benchmark
+    public OccurrencesList searchOccurrences() throws IOException{
+        return search.searchOccurrences(5, 86400);
+    }
+    
+    /**
+     * Counts the occurrences of a log with the IPs given
+     * @return The occurrences
+     */
+    @Benchmark
+    public OccurrencesList addOccurrence(){
+        OccurrencesList list = new OccurrencesList();
+        
+        for(int i = 0; i < attackers.length; i++)
+            list.addOccurrence(attackers[i], dates[i]);
+        
+        return list;
+    }
+    
+    /**
+     * Checks all the IPs of the log
+     * @return The valid IPs
+     */
+    @Benchmark
+    public int checkIp(){
+        int valid = 0;
+        
+        for(String ip : attackers)
+            if(MyAgent.isIp(ip))
+                valid++;
+        
+        return valid;
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package benchmarks;
+
+import ConfigFile.ConfigFile;
+import DiskLogger.DiskLogger;
+import Firewall.BanTable;
+import Firewall.CidrAggregator;
+import Reputation.ReputationTable;
+import com.eclipsesource.json.JsonObject;
+import deviceAgents.SSH;
+import es.upv.dsic.gti_ia.core.AgentID;
+import es.upv.dsic.gti_ia.core.AgentsConnection;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import myagent.LoopbackTransport;
+import myagent.Tracer;
+import serverAgents.SERV;
+
+/**
+ * Load tool that measures how long the fleet is exposed to an attack. It writes
+ * attacks in a fake authentication log at a given rate, and runs the real SSH
+ * agent (with a firewall that doesn't run iptables), the real SERV agent and N
+ * simulated agents, all of them in this JVM with the loopback transport. Then
+ * it saves the latencies from the first malicious line of every IP to its 
+ * detection and ban, its ThreatLog entry, and its ban in the other agents.
+ * 
+ * The agents are still Magentix agents, so a broker is needed to create them
+ * (but no message goes through it). OccurrencesSearch needs the Spanish locale:
+ * java -Duser.language=es -Duser.country=ES -Djava.locale.providers=COMPAT ...
+ * @author Aaron Rodriguez Bueno
+ */
+public class LatencyLoad {
+    
+    /**
+     * Runs the load
+     * @param args The configuration file (like the DevicesCID one, plus the load keys)
+     * @throws Exception 
+     */
+    public static void main(String[] args) throws Exception{
+        String configfile = (args.length > 0) ? args[0] : "load.json";
+        String 
+            host =          "",
+            virtualhost =   "",
+            username =      "",
+            password =      "",
+            distribution =  "uniform",
+            results =       "latency.json",
+            tracefile =     "";
+        int port =          5672,
+            peers =         10,
+            rate =          5,
+            ips =           10000,
+            attempts =      5,
+            seconds =       5,
+            duration =      60;
+        double zipf =       1.0,
+            broadcastscore = 0.0;
+        boolean ssl =       false;
+        
+        //Loading configuration file
+        ConfigFile Config = new ConfigFile(configfile);
+        if (!Config.Init())  {
+            System.err.println("*** Error loading configuration ["+configfile+"]");
+            System.exit(1);
+        }
+        if (Config.config.get("host")!=null)
+            host = Config.config.get("host").asString();
+        if (Config.config.get("virtualhost")!=null)
+            virtualhost = Config.config.get("virtualhost").asString();
+        if (Config.config.get("username")!=null)
+            username = Config.config.get("username").asString();
+        if (Config.config.get("password")!=null)
+            password = Config.config.get("password").asString();
+        if (Config.config.get("port")!=null)
+            port = Config.config.get("port").asInt();
+        if (Config.config.get("ssl")!=null)
+            ssl = Config.config.get("ssl").asBoolean();
+        if (Config.config.get("peers")!=null)
+            peers = Config.config.get("peers").asInt();
+        if (Config.config.get("rate")!=null)
+            rate = Config.config.get("rate").asInt();
+        if (Config.config.get("ips")!=null)
+            ips = Config.config.get("ips").asInt();
+        if (Config.config.get("distribution")!=null)
+            distribution = Config.config.get("distribution").asString();
+        if (Config.config.get("zipf")!=null)
+            zipf = Config.config.get("zipf").asDouble();
+        if (Config.config.get("attempts")!=null)
+            attempts = Config.config.get("attempts").asInt();
+        if (Config.config.get("seconds")!=null)
+            seconds = Config.config.get("seconds").asInt();
+        if (Config.config.get("duration")!=null)
+            duration = Config.config.get("duration").asInt();
+        if (Config.config.get("broadcastscore")!=null)
+            broadcastscore = Config.config.get("broadcastscore").asDouble();
+        if (Config.config.get("results")!=null)
+            results = Config.config.get("results").asString();
+        if (Config.config.get("tracefile")!=null)
+            tracefile = Config.config.get("tracefile").asString();
+        
+        //The SSH agent files are in tmp (the old ones are deleted, to start from scratch)
+        File tmp = new File("tmp");
+        tmp.mkdirs();
+        for(File file : tmp.listFiles())
+            file.delete();
+        String authlog = "tmp/load_auth.log";
+        String sshlog = "tmp/load_ssh_attacks.log";
+        new File(authlog).createNewFile();
+        new File(sshlog).createNewFile();
+        
+        AgentsConnection.connect(host, port, virtualhost, username, password, ssl);
+        
+        LatencyRecorder recorder = new LatencyRecorder();
+        LoopbackTransport transport = new LoopbackTransport();
+        DiskLogger dlogger = new DiskLogger("tmp/load_log.json");
+        dlogger.Init();
+        
+        //Server
+        AgentID serverID = new AgentID("LoadServer");
+        SERV server = new SERV(serverID, dlogger, "tmp/load_server.json", sshlog,
+                                new ReputationTable(3600*1000L, broadcastscore, 600*1000L, 86400*1000L, 1000000));
+        server.setTransport(transport);
+        server.setSnapshot("tmp/load_server_snapshot.bin", 60);
+        if(!tracefile.equals(""))
+            server.setTracer(new Tracer("LoadServer", tracefile));
+        server.start();
+        
+        //Simulated agents
+        for(int i = 0; i < peers; i++){
+            LoadPeer peer = new LoadPeer(new AgentID("LoadPeer"+i), serverID, 
+                                            "10.255."+((i >> 8) & 255)+"."+(i & 255), recorder);
+            peer.setTransport(transport);
+            if(!peer.subscribe(30000))
+                System.err.println("*** The agent LoadPeer"+i+" couldn't subscribe");
+        }
+        
+        //Real SSH agent (without aggregation, so every ban is an IP)
+        SSH ssh = new SSH(new AgentID("LoadSSH"), serverID, dlogger, authlog, seconds, attempts, 
+                            rate*seconds*attempts*4 + 1000, new RecordingFirewall(recorder),
+                            new BanTable(600*1000L, 86400*1000L, 1.0, System.currentTimeMillis()),
+                            new CidrAggregator(24, Integer.MAX_VALUE, 0));
+        ssh.setTransport(transport);
+        if(!tracefile.equals(""))
+            ssh.setTracer(new Tracer("LoadSSH", tracefile));
+        ssh.start();
+        
+        //Attacks and ThreatLog watcher
+        ScheduledExecutorService load = Executors.newScheduledThreadPool(2);
+        AttackWriter writer = new AttackWriter(authlog, recorder, ips, distribution, zipf, attempts);
+        ThreatLogWatcher watcher = new ThreatLogWatcher(sshlog, recorder);
+        load.scheduleAtFixedRate(writer, 0, 1000000/Math.max(1, rate), TimeUnit.MICROSECONDS);
+        load.scheduleWithFixedDelay(watcher, 0, 5, TimeUnit.MILLISECONDS);
+        
+        Thread.sleep(duration*1000L);
+        load.shutdown();
+        load.awaitTermination(10, TimeUnit.SECONDS);
+        
+        //The last attacks need at least two runs to be detected and sent
+        for(long end = System.currentTimeMillis() + (2*seconds + 5)*1000L; System.currentTimeMillis() < end; ){
+            Thread.sleep(5);
+            watcher.run();
+        }
+        
+        JsonObject summary = recorder.summary(peers);
+        summary.add("rate", rate);
+        summary.add("distribution", distribution);
+        summary.add("messages", transport.getDelivered());
+        summary.add("lost messages", transport.getLost());
+        
+        try(PrintWriter out = new PrintWriter(new FileWriter(results))){
+            out.println(summary.toString());
+        }
+        System.out.println(summary.toString());
+        System.exit(0);
+    }
+    
+    /**
+     * Task that writes an attack (some invalid users from the same IP) in the log
+     */
+    private static class AttackWriter implements Runnable {
+        private final String authlog;
+        private final LatencyRecorder recorder;
+        private final int attempts;
+        private final Random random;
+        private final SimpleDateFormat format;
+        private final double [] cumulative;    //Zipf distribution (null if uniform)
+        private final int ips;
+        
+        private AttackWriter(String authlog, LatencyRecorder recorder, int ips, String distribution, 
+                                double exponent, int attempts){
+            this.authlog = authlog;
+            this.recorder = recorder;
+            this.ips = ips;
+            this.attempts = attempts;
+            this.random = new Random(42);
+            this.format = new SimpleDateFormat("MMM dd HH:mm:ss", Locale.ENGLISH);
+            
+            if(distribution.equals("zipf")){
+                cumulative = new double[ips];
+                double sum = 0;
+                for(int i = 0; i < ips; i++){
+                    sum += 1.0/Math.pow(i+1, exponent);
+                    cumulative[i] = sum;
+                }
+                for(int i = 0; i < ips; i++)
+                    cumulative[i] /= sum;
+            }
+            else{
+                cumulative = null;
+            }
+        }
+        
+        @Override
+        public void run(){
+            String ip = AuthLogGenerator.ip(next());
+            long now = System.currentTimeMillis();
+            String date = format.format(new Date(now));
+            
+            try(PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(authlog, true)))){
+                for(int i = 0; i < attempts; i++)
+                    out.println(date+" load sshd["+(1000+i)+"]: Invalid user admin from "+ip);
+            }
+            catch(IOException ex){
+                System.err.println("*** Error writing the log "+authlog);
+                return;
+            }
+            
+            recorder.attack(ip, now);
+        }
+        
+        /**
+         * Chooses the next attacker
+         * @return The number of the attacker IP
+         */
+        private int next(){
+            if(cumulative == null)
+                return random.nextInt(ips);
+            
+            int index = Arrays.binarySearch(cumulative, random.nextDouble());
+            
+            return Math.min(ips-1, (index >= 0) ? index : -index-1);
+        }
+    }
+    
+    /**
+     * Task that reads the new lines of the server ThreatLog
+     */
+    private static class ThreatLogWatcher implements Runnable {
+        private final String sshlog;
+        private final LatencyRecorder recorder;
+        private long position;
+        
+        private ThreatLogWatcher(String sshlog, LatencyRecorder recorder){
+            this.sshlog = sshlog;
+            this.recorder = recorder;
+            this.position = 0;
+        }
+        
+        @Override
+        public synchronized void run(){
+            try(RandomAccessFile file = new RandomAccessFile(sshlog, "r")){
+                long now = System.currentTimeMillis();
+                String line;
+                
+                file.seek(position);
+                while((line = file.readLine()) != null){
+                    //"Date: ..., IP: ..., IP attacker: ip, threat:..."
+                    int start = line.indexOf("IP attacker: ");
+                    if(start != -1){
+                        int end = line.indexOf(',', start);
+                        recorder.threatLog(line.substring(start + 13, (end == -1) ? line.length() : end), now);
+                    }
+                    position = file.getFilePointer();
+                }
+            }
+            catch(IOException ex){
+                //The file will be read in the next call
+            }
+        }
+    }
+}
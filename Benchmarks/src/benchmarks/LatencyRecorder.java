@@ -0,0 +1,152 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package benchmarks;
+
+import com.eclipsesource.json.JsonObject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Class that saves when every attacker IP passes every stage of the fleet, 
+ * from its first malicious line in the log to its ban in the other agents,
+ * and calculates the latency distribution of every stage
+ * @author Aaron Rodriguez Bueno
+ */
+public class LatencyRecorder {
+    private final ConcurrentHashMap<String, Long> firstLine;
+    private final ConcurrentHashMap<String, Long> localBan;
+    private final ConcurrentHashMap<String, Long> threatLog;
+    private final ConcurrentHashMap<String, ConcurrentLinkedQueue<Long>> peerBans;
+    
+    /**
+     * Constructor
+     */
+    public LatencyRecorder(){
+        firstLine = new ConcurrentHashMap<String, Long>();
+        localBan = new ConcurrentHashMap<String, Long>();
+        threatLog = new ConcurrentHashMap<String, Long>();
+        peerBans = new ConcurrentHashMap<String, ConcurrentLinkedQueue<Long>>();
+    }
+    
+    /**
+     * Saves the first malicious line of an IP
+     * @param ip The attacker IP
+     * @param time The time in milliseconds
+     * @return true if it is the first one, false if the IP attacked before
+     */
+    public boolean attack(String ip, long time){
+        return firstLine.putIfAbsent(ip, time) == null;
+    }
+    
+    /**
+     * Saves the ban of an IP in the agent that detected it
+     * @param ip The attacker IP
+     * @param time The time in milliseconds
+     */
+    public void localBan(String ip, long time){
+        localBan.putIfAbsent(ip, time);
+    }
+    
+    /**
+     * Saves the IP in the server ThreatLog
+     * @param ip The attacker IP
+     * @param time The time in milliseconds
+     */
+    public void threatLog(String ip, long time){
+        threatLog.putIfAbsent(ip, time);
+    }
+    
+    /**
+     * Saves the ban of an IP in one of the other agents
+     * @param ip The attacker IP
+     * @param time The time in milliseconds
+     */
+    public void peerBan(String ip, long time){
+        peerBans.computeIfAbsent(ip, k -> new ConcurrentLinkedQueue<Long>()).add(time);
+    }
+    
+    /**
+     * Calculates the latencies of every stage since the first malicious line
+     * @param peers The number of other agents (to know when the whole fleet banned an IP)
+     * @return The distribution of every stage (count, missing, and percentiles in milliseconds)
+     */
+    public JsonObject summary(int peers){
+        ArrayList<Long> detection = new ArrayList<Long>();
+        ArrayList<Long> saved = new ArrayList<Long>();
+        ArrayList<Long> peerBan = new ArrayList<Long>();
+        ArrayList<Long> fleetBan = new ArrayList<Long>();
+        
+        for(Map.Entry<String, Long> attack : firstLine.entrySet()){
+            String ip = attack.getKey();
+            long start = attack.getValue();
+            
+            if(localBan.containsKey(ip))
+                detection.add(localBan.get(ip) - start);
+            if(threatLog.containsKey(ip))
+                saved.add(threatLog.get(ip) - start);
+            
+            ConcurrentLinkedQueue<Long> bans = peerBans.get(ip);
+            if(bans != null){
+                long last = start;
+                
+                for(long ban : bans){
+                    peerBan.add(ban - start);
+                    last = Math.max(last, ban);
+                }
+                if(bans.size() >= peers)
+                    fleetBan.add(last - start);
+            }
+        }
+        
+        JsonObject summary = new JsonObject();
+        summary.add("attackers", firstLine.size());
+        summary.add("peers", peers);
+        summary.add("detection", distribution(detection, firstLine.size()));
+        summary.add("threat log", distribution(saved, firstLine.size()));
+        summary.add("peer ban", distribution(peerBan, (long)firstLine.size()*peers));
+        summary.add("fleet ban", distribution(fleetBan, firstLine.size()));
+        
+        return summary;
+    }
+    
+    /**
+     * Calculates the distribution of some latencies
+     * @param latencies The latencies
+     * @param expected The number of latencies if every IP passed the stage
+     * @return The count, missing, and percentiles
+     */
+    private static JsonObject distribution(ArrayList<Long> latencies, long expected){
+        JsonObject distribution = new JsonObject();
+        
+        Collections.sort(latencies);
+        distribution.add("count", latencies.size());
+        distribution.add("missing", expected - latencies.size());
+        
+        if(!latencies.isEmpty()){
+            distribution.add("p50", percentile(latencies, 0.50));
+            distribution.add("p90", percentile(latencies, 0.90));
+            distribution.add("p99", percentile(latencies, 0.99));
+            distribution.add("max", latencies.get(latencies.size()-1));
+        }
+        
+        return distribution;
+    }
+    
+    /**
+     * Returns a percentile of sorted values
+     * @param sorted The sorted values
+     * @param fraction The percentile (between 0 and 1)
+     * @return The value
+     */
+    private static long percentile(ArrayList<Long> sorted, double fraction){
+        int index = (int)Math.ceil(fraction*sorted.size()) - 1;
+        
+        return sorted.get(Math.max(0, Math.min(index, sorted.size()-1)));
+    }
+}
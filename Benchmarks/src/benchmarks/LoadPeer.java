@@ -0,0 +1,128 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package benchmarks;
+
+import Firewall.BanTable;
+import Firewall.CidrAggregator;
+import com.eclipsesource.json.Json;
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+import es.upv.dsic.gti_ia.core.ACLMessage;
+import es.upv.dsic.gti_ia.core.AgentID;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import myagent.AttackReportCodec;
+import myagent.MyAgent;
+
+/**
+ * Simulated device agent: it subscribes to the server like an SSH agent, and
+ * bans in memory the IPs that the server sends (without a firewall), saving
+ * when every ban is applied
+ * @author Aaron Rodriguez Bueno
+ */
+public class LoadPeer extends MyAgent {
+    private final AgentID server;
+    private final String ip;
+    private final LatencyRecorder recorder;
+    private final BanTable banTable;
+    private final CidrAggregator aggregator;
+    private volatile String conversation;
+    
+    /**
+     * Constructor
+     * @param aid The AgentID of the agent
+     * @param server The server AgentID
+     * @param ip The IP of the simulated device
+     * @param recorder Where the bans are saved
+     * @throws Exception 
+     */
+    public LoadPeer(AgentID aid, AgentID server, String ip, LatencyRecorder recorder) throws Exception{
+        super(aid);
+        this.server = server;
+        this.ip = ip;
+        this.recorder = recorder;
+        this.banTable = new BanTable(600*1000L, 86400*1000L, 1.0, System.currentTimeMillis());
+        this.aggregator = new CidrAggregator(24, Integer.MAX_VALUE, 0);
+    }
+    
+    /**
+     * Subscribes to the server
+     * @param timeout The milliseconds to wait for the answer
+     * @return true if it was subscribed, false otherwise
+     * @throws InterruptedException 
+     */
+    public boolean subscribe(long timeout) throws InterruptedException{
+        JsonObject message = new JsonObject();
+        
+        message.add("task", "SSH authentications");
+        message.add("IP", ip);
+        message.add("encodings", new JsonArray().add(AttackReportCodec.COMPACT));
+        
+        try{
+            ACLMessage answer = request(server, ACLMessage.SUBSCRIBE, message.toString(), 
+                                        null, generateReplyId(), timeout).get();
+            
+            if(answer.getPerformativeInt() == ACLMessage.INFORM){
+                conversation = answer.getConversationId();
+                return true;
+            }
+        }
+        catch(ExecutionException ex){
+            //No answer
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Bans the IPs sent by the server and answers it
+     * @param msg The received message
+     */
+    @Override
+    public void onMessage(ACLMessage msg){
+        if(dispatchReply(msg))
+            return;
+        
+        if(msg.getPerformativeInt() != ACLMessage.REQUEST)
+            return;
+        
+        JsonObject content = Json.parse(msg.getContent()).asObject();
+        JsonValue block = content.get("block IPs");
+        JsonValue banSeconds = content.get("ban seconds");
+        ArrayList<String> ips;
+        long now = System.currentTimeMillis();
+        
+        if(block == null)
+            return;
+        
+        if(block.isString()){
+            ips = AttackReportCodec.decodeIps(block.asString());
+        }
+        else{
+            ips = new ArrayList<String>();
+            for(JsonValue value : block.asArray())
+                ips.add(value.asString());
+        }
+        
+        for(int i = 0; i < ips.size(); i++){
+            boolean added;
+            
+            if(banSeconds != null && i < banSeconds.asArray().size())
+                added = banTable.ban(ips.get(i), now, banSeconds.asArray().get(i).asLong()*1000);
+            else
+                added = banTable.ban(ips.get(i), now);
+            
+            if(added)
+                aggregator.add(ips.get(i));
+            recorder.peerBan(ips.get(i), System.currentTimeMillis());
+        }
+        
+        JsonObject answer = new JsonObject();
+        answer.add("block IPs", "ok");
+        answerMessage(server, ACLMessage.INFORM, answer.toString(), msg.getConversationId(), msg.getReplyWith());
+    }
+}
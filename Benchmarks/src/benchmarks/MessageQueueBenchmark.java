@@ -0,0 +1,88 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package benchmarks;
+
+import es.upv.dsic.gti_ia.core.ACLMessage;
+import java.util.concurrent.TimeUnit;
+import onmessage.MessageQueue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of the message queue of the agents, with some threads pushing 
+ * (like onMessage) and others popping at the same time. A full or empty queue
+ * throws InterruptedException, and it is counted as a failed operation
+ * @author Aaron Rodriguez Bueno
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageQueueBenchmark {
+    
+    @Param({"100", "1000"})
+    public int dimension;
+    
+    private MessageQueue queue;
+    private ACLMessage message;
+    
+    /**
+     * Creates the queue and the message
+     */
+    @Setup(Level.Iteration)
+    public void setUp(){
+        queue = new MessageQueue(dimension);
+        message = new ACLMessage(ACLMessage.REQUEST);
+        message.setContent("{\"block IPs\":[\"10.0.0.1\"]}");
+    }
+    
+    /**
+     * Pushes a message
+     * @return true if it was pushed, false if the queue was full
+     */
+    @Benchmark
+    @Group("contention")
+    @GroupThreads(2)
+    public boolean push(){
+        try{
+            queue.Push(message);
+            return true;
+        }
+        catch(InterruptedException ex){
+            return false;
+        }
+    }
+    
+    /**
+     * Pops a message
+     * @return The message, or null if the queue was empty
+     */
+    @Benchmark
+    @Group("contention")
+    @GroupThreads(2)
+    public ACLMessage pop(){
+        try{
+            return queue.Pop();
+        }
+        catch(InterruptedException ex){
+            return null;
+        }
+    }
+}
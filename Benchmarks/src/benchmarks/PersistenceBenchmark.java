@@ -0,0 +1,123 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package benchmarks;
+
+import DiskLogger.DiskLogger;
+import IPLogger.IpLogger;
+import ThreatLog.ThreatLog;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the files written by the agents: the IPs to send (IpLogger),
+ * the threats saved by the server (ThreatLog) and the agent logs (DiskLogger)
+ * @author Aaron Rodriguez Bueno
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersistenceBenchmark {
+    private static final String DATE = "2017 Oct 19 10:00:00";
+    
+    @Param({"10", "1000", "100000"})
+    public int ips;
+    
+    private File directory;
+    private IpLogger ipLogger;
+    private ThreatLog threatLog;
+    private DiskLogger diskLogger;
+    private String known;
+    private String unknown;
+    private int next;
+    
+    /**
+     * Creates the files, with the IPs given in the IpLogger file
+     * @throws IOException 
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException{
+        directory = File.createTempFile("persistence", "");
+        directory.delete();
+        directory.mkdir();
+        
+        ipLogger = new IpLogger(new File(directory, "send_ips.tmp").getPath());
+        for(int i = 0; i < ips; i++)
+            ipLogger.addIP(AuthLogGenerator.ip(i));
+        
+        threatLog = new ThreatLog(new File(directory, "ssh_attacks.log").getPath());
+        diskLogger = new DiskLogger(new File(directory, "log.json").getPath());
+        diskLogger.Init();
+        
+        known = AuthLogGenerator.ip(ips/2);
+        unknown = AuthLogGenerator.ip(ips+1);
+        next = 0;
+    }
+    
+    /**
+     * Deletes the files
+     */
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        for(File file : directory.listFiles())
+            file.delete();
+        directory.delete();
+    }
+    
+    /**
+     * Adds a date to an IP of the file, and deletes it (so the file doesn't grow)
+     * @return true if everything was correct
+     * @throws IOException 
+     */
+    @Benchmark
+    public boolean addRegistryAndDeleteIP() throws IOException{
+        return ipLogger.addRegistry(unknown, DATE) & ipLogger.deleteIP(unknown);
+    }
+    
+    /**
+     * Looks for an IP in the middle of the file
+     * @return true if it is
+     * @throws IOException 
+     */
+    @Benchmark
+    public boolean isIP() throws IOException{
+        return ipLogger.isIP(known);
+    }
+    
+    /**
+     * Saves an attack in the server log
+     * @return true if everything was correct
+     */
+    @Benchmark
+    public boolean addEntry(){
+        return threatLog.addEntry(DATE, "192.168.1.2", AuthLogGenerator.ip(next++ % ips), "SSH attack");
+    }
+    
+    /**
+     * Saves a status in the agent log
+     * @return The status saved
+     */
+    @Benchmark
+    public String addObject(){
+        return diskLogger.AddObject("{\"agent\":\"benchmark\", \"content\":{\"status\":\"Executing\"}}");
+    }
+}
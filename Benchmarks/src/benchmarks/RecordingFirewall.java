@@ -0,0 +1,55 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package benchmarks;
+
+import Firewall.FirewallCommand;
+import Firewall.FirewallExecutor;
+import Firewall.FirewallResult;
+
+/**
+ * Firewall that doesn't run iptables: every command succeeds at once, and the 
+ * bans are saved in the LatencyRecorder
+ * @author Aaron Rodriguez Bueno
+ */
+public class RecordingFirewall extends FirewallExecutor {
+    private final LatencyRecorder recorder;
+    
+    /**
+     * Constructor
+     * @param recorder Where the bans are saved
+     */
+    public RecordingFirewall(LatencyRecorder recorder){
+        super(10000, 1000);
+        this.recorder = recorder;
+    }
+    
+    /**
+     * Saves the bans of the command (or of the batch) instead of running it
+     * @param command The command to save in the result
+     * @param args The process arguments
+     * @param input The input for the process (the rules of a batch)
+     * @param limit The maximum number of bytes of the output to save
+     * @return A successful result, without output
+     */
+    @Override
+    protected FirewallResult run(FirewallCommand command, String [] args, String input, int limit){
+        long now = System.currentTimeMillis();
+        
+        if(input != null){
+            //iptables-restore rules: "-I INPUT -s source ..."
+            for(String rule : input.split("\n")){
+                String [] parts = rule.split(" ");
+                if(parts.length > 3 && parts[0].equals("-I") && parts[2].equals("-s"))
+                    recorder.localBan(parts[3], now);
+            }
+        }
+        else if(command.getAction() == FirewallCommand.BAN){
+            recorder.localBan(command.getSource(), now);
+        }
+        
+        return new FirewallResult(command, 0, "", false, false);
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Class that runs the benchmarks and saves the results as JSON, to compare
+ * them between versions
+ * @author Aaron Rodriguez Bueno
+ */
+public class RunBenchmarks {
+    
+    /**
+     * Runs the benchmarks
+     * @param args The regular expression of the benchmarks to run (all by default)
+     * and the JSON results file (benchmarks.json by default)
+     * @throws RunnerException 
+     */
+    public static void main(String[] args) throws RunnerException{
+        String include = (args.length > 0) ? args[0] : "benchmarks\\..*Benchmark";
+        String results = (args.length > 1) ? args[1] : "benchmarks.json";
+        
+        Options options = new OptionsBuilder()
+                .include(include)
+                .resultFormat(ResultFormatType.JSON)
+                .result(results)
+                .build();
+        
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ConfigFile;
+
+import com.eclipsesource.json.JsonValue;
+
+/**
+ * A key of the configuration file that was added, changed or removed
+ * @author Aaron Rodriguez Bueno
+ */
+public class ConfigChange {
+    private final String key;
+    private final JsonValue oldValue;
+    private final JsonValue newValue;
+    
+    /**
+     * Constructor
+     * @param key The key
+     * @param oldValue The previous value (null if it is new)
+     * @param newValue The current value (null if it was removed)
+     */
+    public ConfigChange(String key, JsonValue oldValue, JsonValue newValue){
+        this.key = key;
+        this.oldValue = oldValue;
+        this.newValue = newValue;
+    }
+    
+    /**
+     * Gets the key
+     * @return The key
+     */
+    public String getKey(){
+        return key;
+    }
+    
+    /**
+     * Gets the previous value
+     * @return The value (null if it is new)
+     */
+    public JsonValue getOldValue(){
+        return oldValue;
+    }
+    
+    /**
+     * Gets the current value
+     * @return The value (null if it was removed)
+     */
+    public JsonValue getNewValue(){
+        return newValue;
+    }
+    
+    /**
+     * Checks if the key was removed
+     * @return true if it was removed, false otherwise
+     */
+    public boolean isRemoved(){
+        return newValue == null;
+    }
+    
+    /**
+     * Returns the current value as an int
+     * @param current The value to keep if it was removed or it isn't a number
+     * @return The value
+     */
+    public int asInt(int current){
+        return (newValue != null && newValue.isNumber()) ? newValue.asInt() : current;
+    }
+    
+    /**
+     * Returns the current value as a double
+     * @param current The value to keep if it was removed or it isn't a number
+     * @return The value
+     */
+    public double asDouble(double current){
+        return (newValue != null && newValue.isNumber()) ? newValue.asDouble() : current;
+    }
+    
+    /**
+     * Returns the current value as a String
+     * @param current The value to keep if it was removed or it isn't a String
+     * @return The value
+     */
+    public String asString(String current){
+        return (newValue != null && newValue.isString()) ? newValue.asString() : current;
+    }
+    
+    /**
+     * Returns the current value as a boolean
+     * @param current The value to keep if it was removed or it isn't a boolean
+     * @return The value
+     */
+    public boolean asBoolean(boolean current){
+        return (newValue != null && newValue.isBoolean()) ? newValue.asBoolean() : current;
+    }
+    
+    @Override
+    public String toString(){
+        return key+"="+newValue;
+    }
+}
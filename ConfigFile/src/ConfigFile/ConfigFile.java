@@ -5,8 +5,15 @@
 package ConfigFile;
 
 import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+import com.eclipsesource.json.ParseException;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import org.apache.commons.io.FileUtils;
 
 
@@ -16,7 +23,11 @@ import org.apache.commons.io.FileUtils;
  */
 public class ConfigFile {
    private String filename;
-   public JsonObject config;
+   public volatile JsonObject config;
+   private long lastModified;
+   private long length;
+   private ScheduledExecutorService watcher;
+   private final CopyOnWriteArrayList<ConfigListener> listeners = new CopyOnWriteArrayList<ConfigListener>();
    
    public ConfigFile()  {
       filename="defaultconfig.json";
@@ -47,6 +58,8 @@ public class ConfigFile {
                     }
                     System.out.println("CONFIG FILE: "+str);
                     config = JsonObject.readFrom(str);
+                    lastModified = file.lastModified();
+                    length = file.length();
                     return true;
                 }
                 else{
@@ -60,6 +73,84 @@ public class ConfigFile {
             return false;
         }
     }
+    
+    /**
+     * Checks the file periodically (after Init) and tells the listeners the 
+     * keys changed every time it is modified
+     * @param period The milliseconds between checks (the first call decides it)
+     * @param listener The listener of the changes
+     */
+    public synchronized void watch(long period, ConfigListener listener)  {
+        listeners.add(listener);
+        
+        if (watcher == null)  {
+            watcher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "config-watcher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            watcher.scheduleWithFixedDelay(this::reload, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * Stops checking the file
+     */
+    public synchronized void stopWatching()  {
+        if (watcher != null)  {
+            watcher.shutdownNow();
+            watcher = null;
+            listeners.clear();
+        }
+    }
+    
+    /**
+     * Reads the file again if it was modified. If it can't be parsed, the 
+     * previous configuration is kept until it is modified again
+     * @return true if the file was read and something changed, false otherwise
+     */
+    public synchronized boolean reload()  {
+        File file = new File(filename);
+        JsonObject newConfig;
+        
+        if (!file.isFile() || (file.lastModified() == lastModified && file.length() == length))
+            return false;
+        
+        lastModified = file.lastModified();
+        length = file.length();
+        
+        try {
+            newConfig = JsonObject.readFrom(FileUtils.readFileToString(file, "utf-8"));
+        } catch (IOException | ParseException | UnsupportedOperationException ex) {
+            System.err.println("*** Error reloading configuration file ["+filename+"]: "+ex.getMessage());
+            return false;
+        }
+        
+        //Keys added or changed, and then keys removed
+        ArrayList<ConfigChange> changes = new ArrayList<ConfigChange>();
+        JsonObject oldConfig = config;
+        
+        for (String key : newConfig.names())  {
+            JsonValue oldValue = (oldConfig == null) ? null : oldConfig.get(key);
+            if (oldValue == null || !oldValue.equals(newConfig.get(key)))
+                changes.add(new ConfigChange(key, oldValue, newConfig.get(key)));
+        }
+        if (oldConfig != null)
+            for (String key : oldConfig.names())
+                if (newConfig.get(key) == null)
+                    changes.add(new ConfigChange(key, oldConfig.get(key), null));
+        
+        config = newConfig;
+        
+        if (changes.isEmpty())
+            return false;
+        
+        //The listeners log the keys they apply (with their own log level and echo)
+        for (ConfigListener listener : listeners)
+            listener.configChanged(changes);
+        
+        return true;
+    }
    
  
 }
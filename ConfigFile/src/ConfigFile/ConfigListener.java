@@ -0,0 +1,21 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ConfigFile;
+
+import java.util.List;
+
+/**
+ * Receives the changes of a watched configuration file
+ * @author Aaron Rodriguez Bueno
+ */
+public interface ConfigListener {
+    
+    /**
+     * Called (from the watcher thread) every time the file changes. The changes 
+     * should be kept and applied by the agent at a safe point of its states
+     * @param changes The keys added, changed or removed
+     */
+    void configChanged(List<ConfigChange> changes);
+}
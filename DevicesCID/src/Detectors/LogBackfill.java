@@ -0,0 +1,184 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package Detectors;
+
+import Occurrences.OccurrencesCounter;
+import Occurrences.OccurrencesList;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Searchs the attackers of a period in the logs of the detectors, including
+ * their rotated files (auth.log.1, auth.log.2.gz, auth.log-20240101...), to
+ * cover the time when the agent wasn't running. The files are read as streams
+ * (the compressed ones too, without temporary files) in blocks of lines, with
+ * a maximum of lines per second and of IPs kept, so it can run beside the
+ * live scans without starving them
+ * @author Aaron Rodriguez Bueno
+ */
+public class LogBackfill {
+    private final int blockLines;
+    private final int linesPerSecond;
+    private final int maxIps;
+    private long linesRead;
+
+    /**
+     * Constructor
+     * @param blockLines The lines searched at once
+     * @param linesPerSecond The maximum lines read per second
+     * @param maxIps The maximum IPs kept for every detector (the next ones are ignored)
+     */
+    public LogBackfill(int blockLines, int linesPerSecond, int maxIps){
+        this.blockLines = Math.max(1, blockLines);
+        this.linesPerSecond = Math.max(1, linesPerSecond);
+        this.maxIps = maxIps;
+        this.linesRead = 0;
+    }
+
+    /**
+     * Gets the lines read until now
+     * @return The number of lines
+     */
+    public long getLinesRead(){
+        return linesRead;
+    }
+
+    /**
+     * Searchs the attackers of a period in the logs of a detector
+     * @param detector The detector
+     * @param from The date to start to count attempts
+     * @param to The date to finish to count attempts
+     * @return The IPs with the attempts of the detector or more, and the date of their first one
+     * @throws InterruptedException If the agent is stopping
+     */
+    public OccurrencesList search(LogDetector detector, Date from, Date to) throws InterruptedException{
+        LinkedHashMap<String, OccurrencesCounter> found = new LinkedHashMap<String, OccurrencesCounter>();
+
+        for(File file : logFiles(detector.getLogfile(), from.getTime())){
+            try(BufferedReader in = new BufferedReader(new InputStreamReader(open(file), StandardCharsets.UTF_8))){
+                ArrayList<String> block = new ArrayList<String>(blockLines);
+                String line;
+
+                while((line = in.readLine()) != null){
+                    block.add(line);
+                    if(block.size() == blockLines){
+                        searchBlock(detector, block, from, to, found);
+                        block.clear();
+                    }
+                }
+                searchBlock(detector, block, from, to, found);
+            }
+            catch(IOException e){
+                //A damaged rotated file doesn't stop the others
+                System.err.println("*** Error reading the log file "+file+": "+e.getMessage());
+            }
+        }
+
+        OccurrencesList attackers = new OccurrencesList();
+        for(OccurrencesCounter oc : found.values())
+            if(oc.getNumOccurrences() >= detector.getAttempts())
+                attackers.addOccurrence(oc);
+
+        return attackers;
+    }
+
+    /**
+     * Finds the rotated files of a log and the log itself that can have lines
+     * after a date, the oldest first
+     * @param logfile The log file
+     * @param since The date in milliseconds
+     * @return The files
+     */
+    public static ArrayList<File> logFiles(String logfile, long since){
+        File live = new File(logfile);
+        File dir = live.getAbsoluteFile().getParentFile();
+        Pattern rotated = Pattern.compile(Pattern.quote(live.getName())+"[.-][0-9]+(\\.gz)?");
+        ArrayList<File> files = new ArrayList<File>();
+
+        File [] siblings = (dir == null) ? null : dir.listFiles((d, name) -> rotated.matcher(name).matches());
+        if(siblings != null){
+            //The files modified before the date only have older lines
+            for(File file : siblings)
+                if(file.isFile() && file.lastModified() >= since)
+                    files.add(file);
+            files.sort((a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        }
+
+        if(live.isFile())
+            files.add(live);
+
+        return files;
+    }
+
+    /**
+     * Opens a log file, decompressing it if it is a .gz
+     * @param file The file
+     * @return The stream of the file
+     * @throws IOException
+     */
+    private InputStream open(File file) throws IOException{
+        InputStream in = new FileInputStream(file);
+
+        if(file.getName().endsWith(".gz")){
+            try{
+                return new GZIPInputStream(in, 64*1024);
+            }
+            catch(IOException e){
+                in.close();
+                throw e;
+            }
+        }
+
+        return in;
+    }
+
+    /**
+     * Adds the attempts of a block of lines to the ones found, and waits to
+     * not exceed the lines per second
+     * @param detector The detector
+     * @param block The lines
+     * @param from The date to start to count attempts
+     * @param to The date to finish to count attempts
+     * @param found The attempts found for every IP
+     * @throws InterruptedException If the agent is stopping
+     */
+    private void searchBlock(LogDetector detector, List<String> block, Date from, Date to,
+                                LinkedHashMap<String, OccurrencesCounter> found) throws InterruptedException{
+        long start = System.nanoTime();
+        OccurrencesList attempts = detector.search(block, 1, from, to);
+
+        //The blocks are read in order, so the first date of an IP is the one of its first block
+        for(int i = 0; i < attempts.size(); i++){
+            OccurrencesCounter oc = attempts.get(i);
+            OccurrencesCounter total = found.get(oc.getIp());
+
+            if(total != null)
+                total.setNumOccurrences(total.getNumOccurrences() + oc.getNumOccurrences());
+            else if(found.size() < maxIps)
+                found.put(oc.getIp(), new OccurrencesCounter(oc));
+        }
+
+        linesRead += block.size();
+
+        long minimum = block.size()*1000000000L/linesPerSecond;
+        long elapsed = System.nanoTime() - start;
+        if(elapsed < minimum)
+            Thread.sleep((minimum - elapsed)/1000000);
+        if(Thread.interrupted())
+            throw new InterruptedException();
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package Detectors;
+
+import Occurrences.OccurrencesList;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import myagent.Allowlist;
+import myagent.AttackReportCodec;
+import myagent.MyAgent;
+
+/**
+ * A detector of attackers in a log file: which file, how many of its last lines
+ * to check, and how many attempts make an IP an attacker. The subclasses know
+ * how to find the attempts in the lines of their kind of log
+ * @author Aaron Rodriguez Bueno
+ */
+public abstract class LogDetector {
+    
+    //Kinds of detectors
+    public static final String SSH = "ssh";
+    public static final String WEB = "web";
+    public static final String MAIL = "mail";
+    
+    private volatile String logfile;
+    private volatile int lines;
+    private volatile int attempts;
+    private volatile Allowlist allowlist;
+    
+    /**
+     * Constructor
+     * @param logfile The log file
+     * @param lines The number of lines to check in the log
+     * @param attempts The number of attempts to considerate an IP as an attacker
+     */
+    public LogDetector(String logfile, int lines, int attempts){
+        this.logfile = logfile;
+        this.lines = lines;
+        this.attempts = attempts;
+        this.allowlist = new Allowlist();
+    }
+    
+    /**
+     * Creates a detector
+     * @param kind The kind of log: "ssh", "web" or "mail"
+     * @param logfile The log file
+     * @param lines The number of lines to check in the log
+     * @param attempts The number of attempts to considerate an IP as an attacker
+     * @return The detector (null if the kind is unknown)
+     */
+    public static LogDetector create(String kind, String logfile, int lines, int attempts){
+        switch(kind){
+            case SSH:
+                return new SshDetector(logfile, lines, attempts);
+            case WEB:
+                return new WebDetector(logfile, lines, attempts);
+            case MAIL:
+                return new MailDetector(logfile, lines, attempts);
+            default:
+                return null;
+        }
+    }
+    
+    /**
+     * Gets the kind of log
+     * @return The kind ("ssh", "web" or "mail")
+     */
+    public abstract String getKind();
+    
+    /**
+     * Searchs the IPs that tried to attack in some lines of the log
+     * @param lines The lines of the log
+     * @param number The number minimum of attempts
+     * @param seconds The seconds before now to start to count attempts
+     * @return The IPs with that number of attempts or more, and the date of their first one
+     */
+    public OccurrencesList search(List<String> lines, int number, int seconds){
+        Date now = new Date();
+        
+        return search(lines, number, new Date(now.getTime() - seconds*1000L), now);
+    }
+    
+    /**
+     * Searchs the IPs that tried to attack in some lines of the log between two dates
+     * @param lines The lines of the log
+     * @param number The number minimum of attempts
+     * @param from The date to start to count attempts
+     * @param to The date to finish to count attempts
+     * @return The IPs with that number of attempts or more, and the date of their first one
+     */
+    public OccurrencesList search(List<String> lines, int number, Date from, Date to){
+        OccurrencesList occurrences = new OccurrencesList();
+        SimpleDateFormat format = new SimpleDateFormat(AttackReportCodec.DATE_FORMAT, Locale.ENGLISH);
+        Date now = new Date();
+        
+        for(String line : lines){
+            String ip = attacker(line);
+            
+            //The allowed IPs aren't even counted
+            if(ip != null && isIp(ip) && !allowlist.contains(ip)){
+                Date date = date(line, now);
+                
+                if(date != null && date.after(from) && !date.after(to))
+                    occurrences.addOccurrence(ip, format.format(date));
+            }
+        }
+        
+        return occurrences.occurrencesWithNumberAboveOrEqual(number);
+    }
+    
+    /**
+     * Extracts the IP of a line, if it is an attempt of attack
+     * @param line The line of the log
+     * @return The IP (null if the line isn't an attempt)
+     */
+    protected String attacker(String line){
+        return null;
+    }
+    
+    /**
+     * Extracts the date of a line
+     * @param line The line of the log
+     * @param now The current date (the logs without year are from the last 12 months)
+     * @return The date (null if it can't be read)
+     */
+    protected Date date(String line, Date now){
+        return null;
+    }
+    
+    /**
+     * Checks if a String is an IP (the server refuses the whole report if an IP is wrong)
+     * @param ip The String
+     * @return true if it is an IP, false otherwise
+     */
+    private boolean isIp(String ip){
+        try{
+            return MyAgent.isIp(ip);
+        }
+        catch(NumberFormatException ex){
+            return false;
+        }
+    }
+    
+    /**
+     * Gets the log file
+     * @return The log file
+     */
+    public String getLogfile(){
+        return logfile;
+    }
+    
+    /**
+     * Sets the log file
+     * @param logfile The log file
+     */
+    public void setLogfile(String logfile){
+        this.logfile = logfile;
+    }
+    
+    /**
+     * Gets the number of lines to check in the log
+     * @return The number of lines
+     */
+    public int getLines(){
+        return lines;
+    }
+    
+    /**
+     * Sets the number of lines to check in the log
+     * @param lines The number of lines
+     */
+    public void setLines(int lines){
+        this.lines = lines;
+    }
+    
+    /**
+     * Gets the number of attempts to considerate an IP as an attacker
+     * @return The number of attempts
+     */
+    public int getAttempts(){
+        return attempts;
+    }
+    
+    /**
+     * Sets the number of attempts to considerate an IP as an attacker
+     * @param attempts The number of attempts
+     */
+    public void setAttempts(int attempts){
+        this.attempts = attempts;
+    }
+    
+    /**
+     * Gets the IPs that are never attackers
+     * @return The allowlist
+     */
+    public Allowlist getAllowlist(){
+        return allowlist;
+    }
+    
+    /**
+     * Sets the IPs that are never attackers
+     * @param allowlist The allowlist
+     */
+    public void setAllowlist(Allowlist allowlist){
+        this.allowlist = allowlist;
+    }
+    
+    @Override
+    public String toString(){
+        return getKind()+"("+logfile+")";
+    }
+}
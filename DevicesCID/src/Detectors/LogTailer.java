@@ -0,0 +1,268 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package Detectors;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Keeps the last lines of the log files, reading just what was appended since
+ * the last time. The detectors of the device share it, so a log file is read
+ * once even if several detectors search in it. If a file is rotated or
+ * truncated, it is read again from the beginning
+ * @author Aaron Rodriguez Bueno
+ */
+public class LogTailer {
+    private final HashMap<String, TailedFile> files;
+
+    /**
+     * A followed file
+     */
+    private static class TailedFile {
+        private final ArrayDeque<String> lines;
+        private final ByteArrayOutputStream partial;   //The last line, if it isn't finished yet
+        private int capacity;
+        private long position;
+        private String fileKey;                         //To know if it was rotated
+
+        private TailedFile(int capacity){
+            this.lines = new ArrayDeque<String>();
+            this.partial = new ByteArrayOutputStream();
+            this.capacity = capacity;
+            this.position = -1;
+            this.fileKey = null;
+        }
+
+        /**
+         * Adds a finished line, forgetting the oldest one if it is full
+         * @param line The line
+         */
+        private void add(String line){
+            if(lines.size() == capacity)
+                lines.removeFirst();
+            lines.addLast(line);
+        }
+    }
+
+    /**
+     * Constructor
+     */
+    public LogTailer(){
+        files = new HashMap<String, TailedFile>();
+    }
+
+    /**
+     * Returns the last lines of a log file (the file is followed from now on)
+     * @param filename The log file
+     * @param number The number of lines
+     * @return The lines, the oldest first (less if the file is shorter)
+     * @throws IOException If the file can't be read
+     */
+    public synchronized ArrayList<String> tail(String filename, int number) throws IOException{
+        TailedFile tailed = files.get(filename);
+
+        //The capacity is the maximum number of lines asked for the file
+        if(tailed == null || tailed.capacity < number){
+            tailed = new TailedFile(Math.max(1, number));
+            files.put(filename, tailed);
+        }
+
+        refresh(filename, tailed);
+
+        ArrayList<String> last = new ArrayList<String>(Math.min(number, tailed.lines.size()));
+        Iterator<String> it = tailed.lines.iterator();
+        for(int skip = tailed.lines.size() - number; skip > 0; skip--)
+            it.next();
+        while(it.hasNext())
+            last.add(it.next());
+
+        return last;
+    }
+
+    /**
+     * Gets the number of files followed
+     * @return The number of files
+     */
+    public synchronized int size(){
+        return files.size();
+    }
+
+    /**
+     * Writes the followed files (their position, the last lines and the 
+     * unfinished line) to a snapshot
+     * @param out The snapshot
+     * @throws IOException 
+     */
+    public synchronized void writeTo(DataOutputStream out) throws IOException{
+        out.writeInt(files.size());
+        
+        for(Map.Entry<String, TailedFile> e : files.entrySet()){
+            TailedFile tailed = e.getValue();
+            
+            out.writeUTF(e.getKey());
+            out.writeInt(tailed.capacity);
+            out.writeLong(tailed.position);
+            out.writeUTF(tailed.fileKey == null ? "" : tailed.fileKey);
+            out.writeInt(tailed.partial.size());
+            tailed.partial.writeTo(out);
+            out.writeInt(tailed.lines.size());
+            for(String line : tailed.lines){
+                byte [] bytes = line.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+    
+    /**
+     * Reads the followed files of a snapshot, so the next tail() just reads 
+     * what was appended since then (or the whole last lines again, if the
+     * file was rotated meanwhile)
+     * @param in The snapshot
+     * @throws IOException 
+     */
+    public synchronized void readFrom(DataInputStream in) throws IOException{
+        int size = in.readInt();
+        
+        for(int i = 0; i < size; i++){
+            String filename = in.readUTF();
+            TailedFile tailed = new TailedFile(in.readInt());
+            tailed.position = in.readLong();
+            tailed.fileKey = in.readUTF();
+            if(tailed.fileKey.isEmpty())
+                tailed.fileKey = null;
+            
+            byte [] partial = new byte[in.readInt()];
+            in.readFully(partial);
+            tailed.partial.write(partial, 0, partial.length);
+            
+            int lines = in.readInt();
+            for(int j = 0; j < lines; j++){
+                byte [] line = new byte[in.readInt()];
+                in.readFully(line);
+                tailed.add(new String(line, StandardCharsets.UTF_8));
+            }
+            
+            files.put(filename, tailed);
+        }
+    }
+    
+    /**
+     * Reads what was appended to the file since the last time
+     * @param filename The log file
+     * @param tailed The lines kept of the file
+     * @throws IOException If the file can't be read
+     */
+    private void refresh(String filename, TailedFile tailed) throws IOException{
+        File file = new File(filename);
+        Object key = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+        String fileKey = (key == null) ? null : key.toString();
+
+        try(RandomAccessFile in = new RandomAccessFile(file, "r")){
+            long length = in.length();
+
+            //First time, rotated or truncated: the last lines are read again
+            if(tailed.position < 0 || length < tailed.position ||
+                    (fileKey != null && !fileKey.equals(tailed.fileKey))){
+                tailed.lines.clear();
+                tailed.partial.reset();
+                tailed.position = startOfLastLines(in, length, tailed.capacity);
+                tailed.fileKey = fileKey;
+            }
+
+            if(length > tailed.position){
+                byte [] buffer = new byte[(int) Math.min(64*1024, length - tailed.position)];
+                int read;
+
+                in.seek(tailed.position);
+                while(tailed.position < length &&
+                        (read = in.read(buffer, 0, (int) Math.min(buffer.length, length - tailed.position))) > 0){
+                    split(buffer, read, tailed);
+                    tailed.position += read;
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits the bytes read in lines (without '\r' and '\n')
+     * @param buffer The bytes read
+     * @param read The number of bytes
+     * @param tailed The lines kept of the file
+     */
+    private void split(byte [] buffer, int read, TailedFile tailed){
+        int start = 0;
+
+        for(int i = 0; i < read; i++){
+            if(buffer[i] == '\n'){
+                tailed.partial.write(buffer, start, i - start);
+
+                byte [] line = tailed.partial.toByteArray();
+                int end = line.length;
+                if(end > 0 && line[end-1] == '\r')
+                    end--;
+
+                tailed.add(new String(line, 0, end, StandardCharsets.UTF_8));
+                tailed.partial.reset();
+                start = i + 1;
+            }
+        }
+
+        tailed.partial.write(buffer, start, read - start);
+    }
+
+    /**
+     * Looks for where the last lines of the file start, reading it backwards
+     * @param in The file
+     * @param length The length of the file
+     * @param number The number of lines
+     * @return The position of the first of the last lines
+     * @throws IOException If the file can't be read
+     */
+    private long startOfLastLines(RandomAccessFile in, long length, int number) throws IOException{
+        byte [] buffer = new byte[8192];
+        long end = length;
+        int newLines = 0;
+
+        //The last '\n' finishes the last line, it doesn't start a new one
+        if(length > 0){
+            in.seek(length - 1);
+            if(in.read() == '\n')
+                end--;
+        }
+
+        while(end > 0){
+            int size = (int) Math.min(buffer.length, end);
+            long start = end - size;
+
+            in.seek(start);
+            in.readFully(buffer, 0, size);
+
+            for(int i = size - 1; i >= 0; i--){
+                if(buffer[i] == '\n'){
+                    newLines++;
+                    if(newLines == number)
+                        return start + i + 1;
+                }
+            }
+            end = start;
+        }
+
+        return 0;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package Detectors;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Detector of the failed authentications in a mail log (syslog format), of
+ * Postfix SMTP and Dovecot IMAP/POP3:
+ * Oct 10 13:55:36 host postfix/smtpd[123]: warning: unknown[1.2.3.4]: SASL LOGIN authentication failed: ...
+ * Oct 10 13:55:36 host dovecot: imap-login: Disconnected (auth failed, 1 attempts in 2 secs): user=<x>, method=PLAIN, rip=1.2.3.4, ...
+ * @author Aaron Rodriguez Bueno
+ */
+public class MailDetector extends LogDetector {
+    private static final Pattern POSTFIX = Pattern.compile("\\[([0-9.]+)\\]: SASL \\S+ authentication failed");
+    private static final Pattern DOVECOT = Pattern.compile("auth failed.*rip=([0-9.]+)");
+    private final SimpleDateFormat format;
+    
+    /**
+     * Constructor
+     * @param logfile The mail log file
+     * @param lines The number of lines to check in the log
+     * @param attempts The number of attempts to considerate an IP as an attacker
+     */
+    public MailDetector(String logfile, int lines, int attempts){
+        super(logfile, lines, attempts);
+        format = new SimpleDateFormat("yyyy MMM d HH:mm:ss", Locale.ENGLISH);
+    }
+    
+    @Override
+    public String getKind(){
+        return MAIL;
+    }
+    
+    @Override
+    protected String attacker(String line){
+        Matcher matcher = POSTFIX.matcher(line);
+        
+        if(matcher.find())
+            return matcher.group(1);
+        
+        matcher = DOVECOT.matcher(line);
+        if(matcher.find())
+            return matcher.group(1);
+        
+        return null;
+    }
+    
+    @Override
+    protected Date date(String line, Date now){
+        //"Oct 10 13:55:36" or "Oct  1 13:55:36", without the year
+        String [] parts = line.trim().split(" +", 4);
+        
+        if(parts.length < 4)
+            return null;
+        
+        try{
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTime(now);
+            int year = calendar.get(Calendar.YEAR);
+            
+            Date date = format.parse(year+" "+parts[0]+" "+parts[1]+" "+parts[2]);
+            
+            //When the year changed, the dates after now are from the last year
+            if(date.after(now))
+                date = format.parse((year-1)+" "+parts[0]+" "+parts[1]+" "+parts[2]);
+            
+            return date;
+        }
+        catch(ParseException ex){
+            return null;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package Detectors;
+
+import Occurrences.OccurrencesList;
+import OccurrencesSearch.OccurrencesSearch;
+import java.util.Date;
+import java.util.List;
+import myagent.Allowlist;
+
+/**
+ * Detector of the failed SSH authentications in the authentication log (the
+ * search of OccurrencesSearch)
+ * @author Aaron Rodriguez Bueno
+ */
+public class SshDetector extends LogDetector {
+    private final OccurrencesSearch occurrences;
+    
+    /**
+     * Constructor
+     * @param logfile The authentication log file
+     * @param lines The number of lines to check in the log
+     * @param attempts The number of attempts to considerate an IP as an attacker
+     */
+    public SshDetector(String logfile, int lines, int attempts){
+        super(logfile, lines, attempts);
+        occurrences = new OccurrencesSearch();
+    }
+    
+    @Override
+    public String getKind(){
+        return SSH;
+    }
+    
+    @Override
+    public void setAllowlist(Allowlist allowlist){
+        super.setAllowlist(allowlist);
+        occurrences.setAllowlist(allowlist);
+    }
+    
+    @Override
+    public OccurrencesList search(List<String> lines, int number, Date from, Date to){
+        return occurrences.searchOccurrences(lines, number, from, to);
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package Detectors;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Detector of the refused requests (401 and 403) in a web server access log,
+ * in the common or combined format of Apache and nginx:
+ * 1.2.3.4 - user [10/Oct/2000:13:55:36 -0700] "GET /admin HTTP/1.1" 401 2326 ...
+ * @author Aaron Rodriguez Bueno
+ */
+public class WebDetector extends LogDetector {
+    private static final Pattern REQUEST = Pattern.compile("^(\\S+) \\S+ \\S+ \\[([^\\]]+)\\] \"[^\"]*\" (\\d{3}) ");
+    private final SimpleDateFormat format;
+    
+    /**
+     * Constructor
+     * @param logfile The access log file
+     * @param lines The number of lines to check in the log
+     * @param attempts The number of refused requests to considerate an IP as an attacker
+     */
+    public WebDetector(String logfile, int lines, int attempts){
+        super(logfile, lines, attempts);
+        format = new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss Z", Locale.ENGLISH);
+    }
+    
+    @Override
+    public String getKind(){
+        return WEB;
+    }
+    
+    @Override
+    protected String attacker(String line){
+        Matcher matcher = REQUEST.matcher(line);
+        
+        if(matcher.find() && (matcher.group(3).equals("401") || matcher.group(3).equals("403")))
+            return matcher.group(1);
+        
+        return null;
+    }
+    
+    @Override
+    protected Date date(String line, Date now){
+        Matcher matcher = REQUEST.matcher(line);
+        
+        try{
+            return matcher.find() ? format.parse(matcher.group(2)) : null;
+        }
+        catch(ParseException ex){
+            return null;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package Firewall;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import myagent.TimingWheel;
+
+/**
+ * Class that manages the banned IPs in memory. Every ban has its own expiry time,
+ * driven by a TimingWheel, and the repeat offenders can be banned for longer.
+ * After a ban expires, the IP is remembered (to escalate its next ban) until 
+ * the maximum ban time passes.
+ * @author Aaron Rodriguez Bueno
+ */
+public class BanTable {
+    private final HashMap<String, BanEntry> bans;
+    private final TimingWheel<String> wheel;
+    private long banTime;
+    private long maxBanTime;
+    private double escalation;
+    private int active;
+    
+    /**
+     * Ban of an IP
+     */
+    private static class BanEntry {
+        private int offenses;
+        private boolean banned;
+        private long expiry;    //When the ban finishes (or when the IP is forgotten, if it isn't banned)
+        
+        private BanEntry(){
+            offenses = 0;
+            banned = false;
+            expiry = 0;
+        }
+    }
+    
+    /**
+     * Constructor
+     * @param banTime The milliseconds of the first ban of an IP
+     * @param maxBanTime The maximum milliseconds of a ban
+     * @param escalation The factor to multiply the ban time for every repeated offense (1 to not escalate)
+     * @param now The current time in milliseconds
+     */
+    public BanTable(long banTime, long maxBanTime, double escalation, long now){
+        this.bans = new HashMap<String, BanEntry>();
+        this.wheel = new TimingWheel<String>(1000, 4, now);
+        this.banTime = banTime;
+        this.maxBanTime = Math.max(banTime, maxBanTime);
+        this.escalation = Math.max(1.0, escalation);
+        this.active = 0;
+    }
+    
+    /**
+     * Changes the ban times of the next bans (the current ones keep their expiry)
+     * @param banTime The milliseconds of the first ban of an IP
+     * @param maxBanTime The maximum milliseconds of a ban
+     * @param escalation The factor to multiply the ban time for every repeated offense (1 to not escalate)
+     */
+    public synchronized void setBanTimes(long banTime, long maxBanTime, double escalation){
+        this.banTime = banTime;
+        this.maxBanTime = Math.max(banTime, maxBanTime);
+        this.escalation = Math.max(1.0, escalation);
+    }
+    
+    /**
+     * Gets the milliseconds of the first ban of an IP
+     * @return The milliseconds
+     */
+    public synchronized long getBanTime(){
+        return banTime;
+    }
+    
+    /**
+     * Gets the maximum milliseconds of a ban
+     * @return The milliseconds
+     */
+    public synchronized long getMaxBanTime(){
+        return maxBanTime;
+    }
+    
+    /**
+     * Gets the factor to multiply the ban time for every repeated offense
+     * @return The factor
+     */
+    public synchronized double getEscalation(){
+        return escalation;
+    }
+    
+    /**
+     * Bans an IP for the time that corresponds to its offenses
+     * @param ip The IP
+     * @param now The current time in milliseconds
+     * @return true if the IP wasn't banned (so a firewall rule is needed), false otherwise
+     */
+    public synchronized boolean ban(String ip, long now){
+        BanEntry entry = bans.get(ip);
+        int offenses = (entry == null) ? 1 : entry.offenses + 1;
+        
+        return ban(ip, now, duration(offenses));
+    }
+    
+    /**
+     * Bans an IP for the time given
+     * @param ip The IP
+     * @param now The current time in milliseconds
+     * @param duration The milliseconds of the ban
+     * @return true if the IP wasn't banned (so a firewall rule is needed), false otherwise
+     */
+    public synchronized boolean ban(String ip, long now, long duration){
+        BanEntry entry = bans.get(ip);
+        boolean added = false;
+        long expiry = now + Math.min(duration, maxBanTime);
+        
+        if(entry == null){
+            entry = new BanEntry();
+            bans.put(ip, entry);
+        }
+        
+        if(!entry.banned){
+            entry.banned = true;
+            entry.offenses++;
+            entry.expiry = expiry;
+            wheel.schedule(ip, entry.expiry);
+            active++;
+            added = true;
+        }
+        else if(expiry > entry.expiry){
+            //Already banned: the ban is extended (the old timer is ignored when it expires)
+            entry.expiry = expiry;
+            wheel.schedule(ip, entry.expiry);
+        }
+        
+        return added;
+    }
+    
+    /**
+     * Extends the ban of an IP that is still trying to connect, if it is banned
+     * @param ip The IP
+     * @param now The current time in milliseconds
+     */
+    public synchronized void extend(String ip, long now){
+        BanEntry entry = bans.get(ip);
+        
+        if(entry != null && entry.banned)
+            ban(ip, now, duration(entry.offenses));
+    }
+    
+    /**
+     * Extracts the IPs whose ban finished
+     * @param now The current time in milliseconds
+     * @return The IPs to re-allow
+     */
+    public synchronized ArrayList<String> expire(long now){
+        ArrayList<String> expired = new ArrayList<String>();
+        
+        for(String ip : wheel.advance(now)){
+            BanEntry entry = bans.get(ip);
+            
+            //The timers of extended bans or forgotten IPs are ignored
+            if(entry != null && entry.expiry <= now){
+                if(entry.banned){
+                    entry.banned = false;
+                    entry.expiry = now + maxBanTime;
+                    wheel.schedule(ip, entry.expiry);
+                    active--;
+                    expired.add(ip);
+                }
+                else{
+                    bans.remove(ip);
+                }
+            }
+        }
+        
+        return expired;
+    }
+    
+    /**
+     * Gets the number of banned IPs
+     * @return The number of IPs
+     */
+    public synchronized int size(){
+        return active;
+    }
+    
+    /**
+     * Writes the bans and the remembered IPs, with their offenses and expiry
+     * times, to a snapshot
+     * @param out The snapshot
+     * @throws IOException 
+     */
+    public synchronized void writeTo(DataOutputStream out) throws IOException{
+        out.writeInt(bans.size());
+        
+        for(Map.Entry<String, BanEntry> e : bans.entrySet()){
+            out.writeUTF(e.getKey());
+            out.writeInt(e.getValue().offenses);
+            out.writeBoolean(e.getValue().banned);
+            out.writeLong(e.getValue().expiry);
+        }
+    }
+    
+    /**
+     * Reads the bans of a snapshot. The expiry times are absolute, so the bans
+     * that finished while the agent was stopped are released at the next expire()
+     * @param in The snapshot
+     * @return The banned IPs read
+     * @throws IOException 
+     */
+    public synchronized ArrayList<String> readFrom(DataInputStream in) throws IOException{
+        ArrayList<String> banned = new ArrayList<String>();
+        int size = in.readInt();
+        
+        for(int i = 0; i < size; i++){
+            String ip = in.readUTF();
+            BanEntry entry = new BanEntry();
+            entry.offenses = in.readInt();
+            entry.banned = in.readBoolean();
+            entry.expiry = in.readLong();
+            
+            //The bans of this run are kept
+            if(bans.containsKey(ip))
+                continue;
+            
+            bans.put(ip, entry);
+            wheel.schedule(ip, entry.expiry);
+            if(entry.banned){
+                active++;
+                banned.add(ip);
+            }
+        }
+        
+        return banned;
+    }
+    
+    /**
+     * Gets the ban time for a number of offenses
+     * @param offenses The number of offenses
+     * @return The milliseconds
+     */
+    private long duration(int offenses){
+        double time = banTime * Math.pow(escalation, offenses - 1);
+        return (long) Math.min(time, maxBanTime);
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package Firewall;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import myagent.Allowlist;
+import myagent.IpUtils;
+
+/**
+ * Class that collapses the banned IPs of the same network into one CIDR rule,
+ * to keep the firewall rule set small. When a network has enough banned IPs, its
+ * IP rules are replaced by the network rule, and when the IPs of an aggregated
+ * network expire, the network rule is split back into IP rules. The networks
+ * with an allowed address are never aggregated (their attackers keep their
+ * IP rules), so the allowed hosts aren't blocked with their neighbours.
+ * Just the IPv4 addresses get rules: the rules are applied and read with
+ * iptables, so the other sources are ignored.
+ * @author Aaron Rodriguez Bueno
+ */
+public class CidrAggregator {
+    private final int prefix;
+    private final int threshold;
+    private final int splitThreshold;
+    
+    private final HashMap<Integer, HashSet<Integer>> members;   //Banned IPs of every network
+    private final HashSet<Integer> aggregated;                  //Networks with a CIDR rule
+    private Allowlist allowlist;
+    
+    /**
+     * Constructor
+     * @param prefix The prefix length of the networks (i.e. 24)
+     * @param threshold The number of banned IPs to aggregate a network (0 to not aggregate)
+     * @param splitThreshold The number of banned IPs under which an aggregated network is split
+     */
+    public CidrAggregator(int prefix, int threshold, int splitThreshold){
+        this.prefix = prefix;
+        this.threshold = threshold;
+        this.splitThreshold = Math.min(splitThreshold, threshold);
+        this.members = new HashMap<Integer, HashSet<Integer>>();
+        this.aggregated = new HashSet<Integer>();
+        this.allowlist = new Allowlist();
+    }
+    
+    /**
+     * Sets the IPs that can't be blocked by a network rule (call 
+     * checkAllowlist() when its networks change)
+     * @param allowlist The allowlist
+     */
+    public synchronized void setAllowlist(Allowlist allowlist){
+        this.allowlist = allowlist;
+    }
+    
+    /**
+     * Adds a banned IP
+     * @param ip The IP
+     * @return The firewall commands to apply (none if it isn't IPv4)
+     */
+    public synchronized ArrayList<FirewallCommand> add(String ip){
+        ArrayList<FirewallCommand> commands = new ArrayList<FirewallCommand>();
+        
+        if(IpUtils.isIpv4(ip)){
+            int address = IpUtils.toInt(ip);
+            int network = IpUtils.network(address, prefix);
+            HashSet<Integer> ips = members.get(network);
+            
+            if(ips == null){
+                ips = new HashSet<Integer>();
+                members.put(network, ips);
+            }
+            
+            if(ips.add(address) && !aggregated.contains(network)){
+                if(threshold > 0 && ips.size() >= threshold && !allowlist.overlaps(network, prefix)){
+                    //The network rule first, so there isn't any gap
+                    aggregated.add(network);
+                    commands.add(new FirewallCommand(FirewallCommand.BAN, cidr(network)));
+                    
+                    for(int member : ips)
+                        if(member != address)
+                            commands.add(new FirewallCommand(FirewallCommand.UNBAN, IpUtils.toIp(member)));
+                }
+                else{
+                    commands.add(new FirewallCommand(FirewallCommand.BAN, ip));
+                }
+            }
+        }
+        
+        return commands;
+    }
+    
+    /**
+     * Removes a re-allowed IP
+     * @param ip The IP
+     * @return The firewall commands to apply (none if it isn't IPv4)
+     */
+    public synchronized ArrayList<FirewallCommand> remove(String ip){
+        ArrayList<FirewallCommand> commands = new ArrayList<FirewallCommand>();
+        
+        if(IpUtils.isIpv4(ip)){
+            int address = IpUtils.toInt(ip);
+            int network = IpUtils.network(address, prefix);
+            HashSet<Integer> ips = members.get(network);
+            
+            if(ips != null && ips.remove(address)){
+                if(!aggregated.contains(network)){
+                    commands.add(new FirewallCommand(FirewallCommand.UNBAN, ip));
+                }
+                else if(ips.size() < splitThreshold || ips.isEmpty()){
+                    //The IP rules first, so there isn't any gap
+                    for(int member : ips)
+                        commands.add(new FirewallCommand(FirewallCommand.BAN, IpUtils.toIp(member)));
+                    
+                    commands.add(new FirewallCommand(FirewallCommand.UNBAN, cidr(network)));
+                    aggregated.remove(network);
+                }
+                
+                if(ips.isEmpty())
+                    members.remove(network);
+            }
+        }
+        
+        return commands;
+    }
+    
+    /**
+     * Checks the networks again after the allowlist changed: the aggregated
+     * networks that have an allowed address now are split into IP rules, and
+     * the ones that don't have it anymore are aggregated
+     * @return The firewall commands to apply
+     */
+    public synchronized ArrayList<FirewallCommand> checkAllowlist(){
+        ArrayList<FirewallCommand> commands = new ArrayList<FirewallCommand>();
+        
+        if(threshold <= 0)
+            return commands;
+        
+        for(Integer network : members.keySet()){
+            HashSet<Integer> ips = members.get(network);
+            boolean allowed = allowlist.overlaps(network, prefix);
+            
+            if(aggregated.contains(network) && allowed){
+                //The IP rules first, so there isn't any gap
+                for(int member : ips)
+                    commands.add(new FirewallCommand(FirewallCommand.BAN, IpUtils.toIp(member)));
+                
+                commands.add(new FirewallCommand(FirewallCommand.UNBAN, cidr(network)));
+                aggregated.remove(network);
+            }
+            else if(!aggregated.contains(network) && !allowed && ips.size() >= threshold){
+                aggregated.add(network);
+                commands.add(new FirewallCommand(FirewallCommand.BAN, cidr(network)));
+                
+                for(int member : ips)
+                    commands.add(new FirewallCommand(FirewallCommand.UNBAN, IpUtils.toIp(member)));
+            }
+        }
+        
+        return commands;
+    }
+    
+    /**
+     * Gets the sources (IPs and networks) that should have a firewall rule
+     * @return The sources
+     */
+    public synchronized HashSet<String> getRules(){
+        HashSet<String> rules = new HashSet<String>();
+        
+        for(Integer network : members.keySet()){
+            if(aggregated.contains(network))
+                rules.add(cidr(network));
+            else
+                for(int member : members.get(network))
+                    rules.add(IpUtils.toIp(member));
+        }
+        
+        return rules;
+    }
+    
+    /**
+     * Gets a network in CIDR notation
+     * @param network The network
+     * @return The CIDR
+     */
+    private String cidr(int network){
+        return IpUtils.toIp(network)+"/"+prefix;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package Firewall;
+
+/**
+ * Class that represents an iptables command to ban or re-allow a source, or
+ * to read the rules or apply a batch of them (these have no source)
+ * @author Aaron Rodriguez Bueno
+ */
+public class FirewallCommand {
+    
+    //Command actions
+    public static final int BAN = 0;
+    public static final int UNBAN = 1;
+    public static final int READ = 2;       //iptables-save
+    public static final int RESTORE = 3;    //iptables-restore of a batch
+    
+    //Comment to recognize the rules of this agent
+    public static final String COMMENT = "CID";
+    
+    private final int action;
+    private final String source;
+    
+    /**
+     * Constructor
+     * @param action The action (BAN or UNBAN)
+     * @param source The IP to ban or re-allow
+     */
+    public FirewallCommand(int action, String source){
+        this.action = action;
+        this.source = source;
+    }
+    
+    /**
+     * Constructor
+     * @param action The action (READ or RESTORE)
+     */
+    public FirewallCommand(int action){
+        this(action, null);
+    }
+    
+    /**
+     * Gets the action
+     * @return BAN, UNBAN, READ or RESTORE
+     */
+    public int getAction(){
+        return action;
+    }
+    
+    /**
+     * Gets the source of the rule
+     * @return The IP (null for READ and RESTORE)
+     */
+    public String getSource(){
+        return source;
+    }
+    
+    /**
+     * Gets the arguments of the process to launch
+     * @return The command and its arguments
+     */
+    public String [] toArgs(){
+        if(action == READ)
+            return new String[] {"/sbin/iptables-save", "-t", "filter"};
+        if(action == RESTORE)
+            return new String[] {"/sbin/iptables-restore", "--noflush"};
+        
+        String option = (action == BAN) ? "-I" : "-D";
+        
+        return new String[] {"/sbin/iptables", option, "INPUT", "-s", source, 
+                            "-m", "comment", "--comment", COMMENT, "-j", "DROP"};
+    }
+    
+    /**
+     * Gets the rule in the iptables-restore format (just BAN and UNBAN)
+     * @return The rule
+     */
+    public String toRule(){
+        String option = (action == BAN) ? "-I" : "-D";
+        
+        return option+" INPUT -s "+source+" -m comment --comment "+COMMENT+" -j DROP";
+    }
+    
+    /**
+     * Gets the command as a String (just for logs)
+     * @return The command
+     */
+    @Override
+    public String toString(){
+        return String.join(" ", toArgs());
+    }
+}
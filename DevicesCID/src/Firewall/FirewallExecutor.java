@@ -0,0 +1,303 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package Firewall;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Class that launches the firewall commands out of the agent thread, with a 
+ * timeout for each one. The commands are applied one batch at a time, in
+ * the order they were queued (a BAN and an UNBAN of the same source can't
+ * overtake each other). The reads of the real rules go in the same order, so
+ * they see every command queued before them and none queued after them.
+ * The output of every process is drained and its exit code is checked, so the 
+ * failed commands can be recovered later with pollFailures()
+ * @author Aaron Rodriguez Bueno
+ */
+public class FirewallExecutor {
+    private final ThreadPoolExecutor lane;          //The commands and the reads, in order
+    private final ScheduledExecutorService killer;
+    private final long timeout;
+    
+    private final ConcurrentLinkedQueue<FirewallResult> failures;
+    
+    private final int maxOutput = 1024;
+    private final int maxReadOutput = 64*1024*1024;
+    
+    /**
+     * Constructor
+     * @param maxPending The maximum number of commands (or batches) waiting to be launched
+     * @param timeout The milliseconds before killing a process
+     */
+    public FirewallExecutor(int maxPending, long timeout){
+        this.timeout = timeout;
+        this.failures = new ConcurrentLinkedQueue<FirewallResult>();
+        
+        this.lane = new ThreadPoolExecutor(1, 1, 
+                                        60, TimeUnit.SECONDS, 
+                                        new ArrayBlockingQueue<Runnable>(maxPending),
+                                        runnable -> {
+                                            Thread t = new Thread(runnable, "firewall");
+                                            t.setDaemon(true);
+                                            return t;
+                                        });
+        this.lane.allowCoreThreadTimeOut(true);
+        
+        this.killer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                                            Thread t = new Thread(runnable, "firewall-timeout");
+                                            t.setDaemon(true);
+                                            return t;
+                                        });
+    }
+    
+    /**
+     * Queues several commands to be applied with just one iptables-restore process.
+     * If the batch fails, the commands are launched one by one. It never blocks the caller
+     * @param commands The commands
+     * @return true if they were queued, false if the queue is full (they are saved as failures)
+     */
+    public boolean submitBatch(List<FirewallCommand> commands){
+        return submitBatch(commands, null);
+    }
+    
+    /**
+     * Queues several commands to be applied with just one iptables-restore process.
+     * If the batch fails, the commands are launched one by one. It never blocks the caller
+     * @param commands The commands
+     * @param done The task to run when all the commands have finished, successfully
+     * or not (null if there isn't any)
+     * @return true if they were queued, false if the queue is full (they are saved as failures)
+     */
+    public boolean submitBatch(List<FirewallCommand> commands, Runnable done){
+        boolean queued = true;
+        ArrayList<FirewallCommand> batch = new ArrayList<FirewallCommand>(commands);
+        
+        if(!batch.isEmpty()){
+            try{
+                lane.execute(() -> {
+                    if(batch.size() == 1)
+                        record(run(batch.get(0)));
+                    else
+                        runBatch(batch);
+                    
+                    if(done != null)
+                        done.run();
+                });
+            }
+            catch(RejectedExecutionException e){
+                for(FirewallCommand command : batch)
+                    record(new FirewallResult(command, -1, "", false, true));
+                queued = false;
+            }
+        }
+        
+        if((!queued || batch.isEmpty()) && done != null)
+            done.run();
+        
+        return queued;
+    }
+    
+    /**
+     * Queues a reconciliation: after the commands already queued, the real
+     * rules are read with iptables-save and the commands computed from them
+     * are applied at once, before the commands queued later. It never blocks
+     * the caller
+     * @param diff Computes the commands to apply from the rules read
+     * @return When the commands were applied, or an exception if the rules 
+     * couldn't be read
+     */
+    public CompletableFuture<Void> reconcile(Function<String, List<FirewallCommand>> diff){
+        CompletableFuture<Void> future = new CompletableFuture<Void>();
+        FirewallCommand command = new FirewallCommand(FirewallCommand.READ);
+        
+        try{
+            lane.execute(() -> {
+                FirewallResult result = run(command, command.toArgs(), null, maxReadOutput);
+                
+                if(!result.isSuccess()){
+                    future.completeExceptionally(new IOException(result.toString()));
+                    return;
+                }
+                
+                ArrayList<FirewallCommand> batch = new ArrayList<FirewallCommand>(diff.apply(result.getOutput()));
+                if(batch.size() == 1)
+                    record(run(batch.get(0)));
+                else if(!batch.isEmpty())
+                    runBatch(batch);
+                
+                future.complete(null);
+            });
+        }
+        catch(RejectedExecutionException e){
+            future.completeExceptionally(e);
+        }
+        
+        return future;
+    }
+    
+    /**
+     * Extracts the failed commands since the last call
+     * @return The failed commands results
+     */
+    public ArrayList<FirewallResult> pollFailures(){
+        ArrayList<FirewallResult> failed = new ArrayList<FirewallResult>();
+        FirewallResult result;
+        
+        while((result = failures.poll()) != null)
+            failed.add(result);
+        
+        return failed;
+    }
+    
+    /**
+     * Gets the number of commands waiting or running
+     * @return The number of commands
+     */
+    public int getPending(){
+        return lane.getQueue().size() + lane.getActiveCount();
+    }
+    
+    /**
+     * Stops the executor. The queued commands are still launched
+     */
+    public void shutdown(){
+        lane.shutdown();
+        killer.shutdown();
+    }
+    
+    /**
+     * Saves the result of a command if it failed
+     * @param result The result
+     */
+    private void record(FirewallResult result){
+        if(!result.isSuccess())
+            failures.add(result);
+    }
+    
+    /**
+     * Applies a batch of commands with iptables-restore (or one by one if it fails)
+     * @param batch The commands
+     */
+    private void runBatch(ArrayList<FirewallCommand> batch){
+        StringBuilder rules = new StringBuilder("*filter\n");
+        
+        for(FirewallCommand command : batch)
+            rules.append(command.toRule()).append('\n');
+        rules.append("COMMIT\n");
+        
+        FirewallCommand restore = new FirewallCommand(FirewallCommand.RESTORE);
+        FirewallResult result = run(restore, restore.toArgs(), rules.toString(), maxOutput);
+        
+        if(!result.isSuccess()){
+            //iptables-restore applies everything or nothing
+            for(FirewallCommand command : batch)
+                record(run(command));
+        }
+    }
+    
+    /**
+     * Launches the process of a command, drains its output and waits for it
+     * @param command The command
+     * @return The result
+     */
+    private FirewallResult run(FirewallCommand command){
+        return run(command, command.toArgs(), null, maxOutput);
+    }
+    
+    /**
+     * Launches a process, drains its output and waits for it (the benchmarks
+     * replace it, in RecordingFirewall, to not run the real commands)
+     * @param command The command to save in the result
+     * @param args The process arguments
+     * @param input The input for the process (null if there isn't any)
+     * @param limit The maximum number of bytes of the output to save
+     * @return The result
+     */
+    protected FirewallResult run(FirewallCommand command, String [] args, String input, int limit){
+        Process process;
+        
+        try{
+            process = new ProcessBuilder(args).redirectErrorStream(true).start();
+        }
+        catch(IOException e){
+            return new FirewallResult(command, -1, e.getMessage(), false, false);
+        }
+        
+        //If the process doesn't finish in time, we kill it (and its output is closed)
+        AtomicBoolean killed = new AtomicBoolean(false);
+        ScheduledFuture<?> kill = killer.schedule(() -> {
+                                            killed.set(true);
+                                            process.destroyForcibly();
+                                        }, timeout, TimeUnit.MILLISECONDS);
+        
+        try{
+            OutputStream out = process.getOutputStream();
+            if(input != null)
+                out.write(input.getBytes(StandardCharsets.UTF_8));
+            out.close();
+        }
+        catch(IOException e){
+            //The process finished or was killed, its exit code will tell
+        }
+        
+        String output = drain(process.getInputStream(), limit);
+        int exitCode;
+        
+        try{
+            exitCode = process.waitFor();
+        }
+        catch(InterruptedException e){
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+            exitCode = -1;
+        }
+        kill.cancel(false);
+        
+        return new FirewallResult(command, exitCode, output, killed.get(), false);
+    }
+    
+    /**
+     * Reads the whole output of a process, saving just the first bytes
+     * @param in The process output
+     * @param limit The maximum number of bytes to save
+     * @return The first characters of the output
+     */
+    private String drain(InputStream in, int limit){
+        byte [] buffer = new byte[4096];
+        ByteArrayOutputStream saved = new ByteArrayOutputStream();
+        int read;
+        
+        try{
+            while((read = in.read(buffer)) != -1){
+                int toSave = Math.min(read, limit - saved.size());
+                saved.write(buffer, 0, toSave);
+            }
+            in.close();
+        }
+        catch(IOException e){
+            //The process was killed
+        }
+        
+        return new String(saved.toByteArray(), StandardCharsets.UTF_8).trim();
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package Firewall;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class that keeps in memory the rules of this agent that are in the firewall, 
+ * so just the needed changes are applied (and no duplicated rules are inserted).
+ * The real rule set is loaded from an iptables-save output and compared with 
+ * the desired one.
+ * @author Aaron Rodriguez Bueno
+ */
+public class FirewallReconciler {
+    
+    private final HashSet<String> applied;
+    private boolean dirty;
+    
+    /**
+     * Constructor
+     */
+    public FirewallReconciler(){
+        applied = new HashSet<String>();
+        dirty = true;   //We don't know the real rules yet
+    }
+    
+    /**
+     * Takes the desired rules as the real ones, when a reconciliation is
+     * queued (the commands filtered later go after it)
+     * @param desired The sources (IPs and networks) that should have a rule
+     */
+    public synchronized void reset(Collection<String> desired){
+        applied.clear();
+        applied.addAll(desired);
+        dirty = false;
+    }
+    
+    /**
+     * Computes the commands to change the real rules into the desired ones.
+     * The duplicated rules are deleted too
+     * @param save The iptables-save output
+     * @param desired The sources (IPs and networks) that should have a rule
+     * @return The commands to apply
+     */
+    public ArrayList<FirewallCommand> reconcile(String save, Collection<String> desired){
+        ArrayList<FirewallCommand> commands = new ArrayList<FirewallCommand>();
+        HashMap<String, Integer> current = parse(save);
+        
+        //Missing rules
+        for(String source : desired){
+            if(!current.containsKey(source))
+                commands.add(new FirewallCommand(FirewallCommand.BAN, source));
+        }
+        
+        //Rules that aren't needed anymore, and duplicated rules
+        for(Map.Entry<String, Integer> rule : current.entrySet()){
+            int toDelete = desired.contains(rule.getKey()) ? rule.getValue() - 1 : rule.getValue();
+            
+            for(int i = 0; i < toDelete; i++)
+                commands.add(new FirewallCommand(FirewallCommand.UNBAN, rule.getKey()));
+        }
+        
+        return commands;
+    }
+    
+    /**
+     * Filters the commands that would not change anything (inserting a rule
+     * that already exists or deleting one that doesn't exist)
+     * @param commands The commands to apply
+     * @return The commands that are needed
+     */
+    public synchronized ArrayList<FirewallCommand> filter(List<FirewallCommand> commands){
+        ArrayList<FirewallCommand> needed = new ArrayList<FirewallCommand>();
+        
+        for(FirewallCommand command : commands){
+            boolean changed;
+            
+            if(command.getAction() == FirewallCommand.BAN)
+                changed = applied.add(command.getSource());
+            else
+                changed = applied.remove(command.getSource());
+            
+            if(changed)
+                needed.add(command);
+        }
+        
+        return needed;
+    }
+    
+    /**
+     * Warns that a command failed, so the rules in memory are not reliable
+     * until the next reconcile
+     * @param command The failed command
+     */
+    public synchronized void failed(FirewallCommand command){
+        if(command.getAction() == FirewallCommand.BAN)
+            applied.remove(command.getSource());
+        dirty = true;
+    }
+    
+    /**
+     * Warns that the real rules couldn't be loaded, so they must be loaded again
+     */
+    public synchronized void invalidate(){
+        dirty = true;
+    }
+    
+    /**
+     * Checks if the real rules must be loaded again
+     * @return true if they must be loaded, false otherwise
+     */
+    public synchronized boolean isDirty(){
+        return dirty;
+    }
+    
+    /**
+     * Gets the number of rules of this agent in the firewall
+     * @return The number of rules
+     */
+    public synchronized int size(){
+        return applied.size();
+    }
+    
+    /**
+     * Extracts the rules of this agent from an iptables-save output
+     * @param save The output
+     * @return Every source and its number of rules
+     */
+    private HashMap<String, Integer> parse(String save){
+        HashMap<String, Integer> rules = new HashMap<String, Integer>();
+        String [] lines = save.split("\n");
+        String comment = "--comment "+FirewallCommand.COMMENT+" ";
+        
+        for(String line : lines){
+            if(line.startsWith("-A INPUT ") && line.contains(comment) && line.endsWith("-j DROP")){
+                String [] parts = line.split(" ");
+                
+                for(int i = 0; i < parts.length - 1; i++){
+                    if(parts[i].equals("-s")){
+                        String source = parts[i+1];
+                        if(source.endsWith("/32"))
+                            source = source.substring(0, source.length() - 3);
+                        
+                        Integer count = rules.get(source);
+                        rules.put(source, (count == null) ? 1 : count + 1);
+                    }
+                }
+            }
+        }
+        
+        return rules;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package Firewall;
+
+/**
+ * Class that saves the result of an executed FirewallCommand
+ * @author Aaron Rodriguez Bueno
+ */
+public class FirewallResult {
+    private final FirewallCommand command;
+    private final int exitCode;
+    private final String output;
+    private final boolean timedOut;
+    private final boolean rejected;
+    
+    /**
+     * Constructor
+     * @param command The executed command
+     * @param exitCode The exit code of the process (-1 if it didn't finish)
+     * @param output The first characters of the process output
+     * @param timedOut If the process was killed because it took too long
+     * @param rejected If the command wasn't executed because the executor was full
+     */
+    public FirewallResult(FirewallCommand command, int exitCode, String output, boolean timedOut, boolean rejected){
+        this.command = command;
+        this.exitCode = exitCode;
+        this.output = output;
+        this.timedOut = timedOut;
+        this.rejected = rejected;
+    }
+    
+    /**
+     * Gets the executed command
+     * @return The command
+     */
+    public FirewallCommand getCommand(){
+        return command;
+    }
+    
+    /**
+     * Gets the process output
+     * @return The output
+     */
+    public String getOutput(){
+        return output;
+    }
+    
+    /**
+     * Gets if the command was applied
+     * @return true if everything was correct, false otherwise
+     */
+    public boolean isSuccess(){
+        return !timedOut && !rejected && exitCode == 0;
+    }
+    
+    /**
+     * Gets the result as a String (just for logs)
+     * @return The result
+     */
+    @Override
+    public String toString(){
+        String res;
+        
+        if(rejected)
+            res = "rejected (firewall queue is full)";
+        else if(timedOut)
+            res = "timed out";
+        else
+            res = "exit code "+exitCode;
+        
+        return command.toString()+": "+res;
+    }
+}
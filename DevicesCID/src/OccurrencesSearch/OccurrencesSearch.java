@@ -13,6 +13,10 @@ import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import myagent.Allowlist;
 import org.apache.commons.lang3.StringUtils;
 
 /**
@@ -22,12 +26,14 @@ import org.apache.commons.lang3.StringUtils;
  */
 public class OccurrencesSearch {
     private String file;
+    private volatile Allowlist allowlist;
     
     /**
      * Default constructor
      */
     public OccurrencesSearch(){
         file = new String();
+        allowlist = new Allowlist();
     }
     
     /**
@@ -36,6 +42,7 @@ public class OccurrencesSearch {
      */
     public OccurrencesSearch(String filename){
         file = filename;
+        allowlist = new Allowlist();
     }
     
     /**
@@ -54,6 +61,14 @@ public class OccurrencesSearch {
         file = filename;
     }
     
+    /**
+     * To set the IPs that are never counted (our own hosts)
+     * @param allowlist The allowlist
+     */
+    public void setAllowlist(Allowlist allowlist){
+        this.allowlist = allowlist;
+    }
+    
     /**
      * Searchs the IPs in a authentication log file that they tried to connect by SSH 
      * and extracts too the number of trys and the date and time of the first try 
@@ -69,112 +84,161 @@ public class OccurrencesSearch {
         if(file != null){
             //Opening the file
             try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-                String line, last_line = "", ip, format = "yyyy MMM dd HH:mm:ss";
-                Date date, current_date, last_cycle;
-                Calendar calendar;
-                String [] parts;
-                
-                
-                current_date = Calendar.getInstance().getTime();                
-                calendar = Calendar.getInstance();
-                calendar.setTime(current_date);
+                Date now = Calendar.getInstance().getTime();
+                search(br.lines().iterator(), occurrences, new Date(now.getTime()-seconds*1000), now);
+            }
+            catch(Exception ex){
+                System.out.println("Error in occurrencessearch method search: "+ex.toString());
+            }
+        }
+        
+        //Return the list with the IPs with the equal or greater number of occurrences
+        return occurrences.occurrencesWithNumberAboveOrEqual(number);
+    }
+    
+    /**
+     * Searchs the IPs in some lines of an authentication log (already read) that 
+     * they tried to connect by SSH, like searchOccurrences(number, seconds)
+     * @param lines The lines of the log
+     * @param number The number minimum that they tried to connect 
+     * @param seconds The seconds before now to start to count trys
+     * @return The list with the IPs that passes the number of trys and the time
+     */
+    public OccurrencesList searchOccurrences(List<String> lines, int number, int seconds){
+        Date now = Calendar.getInstance().getTime();
+        
+        return searchOccurrences(lines, number, new Date(now.getTime()-seconds*1000), now);
+    }
+    
+    /**
+     * Searchs the IPs in some lines of an authentication log (already read) that 
+     * they tried to connect by SSH between two dates
+     * @param lines The lines of the log
+     * @param number The number minimum that they tried to connect 
+     * @param from The date to start to count trys
+     * @param to The date to finish to count trys
+     * @return The list with the IPs that passes the number of trys and the time
+     */
+    public OccurrencesList searchOccurrences(List<String> lines, int number, Date from, Date to){
+        OccurrencesList occurrences = new OccurrencesList();
+        
+        try{
+            search(lines.iterator(), occurrences, from, to);
+        }
+        catch(Exception ex){
+            System.out.println("Error in occurrencessearch method search: "+ex.toString());
+        }
+        
+        return occurrences.occurrencesWithNumberAboveOrEqual(number);
+    }
+    
+    /**
+     * Adds the SSH occurrences of the lines between two dates
+     * @param lines The lines of the log
+     * @param occurrences The list to fill
+     * @param from The date to start to count trys
+     * @param to The date to finish to count trys
+     * @throws Exception If a date can't be read
+     */
+    private void search(Iterator<String> lines, OccurrencesList occurrences, Date from, Date to) throws Exception{
+        String line, last_line = "", ip, format = "yyyy MMM dd HH:mm:ss";
+        Date date, current_date, last_cycle;
+        Calendar calendar;
+        String [] parts;
+        
+        
+        current_date = Calendar.getInstance().getTime();                
+        calendar = Calendar.getInstance();
+        calendar.setTime(current_date);
 
-                //Then we take the current year
-                String year = Integer.toString(calendar.get(Calendar.YEAR));
-                
-                //For the first cycle we need last_cycle
-                last_cycle = new Date(current_date.getTime()-seconds*1000); 
+        //Then we take the current year
+        String year = Integer.toString(calendar.get(Calendar.YEAR));
+        
+        //The dates to compare
+        last_cycle = from;
+            
+        //Looking for valid IPs at the time given
+        while (lines.hasNext()) {
+            line = lines.next();
+            if(line.contains("sshd")){    //An ssh occurrence
+                if(line.contains("refused connect") ||      //Refused connect
+                        line.contains("Invalid user") ||    //Invalid user
+                        (line.contains("Failed password") && 
+                            last_line.contains("sshd") &&
+                            last_line.contains("last message repeated")
+                        )){     //Valid user but invalid password (3 times)
                     
-                //Looking for valid IPs at the time given
-                while ((line = br.readLine()) != null) {
-                    if(line.contains("sshd")){    //An ssh occurrence
-                        if(line.contains("refused connect") ||      //Refused connect
-                                line.contains("Invalid user") ||    //Invalid user
-                                (line.contains("Failed password") && 
-                                    last_line.contains("sshd") &&
-                                    last_line.contains("last message repeated")
-                                )){     //Valid user but invalid password (3 times)
-                            
-                            //Checking date and time
-                            parts = line.split(" ");
+                    //Checking date and time
+                    parts = line.split(" ");
 
 
-                            //First we take the month, day and time
-                            String month = parts[0];
-                            String day, time;
-                            if(StringUtils.isNumeric(parts[1])){
-                                day = parts[1];
-                                time = parts[2];
-                            }
-                            else{   //Sometimes we have to get pos 2
-                                day = parts[2];
-                                time = parts[3];
-                            }
-
-                            //Now we change the string into a valid date
-                            switch(month){
-                                case "Jan":
-                                    month = "Ene";
-                                    break;
-                                case "Apr":
-                                    month = "Abr";
-                                    break;
-                                case "Aug":
-                                    month = "Oct";
-                                    break;
-                                case "Dec":
-                                    month = "Dic";
-                                    break;
-                            }
-                            
-                            date = new SimpleDateFormat(format).parse(year+" "+month+" "+day+" "+time);
+                    //First we take the month, day and time
+                    String month = parts[0];
+                    String day, time;
+                    if(StringUtils.isNumeric(parts[1])){
+                        day = parts[1];
+                        time = parts[2];
+                    }
+                    else{   //Sometimes we have to get pos 2
+                        day = parts[2];
+                        time = parts[3];
+                    }
 
-                            //If the date with the current year is after the current date 
-                            //(when the current year changed), we take the last year before this one
-                            if(date.after(current_date)){
-                                year = Integer.toString(calendar.get(Calendar.YEAR)-1);
-                                date = new SimpleDateFormat(format).parse(year+" "+month+" "+day+" "+time);
-                            }
+                    //Now we change the string into a valid date
+                    switch(month){
+                        case "Jan":
+                            month = "Ene";
+                            break;
+                        case "Apr":
+                            month = "Abr";
+                            break;
+                        case "Aug":
+                            month = "Oct";
+                            break;
+                        case "Dec":
+                            month = "Dic";
+                            break;
+                    }
+                    
+                    date = new SimpleDateFormat(format, Locale.ENGLISH).parse(year+" "+month+" "+day+" "+time);
 
-                            //Finally, we compare if the new date and time are between this cycle
-                            //and the last one
-                            if(date.after(last_cycle) && date.before(current_date)){
-                                
-                                //Taking the IP
-                                if(line.contains("refused connect")){
-                                    ip = line.substring(line.indexOf("(") + 1);
-                                    ip = ip.substring(0, ip.indexOf(")"));
-                                }
-                                else if(line.contains("Invalid user")){
-                                    ip = parts[parts.length-1];
-                                }
-                                else if(line.contains("Failed password") &&
-                                        last_line.contains("sshd") && 
-                                        last_line.contains("last message repeated")){
-                                    ip = parts[parts.length-4];
-                                }
-                                else{
-                                    ip = "";
-                                    System.out.println("ERROR TAKING IP (no matches found)");
-                                }
+                    //If the date with the current year is after the current date 
+                    //(when the current year changed), we take the last year before this one
+                    if(date.after(current_date)){
+                        year = Integer.toString(calendar.get(Calendar.YEAR)-1);
+                        date = new SimpleDateFormat(format, Locale.ENGLISH).parse(year+" "+month+" "+day+" "+time);
+                    }
 
-                                if(!ip.equals("")){
-                                    occurrences.addOccurrence(ip, new SimpleDateFormat(format).format(date));
-                                }
+                    //Finally, we compare if the new date and time are between this cycle
+                    //and the last one
+                    if(date.after(last_cycle) && date.before(to)){
+                        
+                        //Taking the IP
+                        if(line.contains("refused connect")){
+                            ip = line.substring(line.indexOf("(") + 1);
+                            ip = ip.substring(0, ip.indexOf(")"));
+                        }
+                        else if(line.contains("Invalid user")){
+                            ip = parts[parts.length-1];
+                        }
+                        else if(line.contains("Failed password") &&
+                                last_line.contains("sshd") && 
+                                last_line.contains("last message repeated")){
+                            ip = parts[parts.length-4];
+                        }
+                        else{
+                            ip = "";
+                            System.out.println("ERROR TAKING IP (no matches found)");
+                        }
 
-                            }
+                        if(!ip.equals("") && !allowlist.contains(ip)){
+                            occurrences.addOccurrence(ip, new SimpleDateFormat(format, Locale.ENGLISH).format(date));
                         }
+
                     }
-                    last_line = line;
                 }
-               br.close();
-            }
-            catch(Exception ex){
-                System.out.println("Error in occurrencessearch method search: "+ex.toString());
             }
+            last_line = line;
         }
-        
-        //Return the list with the IPs with the equal or greater number of occurrences
-        return occurrences.occurrencesWithNumberAboveOrEqual(number);
     }
 }
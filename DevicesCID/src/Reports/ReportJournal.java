@@ -0,0 +1,184 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package Reports;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Class that saves the IP attackers not acknowledged by the server yet. Every
+ * batch of IPs gets a sequence number (always increasing), and the server 
+ * acknowledges the highest one it has saved, so just the entries after that 
+ * watermark are sent again.
+ * The file format is a first row "watermark   lastSequence   ackSequence", and
+ * then a row "sequence   IP   date1   date2   ..." for every entry
+ * @author Aaron Rodriguez Bueno
+ */
+public class ReportJournal {
+    private final String filename;
+    private long lastSequence;
+    private long ackSequence;
+    private final ArrayList<Long> sequences;
+    private final ArrayList<ArrayList<String>> entries;
+    
+    /**
+     * Constructor. It loads the file (or creates it if it doesn't exist)
+     * @param filename The file name
+     * @throws IOException 
+     */
+    public ReportJournal(String filename) throws IOException{
+        this.filename = filename;
+        this.sequences = new ArrayList<Long>();
+        this.entries = new ArrayList<ArrayList<String>>();
+        
+        //Without journal, we start with the current time, so the sequence
+        //numbers are still higher than the ones the server has
+        this.lastSequence = System.currentTimeMillis();
+        this.ackSequence = lastSequence;
+        
+        File file = new File(filename);
+        if(file.exists() && file.isFile())
+            load();
+        else
+            save();
+    }
+    
+    /**
+     * Adds a new batch of entries with the next sequence number
+     * @param batch The entries (IP, date1, date2, ...)
+     * @return The sequence number of the batch
+     * @throws IOException 
+     */
+    public synchronized long addBatch(ArrayList<ArrayList<String>> batch) throws IOException{
+        lastSequence++;
+        
+        for(ArrayList<String> entry : batch){
+            sequences.add(lastSequence);
+            entries.add(new ArrayList<String>(entry));
+        }
+        save();
+        
+        return lastSequence;
+    }
+    
+    /**
+     * Removes the entries acknowledged by the server
+     * @param sequence The highest sequence number saved by the server
+     * @throws IOException 
+     */
+    public synchronized void acknowledge(long sequence) throws IOException{
+        if(sequence > ackSequence){
+            ackSequence = Math.min(sequence, lastSequence);
+            
+            int acked = 0;
+            while(acked < sequences.size() && sequences.get(acked) <= ackSequence)
+                acked++;
+            
+            sequences.subList(0, acked).clear();
+            entries.subList(0, acked).clear();
+            save();
+        }
+    }
+    
+    /**
+     * Gets the entries not acknowledged yet
+     * @return The entries (IP, date1, date2, ...)
+     */
+    public synchronized ArrayList<ArrayList<String>> getPending(){
+        return new ArrayList<ArrayList<String>>(entries);
+    }
+    
+    /**
+     * Gets the number of entries not acknowledged yet
+     * @return The number of entries
+     */
+    public synchronized int size(){
+        return entries.size();
+    }
+    
+    /**
+     * Gets the sequence numbers of the entries not acknowledged yet
+     * @return The sequence numbers (one for every entry)
+     */
+    public synchronized ArrayList<Long> getPendingSequences(){
+        return new ArrayList<Long>(sequences);
+    }
+    
+    /**
+     * Gets the last sequence number
+     * @return The sequence number
+     */
+    public synchronized long getLastSequence(){
+        return lastSequence;
+    }
+    
+    /**
+     * Gets the highest sequence number acknowledged by the server
+     * @return The sequence number
+     */
+    public synchronized long getAckSequence(){
+        return ackSequence;
+    }
+    
+    /**
+     * Reads the file
+     * @throws IOException 
+     */
+    private void load() throws IOException{
+        String line;
+        String [] parts;
+        
+        try (BufferedReader br = new BufferedReader(new FileReader(filename))) {
+            while ((line = br.readLine()) != null) {
+                parts = line.split("\t");
+                
+                if(parts[0].equals("watermark") && parts.length == 3){
+                    lastSequence = Long.parseLong(parts[1]);
+                    ackSequence = Long.parseLong(parts[2]);
+                }
+                else if(parts.length > 1){
+                    ArrayList<String> entry = new ArrayList<String>();
+                    for(int i = 1; i < parts.length; i++)
+                        entry.add(parts[i]);
+                    
+                    sequences.add(Long.parseLong(parts[0]));
+                    entries.add(entry);
+                }
+            }
+        }
+        catch(NumberFormatException e){
+            throw new IOException("Bad format in the file "+filename);
+        }
+    }
+    
+    /**
+     * Writes the file (first an aux file, that is renamed later)
+     * @throws IOException 
+     */
+    private void save() throws IOException{
+        File tempFile = new File(filename+".aux");
+        
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(tempFile))) {
+            writer.write("watermark\t"+lastSequence+"\t"+ackSequence);
+            writer.newLine();
+            
+            for(int i = 0; i < entries.size(); i++){
+                writer.write(Long.toString(sequences.get(i)));
+                for(String field : entries.get(i))
+                    writer.write("\t"+field);
+                writer.newLine();
+            }
+        }
+        
+        if(!tempFile.renameTo(new File(filename)))
+            throw new IOException("Error renaming the file "+tempFile.getName());
+    }
+}
@@ -1,9 +1,22 @@
 package deviceAgents;
 
 import ConfigFile.ConfigFile;
+import Detectors.LogDetector;
+import Detectors.LogTailer;
 import DiskLogger.DiskLogger;
+import Firewall.BanTable;
+import Firewall.CidrAggregator;
+import Firewall.FirewallExecutor;
 import es.upv.dsic.gti_ia.core.AgentID;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
 import es.upv.dsic.gti_ia.core.AgentsConnection;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import myagent.AgentLog;
+import myagent.Allowlist;
+import myagent.Tracer;
 
 /**
  * Class that launches the device agents
@@ -29,12 +42,35 @@ public class InitAgents {
             sshagent =      "",
             serveragent =   "ServerAgent",
             sshfilename =   "/var/log/auth.log",
-            sshlog =        "sshagent_log.json";
+            sshlog =        "sshagent_log.json",
+            encoding =      "compact",
+            tracefile =     "";
         int port =          6000,
             seconds =       300,
             attempts =      5,
-            lines =         1000;
-        boolean ssl =       false;
+            lines =         1000,
+            firewallqueue = 1000,
+            firewalltimeout = 10,
+            bantime =       -1,
+            maxbantime =    86400,
+            aggregateprefix = 24,
+            aggregatethreshold = 16,
+            aggregatesplit = 8,
+            replytimeout =  30,
+            heartbeatseconds = 30,
+            configwatch =   5,
+            backfillhours = 24,
+            backfillrate =  50000,
+            snapshotseconds = 60;
+        double banescalation = 1.0;
+        boolean ssl =       false,
+            logecho =       true;
+        String loglevel =   "info";
+        double lograte =    5;
+        int logsummaryseconds = 10;
+        JsonValue detectorsConfig = null;
+        ArrayList<String> allowlistNetworks = new ArrayList<String>();
+        String allowlistfile = "";
         
         DiskLogger dlogger;
         
@@ -81,13 +117,98 @@ public class InitAgents {
                 sshagent = Config.config.get("sshagent").asString();
             if (Config.config.get("attempts")!=null)
                 attempts = Config.config.get("attempts").asInt();
+            if (Config.config.get("firewallqueue")!=null)
+                firewallqueue = Config.config.get("firewallqueue").asInt();
+            if (Config.config.get("firewalltimeout")!=null)
+                firewalltimeout = Config.config.get("firewalltimeout").asInt();
+            if (Config.config.get("bantime")!=null)
+                bantime = Config.config.get("bantime").asInt();
+            if (Config.config.get("maxbantime")!=null)
+                maxbantime = Config.config.get("maxbantime").asInt();
+            if (Config.config.get("banescalation")!=null)
+                banescalation = Config.config.get("banescalation").asDouble();
+            if (Config.config.get("encoding")!=null)
+                encoding = Config.config.get("encoding").asString();
+            if (Config.config.get("aggregateprefix")!=null)
+                aggregateprefix = Config.config.get("aggregateprefix").asInt();
+            if (Config.config.get("aggregatethreshold")!=null)
+                aggregatethreshold = Config.config.get("aggregatethreshold").asInt();
+            if (Config.config.get("aggregatesplit")!=null)
+                aggregatesplit = Config.config.get("aggregatesplit").asInt();
+            if (Config.config.get("replytimeout")!=null)
+                replytimeout = Config.config.get("replytimeout").asInt();
+            if (Config.config.get("heartbeatseconds")!=null)
+                heartbeatseconds = Config.config.get("heartbeatseconds").asInt();
+            if (Config.config.get("configwatch")!=null)
+                configwatch = Config.config.get("configwatch").asInt();
+            if (Config.config.get("tracefile")!=null)
+                tracefile = Config.config.get("tracefile").asString();
+            if (Config.config.get("backfillhours")!=null)
+                backfillhours = Config.config.get("backfillhours").asInt();
+            if (Config.config.get("backfillrate")!=null)
+                backfillrate = Config.config.get("backfillrate").asInt();
+            if (Config.config.get("snapshotseconds")!=null)
+                snapshotseconds = Config.config.get("snapshotseconds").asInt();
+            if (Config.config.get("detectors")!=null)
+                detectorsConfig = Config.config.get("detectors");
+            if (Config.config.get("allowlist")!=null && Config.config.get("allowlist").isArray())
+                for (JsonValue network : Config.config.get("allowlist").asArray())
+                    allowlistNetworks.add(network.asString());
+            if (Config.config.get("allowlistfile")!=null)
+                allowlistfile = Config.config.get("allowlistfile").asString();
+            if (Config.config.get("logecho")!=null)
+                logecho = Config.config.get("logecho").asBoolean();
+            if (Config.config.get("loglevel")!=null)
+                loglevel = Config.config.get("loglevel").asString();
+            if (Config.config.get("lograte")!=null)
+                lograte = Config.config.get("lograte").asDouble();
+            if (Config.config.get("logsummaryseconds")!=null)
+                logsummaryseconds = Config.config.get("logsummaryseconds").asInt();
         }
         
+        //By default, an IP is banned for two runs
+        if (bantime < 0)
+            bantime = 2*seconds;
+        
+        //The detectors of the device (by default, just the SSH one)
+        ArrayList<LogDetector> detectors = new ArrayList<LogDetector>();
+        if (detectorsConfig == null || !detectorsConfig.isArray())  {
+            detectors.add(LogDetector.create(LogDetector.SSH, sshfilename, lines, attempts));
+        }
+        else  {
+            for (JsonValue value : detectorsConfig.asArray())  {
+                JsonObject detector = value.asObject();
+                String kind = detector.getString("kind", LogDetector.SSH);
+                LogDetector created = LogDetector.create(kind, 
+                                                detector.getString("logfile", sshfilename), 
+                                                detector.getInt("lines", lines), 
+                                                detector.getInt("attempts", attempts));
+                if (created == null)
+                    System.err.println("*** Unknown kind of detector \""+kind+"\"");
+                else
+                    detectors.add(created);
+            }
+        }
+        System.out.println("Detectors: "+detectors);
+        
+        //The networks that are never counted nor banned
+        Allowlist allowlist = new Allowlist();
+        try{
+            List<String> wrong = allowlist.load(allowlistNetworks, allowlistfile);
+            if (!wrong.isEmpty())
+                System.err.println("*** Wrong networks in the allowlist: "+wrong);
+        }
+        catch(IOException ex){
+            System.err.println("*** Error loading the allowlist file ["+allowlistfile+"]");
+        }
+        System.out.println("Allowlist: "+allowlist.size()+" networks");
+        
         //Creating the logs
         System.out.println("\nCreating log ... "+sshlog);
         dlogger = new DiskLogger(sshlog);
         if (!dlogger.Init())
             System.err.println("*** SSH: Error creating logs file.");
+        dlogger.setEcho(logecho);
         
         // We connect with Magentix server     
         try{
@@ -102,8 +223,31 @@ public class InitAgents {
         // We try to initialize and start the device agents
         try {
             if(!sshagent.equals("")){
-                SSH sshAgent = new SSH(new AgentID(sshagent),new AgentID(serveragent), dlogger, sshfilename, seconds, attempts, lines);
+                FirewallExecutor firewall = new FirewallExecutor(firewallqueue, firewalltimeout*1000L);
+                BanTable banTable = new BanTable(bantime*1000L, maxbantime*1000L, banescalation, System.currentTimeMillis());
+                CidrAggregator aggregator = new CidrAggregator(aggregateprefix, aggregatethreshold, aggregatesplit);
+                SSH sshAgent = new SSH(new AgentID(sshagent),new AgentID(serveragent), dlogger, sshfilename, seconds, attempts, lines, 
+                                        firewall, banTable, aggregator);
+                sshAgent.setPreferredEncoding(encoding);
+                sshAgent.setReplyTimeout(replytimeout);
+                sshAgent.setHeartbeatSeconds(heartbeatseconds);
+                
+                //All the detectors in one agent: one connection, one thread pool and one reading of every log
+                sshAgent.setDetectors(detectors);
+                sshAgent.setAllowlist(allowlist);
+                sshAgent.getLog().setLevel(AgentLog.parseLevel(loglevel, AgentLog.INFO));
+                sshAgent.getLog().setRate(lograte);
+                sshAgent.getLog().setSummarySeconds(logsummaryseconds);
+                sshAgent.setLogTailer(new LogTailer());
+                sshAgent.setBackfill(backfillhours, backfillrate);
+                sshAgent.setSnapshotSeconds(snapshotseconds);
+                if(!tracefile.equals(""))
+                    sshAgent.setTracer(new Tracer(sshagent, tracefile));
                 sshAgent.start();
+                
+                //The changes of the configuration file are applied without restarting
+                if(configwatch > 0)
+                    Config.watch(configwatch*1000L, sshAgent);
             }
 
         } catch(Exception ex) {
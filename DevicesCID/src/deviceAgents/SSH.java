@@ -1,13 +1,26 @@
 package deviceAgents;
 
+import ConfigFile.ConfigChange;
+import ConfigFile.ConfigListener;
+import Detectors.LogBackfill;
+import Detectors.LogDetector;
+import Detectors.LogTailer;
+import Detectors.SshDetector;
 import DiskLogger.DiskLogger;
+import Firewall.BanTable;
+import Firewall.CidrAggregator;
+import Firewall.FirewallCommand;
+import Firewall.FirewallExecutor;
+import Firewall.FirewallReconciler;
+import Firewall.FirewallResult;
 import IPLogger.IpLogger;
 import Occurrences.OccurrencesCounter;
 import Occurrences.OccurrencesList;
-import OccurrencesSearch.OccurrencesSearch;
+import Reports.ReportJournal;
 import com.eclipsesource.json.Json;
 import com.eclipsesource.json.JsonArray;
 import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
 import es.upv.dsic.gti_ia.core.ACLMessage;
 import es.upv.dsic.gti_ia.core.AgentID;
 import java.io.BufferedWriter;
@@ -16,16 +29,40 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.net.MalformedURLException;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import myagent.AgentLog;
+import myagent.Allowlist;
+import myagent.AttackReportCodec;
+import myagent.IpUtils;
 import myagent.MyAgent;
-import onmessage.MessageQueue;
+import myagent.SnapshotFile;
+import myagent.Tracer;
 import org.apache.commons.io.input.ReversedLinesFileReader;
 
 /**
@@ -33,7 +70,7 @@ import org.apache.commons.io.input.ReversedLinesFileReader;
  * 
  * @author Aaron Rodriguez Bueno
  */
-public class SSH extends MyAgent{
+public class SSH extends MyAgent implements ConfigListener{
 
     /***************************************************
      ***************CLASS MEMBER DATA***************
@@ -44,34 +81,62 @@ public class SSH extends MyAgent{
     private static final int LOOP = 1;
     private static final int FINALIZE = 2;
     private static final int CANCEL_SUBS = 3;
-    private static final int CHECK_AUTH_LOG = 4;
-    private static final int RE_ALLOW_IPS = 5;
-    private static final int BAN_IPS = 6;
-    private static final int SEND_IPS = 7;
-    private static final int WAIT = 8;
-    private static final int PREVENT_ATTACKS = 9;
+    private static final String [] STATE_NAMES = {"SUBS_TO_SERVER", "LOOP", "FINALIZE", "CANCEL_SUBS"};
     private int state;
     
+    //Format of the snapshot of the state
+    private static final int SNAPSHOT_KIND = 1;
+    private static final int SNAPSHOT_VERSION = 1;
+    
     private final AgentID server;
-    private final String authlogfilename;
-    private String conversWithServer, replyWithServer;
+    private volatile String conversWithServer;
+    private String replyWithServer;
     private boolean finish;
+    private String preferredEncoding;
+    private volatile boolean compact;
+    private volatile long replyTimeout;
+    private int heartbeatSeconds;
+    private final AtomicBoolean resubscribing;      //If a new subscription was sent and isn't answered yet
     
     private int seconds;
-    private int attempts;
-    private int lines;
+    
+    //The detectors of attackers in the logs, and the last lines of their logs
+    private volatile List<LogDetector> detectors;
+    private volatile LogTailer tailer;
+    
+    //The IPs that are never counted nor banned (shared with the detectors)
+    private volatile Allowlist allowlist;
+    
+    //The attackers found in the logs of the time the agent wasn't running
+    private final ConcurrentLinkedQueue<OccurrencesCounter> backfilled;
+    private int backfillHours;
+    private int backfillRate;
+    
+    //Seconds between the snapshots of the state (0 to not save them)
+    private int snapshotSeconds;
+    private volatile long snapshotBytes;
+    
+    //Configuration changes not applied yet (they are applied before scanning the log)
+    private final ConcurrentLinkedQueue<ConfigChange> configChanges;
     
     private DiskLogger dlogger; 
+    private FirewallExecutor firewall;
+    private BanTable banTable;
+    private CidrAggregator aggregator;
+    private FirewallReconciler reconciler;
+    private final Object firewallLock;              //The bans, the rules and the firewall queue change together
+    private ReportJournal journal;
     private final int dimQueue = 100;
-    private MessageQueue messagesQueue;
     
-    private final String ips_to_send_filename = "tmp/send_ips.tmp";
-    private final String ips_to_ban_filename = "tmp/ban_ips.tmp";
-    private final String ips_to_reallow_filename = "tmp/reallow_ips.tmp";
-    private final String tail_auth_log = "tmp/tail_auth_log.tmp";  
-    private final String wait_to_reallow_filename = "tmp/wait_to_reallow_ips.tmp";
+    //Tasks of the LOOP state: scanning the log, keeping the firewall, and the server requests
+    private final ScheduledExecutorService tasks;
+    private final ThreadPoolExecutor requests;
+    private final CountDownLatch stopped;
     
-    private Calendar limit_wait_time;
+    private final String ips_to_send_filename = "tmp/send_ips.tmp";
+    private final String report_journal_filename = "tmp/report_journal.tmp";
+    private final String last_scan_filename = "tmp/last_scan.tmp";
+    private final String snapshot_filename = "tmp/ssh_snapshot.bin";
     
     /***************************************************
      ******************CLASS METHODS*****************
@@ -86,34 +151,145 @@ public class SSH extends MyAgent{
      * @param seconds The seconds to check the authentication log again
      * @param attempts The number of attemps to considerate an IP as an attacker
      * @param lines The number of lines to check in the authentication log
+     * @param firewall The executor of the iptables commands
+     * @param banTable The banned IPs and their expiry times
+     * @param aggregator The aggregator of the banned IPs into network rules
      * @throws Exception 
      */
-    SSH(AgentID agentID, AgentID serverID, DiskLogger dl, String sshfilename, int seconds, int attempts, int lines) throws Exception {
+    public SSH(AgentID agentID, AgentID serverID, DiskLogger dl, String sshfilename, int seconds, int attempts, int lines, 
+            FirewallExecutor firewall, BanTable banTable, CidrAggregator aggregator) throws Exception {
         super(agentID);
         server = serverID;
         this.seconds = seconds;
-        this.attempts = attempts;
-        this.lines = lines;
-        this.authlogfilename = sshfilename;
+        this.allowlist = new Allowlist();
+        this.detectors = new ArrayList<LogDetector>();
+        this.detectors.add(new SshDetector(sshfilename, lines, attempts));
+        this.tailer = new LogTailer();
+        this.backfilled = new ConcurrentLinkedQueue<OccurrencesCounter>();
+        this.backfillHours = 24;
+        this.backfillRate = 50000;
+        this.snapshotSeconds = 60;
         this.dlogger = dl;
-        this.messagesQueue = new MessageQueue(dimQueue);
+        this.log = new AgentLog(agentID.name, dl);
+        this.firewall = firewall;
+        this.banTable = banTable;
+        this.aggregator = aggregator;
+        this.aggregator.setAllowlist(allowlist);
+        this.reconciler = new FirewallReconciler();
+        this.firewallLock = new Object();
+        this.preferredEncoding = AttackReportCodec.COMPACT;
+        this.compact = false;
+        this.replyTimeout = 30000;
+        this.heartbeatSeconds = 30;
+        this.resubscribing = new AtomicBoolean(false);
+        this.journal = new ReportJournal(report_journal_filename);
+        this.stopped = new CountDownLatch(1);
+        this.configChanges = new ConcurrentLinkedQueue<ConfigChange>();
+        
+        ThreadFactory daemons = r -> {
+            Thread thread = new Thread(r, "ssh-"+agentID.name);
+            thread.setDaemon(true);
+            return thread;
+        };
+        this.tasks = Executors.newScheduledThreadPool(2, daemons);
+        this.requests = new ThreadPoolExecutor(2, 2, 0L, TimeUnit.MILLISECONDS, 
+                                                new ArrayBlockingQueue<Runnable>(dimQueue), daemons);
+        
+        metrics.gauge("request queue", () -> requests.getQueue().size());
+        metrics.gauge("firewall pending", () -> firewall.getPending());
+        metrics.gauge("active bans", () -> banTable.size());
+        metrics.gauge("journal pending", () -> journal.size());
+        metrics.gauge("firewall rules", () -> reconciler.size());
+        metrics.gauge("followed logs", () -> tailer.size());
+        metrics.gauge("snapshot bytes", () -> snapshotBytes);
+        metrics.gauge("allowlist networks", () -> allowlist.size());
         System.out.println("Iniciated SSH agent "+this.getAid());
     }
 
+    /**
+     * Sets the encoding to ask the server for the reports and the IPs to block
+     * @param encoding "compact" or "json"
+     */
+    public void setPreferredEncoding(String encoding){
+        this.preferredEncoding = encoding;
+    }
+
+    /**
+     * Sets the detectors of attackers (by default, just the SSH one of the constructor)
+     * @param detectors The detectors
+     */
+    public void setDetectors(List<LogDetector> detectors){
+        for(LogDetector detector : detectors)
+            detector.setAllowlist(allowlist);
+        this.detectors = new ArrayList<LogDetector>(detectors);
+    }
+    
+    /**
+     * Sets the IPs that are never counted as attackers nor banned (nor 
+     * blocked by the network rules of their neighbours)
+     * @param allowlist The allowlist
+     */
+    public void setAllowlist(Allowlist allowlist){
+        this.allowlist = allowlist;
+        for(LogDetector detector : detectors)
+            detector.setAllowlist(allowlist);
+        aggregator.setAllowlist(allowlist);
+    }
+    
+    /**
+     * Sets the reader of the logs, to share it with other agents of the device
+     * @param tailer The reader of the logs
+     */
+    public void setLogTailer(LogTailer tailer){
+        this.tailer = tailer;
+    }
+    
+    /**
+     * Sets the limits of the search of the attackers of the time the agent 
+     * wasn't running
+     * @param hours The maximum hours to look back (0 to not search)
+     * @param linesPerSecond The maximum lines of the logs read per second
+     */
+    public void setBackfill(int hours, int linesPerSecond){
+        this.backfillHours = hours;
+        this.backfillRate = linesPerSecond;
+    }
+    
+    /**
+     * Sets how often the state is saved to restart the agent without losing it
+     * @param seconds The seconds between the snapshots (0 to not save them)
+     */
+    public void setSnapshotSeconds(int seconds){
+        this.snapshotSeconds = seconds;
+    }
+    
+    /**
+     * Sets the time to wait for the answers of the server
+     * @param seconds The seconds to wait
+     */
+    public void setReplyTimeout(int seconds){
+        this.replyTimeout = seconds*1000L;
+    }
+    
+    /**
+     * Sets how often the agent tells the server that it is alive (the server
+     * stops sending the IPs to block to the agents silent for a while)
+     * @param seconds The seconds between the heartbeats (0 to not send them)
+     */
+    public void setHeartbeatSeconds(int seconds){
+        this.heartbeatSeconds = seconds;
+    }
+
     /**
      * It initializes the agent
      */
     @Override
     public void init() {
-        dlogger.AddObject(logMessage("\"status\":\"Starting\""));
+        log.info("Starting");
+        restoreSnapshot();
         state = SUBS_TO_SERVER;
         finish = false;
         conversWithServer = null;
-        
-        Date current_time = Calendar.getInstance().getTime();             
-        Date next_time = new Date(current_time.getTime()+seconds*1000);          
-        limit_wait_time = Calendar.getInstance();
-        limit_wait_time.setTime(next_time);
     }
     
     /**
@@ -121,63 +297,24 @@ public class SSH extends MyAgent{
      */
     @Override
     public void execute(){
-        dlogger.AddObject(logMessage("\"status\":\"Executing\""));
+        log.info("Executing");
         while(!finish){
+            metrics.enterState(STATE_NAMES[state]);
             switch(state){
                 case SUBS_TO_SERVER:
                     try {
                         stateSubsToServer();
                     } catch (Exception ex) {
                         state = CANCEL_SUBS;
-                        dlogger.AddRecord(logMessage("\"status\":\"An error occurred in the SUBS_TO_SERVER state\""));
+                        log.error("An error occurred in the SUBS_TO_SERVER state");
                     } 
                 break;
-                case CHECK_AUTH_LOG:
+                case LOOP:
                     try {
-                        stateCheckAuthLog();
-                    } catch (IOException ex) {
-                        state = CANCEL_SUBS;
-                        dlogger.AddRecord(logMessage("\"status\":\"An error occurred in the CHECK_AUTH_LOG state\""));
-                    }
-                break;
-                case RE_ALLOW_IPS:
-                    try {
-                        stateReAllowIPs();
-                    } catch (IOException ex) {
-                        state = CANCEL_SUBS;
-                        dlogger.AddRecord(logMessage("\"status\":\"An error occurred in the RE_ALLOW_IPS state\""));
-                    }
-                break;
-                case BAN_IPS:
-                    try {
-                        stateBanIPs();
-                    } catch (IOException ex) {
-                        state = CANCEL_SUBS;
-                        dlogger.AddRecord(logMessage("\"status\":\"An error occurred in the BAN_IPS state\""));
-                    }
-                break;
-                case SEND_IPS:
-                    try {
-                        stateSendIPs();
-                    } catch (Exception ex) {
-                        state = CANCEL_SUBS;
-                        dlogger.AddRecord(logMessage("\"status\":\"An error occurred in the SEND_IPS state\""));
-                    }
-                break;
-                case WAIT:
-                    try {
-                        stateWait();
+                        stateLoop();
                     } catch (InterruptedException ex) {
                         state = CANCEL_SUBS;
-                        dlogger.AddRecord(logMessage("\"status\":\"An error occurred in the WAIT state\""));
-                    }
-                break;
-                case PREVENT_ATTACKS:
-                    try {
-                        statePreventAttacks();
-                    } catch (Exception ex) {
-                        state = CANCEL_SUBS;
-                        dlogger.AddRecord(logMessage("\"status\":\"An error occurred in the PREVENT ATTACKS state\""));
+                        log.error("An error occurred in the LOOP state");
                     }
                 break;
                 case CANCEL_SUBS:
@@ -186,7 +323,7 @@ public class SSH extends MyAgent{
                     stateCancelSubs();
                 } catch (InterruptedException ex) {
                     state = FINALIZE;
-                    dlogger.AddRecord(logMessage("\"status\":\"An error occurred in the CANCEL SUBS state\""));
+                    log.error("An error occurred in the CANCEL SUBS state");
                 }
             }
                 break;
@@ -202,7 +339,12 @@ public class SSH extends MyAgent{
      */
     @Override
     public void finalize(){
-        dlogger.AddObject(logMessage("\"status\":\"Ending\""));
+        log.info("Ending");
+        stopTasks();
+        if(snapshotSeconds > 0)
+            saveSnapshot();
+        firewall.shutdown();
+        metrics.unregister();
         super.finalize();
     }
 
@@ -213,9 +355,55 @@ public class SSH extends MyAgent{
      * @throws UnknownHostException 
      */
     private void stateSubsToServer() throws InterruptedException, MalformedURLException, UnknownHostException {
-        System.out.println("IN SUBS TO SERVER");
+        log.debug("IN SUBS TO SERVER");
         //It subscribes to the Server Agent
+        String message = subscriptionMessage();
+        if(message == null){
+            state = CANCEL_SUBS;
+            return;
+        }
+        
+        //Sending the message and receiving the answer
+        ACLMessage messageReceived = waitAnswer(this.request(server, 
+                                                    ACLMessage.SUBSCRIBE, 
+                                                    message,
+                                                    null,
+                                                    this.generateReplyId(),
+                                                    replyTimeout));
+        
+        state = FINALIZE;
+        
+        //In function of the message, we will go to a state or to another
+        if(messageReceived == null){
+            log.error("The server "+this.server.name+" didn't answer the subscription");
+        }
+        else if(messageReceived.getPerformativeInt() == ACLMessage.REFUSE){
+            //The server is overloaded: it is tried again later
+            int retry = Json.parse(messageReceived.getContent()).asObject().getInt("retry seconds", 5);
+            log.warn("The server "+this.server.name+" refused the subscription, retrying in "+retry+" seconds");
+            metrics.count("refused subscriptions");
+            Thread.sleep(retry*1000L);
+            state = SUBS_TO_SERVER;
+        }
+        else if(messageReceived.getPerformativeInt() == ACLMessage.INFORM &&
+                messageReceived.getContent().contains("subscribe")){
+            acceptSubscription(messageReceived);
+            log.info("Subscribing successful with the server "+this.server.name);
+            
+            state = LOOP;
+        }
+        else{
+            log.error("Subscribing to the server "+this.server+" failed");
+            state = FINALIZE;
+        }
         
+    }
+    
+    /**
+     * Creates the content of the subscription to the server
+     * @return The content, or null if the IP of this device couldn't be obtained
+     */
+    private String subscriptionMessage(){
         //Creating the message
         JsonObject message = new JsonObject();
 
@@ -244,85 +432,503 @@ public class SSH extends MyAgent{
                 }
             }
         } catch (SocketException e) {
-            dlogger.AddObject(logMessage("\"status\":\"Error obtaining this device IP\""));
-            state = CANCEL_SUBS;
-            return;
+            log.error("Error obtaining this device IP");
+            return null;
         }
         //InetAddress iAddress = InetAddress.getLocalHost();
         //String currentIp = iAddress.getHostAddress();
         
         message.add("IP",currentIp);
         
-        //Sending the message
-        this.sendMessage(server, 
-                    ACLMessage.SUBSCRIBE, 
-                    message.toString());
+        //The server will choose one of them (or none, if it is old)
+        if(preferredEncoding.equals(AttackReportCodec.COMPACT))
+            message.add("encodings", new JsonArray().add(AttackReportCodec.COMPACT));
         
-        state = FINALIZE;
+        return message.toString();
+    }
+    
+    /**
+     * Takes the conversation and the encoding of an accepted subscription
+     * @param messageReceived The answer of the server
+     */
+    private void acceptSubscription(ACLMessage messageReceived){
+        conversWithServer = messageReceived.getConversationId();
+        compact = Json.parse(messageReceived.getContent()).asObject()
+                    .getString("encoding", AttackReportCodec.JSON).equals(AttackReportCodec.COMPACT);
+    }
+    
+    /**
+     * Task that tells the server that the agent is alive. If the server 
+     * doesn't know the agent anymore (it was silent too long, or the server
+     * lost it), the agent subscribes again
+     */
+    private void sendHeartbeat(){
+        if(resubscribing.get())
+            return;
         
-        //Receiving the answer
-        while(this.messagesQueue.isEmpty())
-            Thread.sleep(500);
+        JsonObject message = new JsonObject();
+        message.add("task", "heartbeat");
         
-        ACLMessage messageReceived = messagesQueue.Pop();
+        //The answer is checked when it arrives, the task doesn't wait for it
+        this.request(server, ACLMessage.QUERY_IF, message.toString(), 
+                        conversWithServer, this.generateReplyId(), replyTimeout)
+            .whenComplete((answer, ex) -> {
+                if(ex != null){
+                    log.warn("The server "+server.name+" didn't answer the heartbeat");
+                    metrics.count("heartbeats lost");
+                }
+                else if(answer.getPerformativeInt() == ACLMessage.INFORM &&
+                        !Json.parse(answer.getContent()).asObject().getBoolean("subscribed", true)){
+                    log.warn("The server "+server.name+" doesn't have this agent subscribed");
+                    resubscribe();
+                }
+            });
+    }
+    
+    /**
+     * Subscribes again to the server, without waiting for the answer (just
+     * one subscription at a time). The IPs not sent are kept in the journal
+     */
+    private void resubscribe(){
+        if(!resubscribing.compareAndSet(false, true))
+            return;
         
-        //In function of the message, we will go to a state or to another
-        if(messageReceived.getPerformativeInt() == ACLMessage.INFORM &&
-                messageReceived.getContent().contains("subscribe")){
-            conversWithServer = messageReceived.getConversationId();
-            dlogger.AddObject(logMessage("\"status\":\"Subscribing successful with the server "+this.server.name+"\""));
+        String message = subscriptionMessage();
+        if(message == null){
+            resubscribing.set(false);
+            return;
+        }
+        
+        this.request(server, ACLMessage.SUBSCRIBE, message, null, this.generateReplyId(), replyTimeout)
+            .whenComplete((answer, ex) -> {
+                try{
+                    if(ex == null && answer.getPerformativeInt() == ACLMessage.INFORM &&
+                            answer.getContent().contains("subscribe")){
+                        acceptSubscription(answer);
+                        metrics.count("resubscriptions");
+                        log.info("Subscribed again to the server "+server.name);
+                    }
+                    else{
+                        log.warn("The server "+server.name+" didn't accept the new subscription, it will be tried again");
+                    }
+                }
+                finally{
+                    resubscribing.set(false);
+                }
+            });
+    }
+
+    
+    /**
+     * Runs the tasks of the agent until one of them fails: the log is scanned
+     * every run, the expired bans are released every second, and the server
+     * requests are answered as soon as they arrive (whatever the scan is doing)
+     * @throws InterruptedException 
+     */
+    private void stateLoop() throws InterruptedException {
+        log.debug("IN LOOP");
+        
+        startBackfill();
+        tasks.execute(this::scanAuthLog);
+        tasks.scheduleWithFixedDelay(this::maintainFirewall, 1, 1, TimeUnit.SECONDS);
+        if(snapshotSeconds > 0)
+            tasks.scheduleWithFixedDelay(this::saveSnapshot, snapshotSeconds, snapshotSeconds, TimeUnit.SECONDS);
+        if(heartbeatSeconds > 0)
+            tasks.scheduleWithFixedDelay(this::sendHeartbeat, heartbeatSeconds, heartbeatSeconds, TimeUnit.SECONDS);
+        
+        //Waiting until a task fails
+        try{
+            stopped.await();
+        }
+        finally{
+            stopTasks();
+        }
+        
+        state = CANCEL_SUBS;
+    }
+    
+    /**
+     * Starts searching (out of the tasks threads, and with low priority) the 
+     * attackers in the logs since the last scan before stopping the agent, 
+     * until the first scan of this run. They are banned and sent in the next scans
+     */
+    private void startBackfill(){
+        long lastScan = readLastScan();
+        long now = System.currentTimeMillis();
+        long from = Math.max(lastScan, now - backfillHours*3600000L);
+        long to = now - seconds*1000L;    //The first scan searchs after this
+        
+        if(lastScan <= 0 || backfillHours <= 0 || from >= to)
+            return;
+        
+        List<LogDetector> current = detectors;
+        Thread backfill = new Thread(() -> {
+            LogBackfill search = new LogBackfill(10000, backfillRate, 100000);
+            long start = System.nanoTime();
+            int found = 0;
             
-            state = CHECK_AUTH_LOG;
+            try{
+                for(LogDetector detector : current){
+                    OccurrencesList attackers = search.search(detector, new Date(from), new Date(to));
+                    for(int i = 0; i < attackers.size(); i++)
+                        backfilled.add(attackers.get(i));
+                    found += attackers.size();
+                }
+                metrics.latency("backfill", start);
+                log.info("Searched the logs since the last scan: "
+                        +search.getLinesRead()+" lines, "+found+" attackers");
+            }
+            catch(InterruptedException ex){ //The agent is stopping
+            }
+        }, "backfill-"+getAid().name);
+        
+        backfill.setDaemon(true);
+        backfill.setPriority(Thread.MIN_PRIORITY);
+        backfill.start();
+    }
+    
+    /**
+     * Reads when the last scan of the logs was
+     * @return The date in milliseconds (0 if it isn't known)
+     */
+    private long readLastScan(){
+        try{
+            return Long.parseLong(new String(Files.readAllBytes(Paths.get(last_scan_filename)), 
+                                                StandardCharsets.UTF_8).trim());
         }
-        else{
-            dlogger.AddObject(logMessage("\"status\":\"Subscribing to the server "+this.server+" failed\""));
-            state = FINALIZE;
+        catch(IOException | NumberFormatException ex){
+            return 0;
         }
+    }
+    
+    /**
+     * Saves when the last scan of the logs was
+     * @param date The date in milliseconds
+     */
+    private void writeLastScan(long date){
+        try{
+            Files.write(Paths.get(last_scan_filename), Long.toString(date).getBytes(StandardCharsets.UTF_8));
+        }
+        catch(IOException ex){
+            log.error("Error saving the date of the last scan");
+        }
+    }
+    
+    /**
+     * Task that saves the state of the agent: the bans (with their expiry and
+     * offenses), the followed logs (with their offset and last lines) and the
+     * attackers of the backfill not banned yet. The pending reports are 
+     * already saved in the journal every time they change
+     */
+    private void saveSnapshot(){
+        long start = System.nanoTime();
         
+        try{
+            int bytes = SnapshotFile.save(snapshot_filename, SNAPSHOT_KIND, SNAPSHOT_VERSION, out -> {
+                out.writeLong(System.currentTimeMillis());
+                banTable.writeTo(out);
+                tailer.writeTo(out);
+                
+                ArrayList<OccurrencesCounter> pending = new ArrayList<OccurrencesCounter>(backfilled);
+                out.writeInt(pending.size());
+                for(OccurrencesCounter oc : pending){
+                    out.writeUTF(oc.getIp());
+                    out.writeUTF(oc.getDate());
+                    out.writeInt(oc.getNumOccurrences());
+                }
+            });
+            metrics.latency("snapshot save", start);
+            snapshotBytes = bytes;
+        }
+        catch(IOException ex){
+            log.error("Error saving the snapshot: "+ex.getMessage());
+        }
     }
-
     
+    /**
+     * Loads the state saved in the last snapshot, if there is any. The banned
+     * IPs get their rules back in the aggregator, so the first reconciliation
+     * of the firewall keeps them
+     */
+    private void restoreSnapshot(){
+        long start = System.nanoTime();
+        long [] saved = new long[1];
+        ArrayList<String> banned = new ArrayList<String>();
+        
+        try{
+            boolean loaded = SnapshotFile.load(snapshot_filename, SNAPSHOT_KIND, SNAPSHOT_VERSION, in -> {
+                saved[0] = in.readLong();
+                banned.addAll(banTable.readFrom(in));
+                tailer.readFrom(in);
+                
+                int pending = in.readInt();
+                for(int i = 0; i < pending; i++)
+                    backfilled.add(new OccurrencesCounter(in.readUTF(), in.readUTF(), in.readInt()));
+            });
+            
+            if(loaded){
+                synchronized(firewallLock){
+                    for(String ip : banned)
+                        aggregator.add(ip);
+                }
+                
+                metrics.latency("snapshot load", start);
+                log.info("Restored the snapshot of "+new Date(saved[0])+": "
+                        +banned.size()+" bans, "+tailer.size()+" logs in "+(System.nanoTime()-start)/1000000+" ms");
+            }
+        }
+        catch(IOException ex){
+            //Starting from scratch, like without snapshot
+            log.error("Error loading the snapshot: "+ex.getMessage());
+        }
+    }
+    
+    /**
+     * Stops the tasks of the LOOP state
+     */
+    private void stopTasks(){
+        stopped.countDown();
+        tasks.shutdownNow();
+        requests.shutdownNow();
+    }
+    
+    /**
+     * Task that checks the authentication log, bans the attackers and sends 
+     * them to the server, and then schedules itself again. If it fails, the 
+     * next scan tries again (the IPs not sent are kept in the journal), and
+     * the agent only cancels the subscription on a fatal error
+     */
+    private void scanAuthLog(){
+        ArrayList<String> attackers = new ArrayList<String>();
+        boolean ok;
+        
+        //Safe point: no scan is running
+        applyConfigChanges();
+        reloadAllowlist(null, null);
+        
+        long start = System.nanoTime();
+        long traceStart = Tracer.now();
+        
+        //The trace of the attacks found is the one of their report
+        String reply = this.generateReplyId();
+        String trace = Tracer.traceId(this.conversWithServer, reply);
+        
+        long scanDate = System.currentTimeMillis();
+        
+        try{
+            ok = checkAuthLog(attackers);
+            metrics.latency("check auth log", start);
+            if(ok)
+                writeLastScan(scanDate);
+            
+            if(ok){
+                long scanned = Tracer.now();
+                ban(attackers, null, trace, "firewall");
+                ok = sendIPs(reply, traceStart, scanned);
+                if(ok)
+                    metrics.count("reports");
+            }
+        }
+        catch(InterruptedException ex){ //The agent is stopping
+            return;
+        }
+        catch(Exception ex){
+            log.error("scan failed", "Error scanning the authentication log: "+ex);
+            ok = false;
+        }
+        catch(Error ex){ //The agent can't go on
+            log.error("Fatal error scanning the authentication log: "+ex);
+            stopped.countDown();
+            throw ex;
+        }
+        
+        if(!ok){
+            log.error("scan failed", "An error occurred scanning the authentication log, trying again in "+seconds+" seconds");
+            metrics.count("failed scans");
+        }
+        
+        //The next scan, with the seconds configured at this moment
+        try{
+            tasks.schedule(this::scanAuthLog, seconds, TimeUnit.SECONDS);
+        }
+        catch(RejectedExecutionException ex){ //The agent is stopping
+        }
+    }
+    
+    /**
+     * Keeps the configuration changes to apply them before the next scan
+     * @param changes The keys changed
+     */
+    @Override
+    public void configChanged(List<ConfigChange> changes){
+        configChanges.addAll(changes);
+    }
+    
+    /**
+     * Applies the configuration changes received. The keys that can't be 
+     * changed while running are just logged
+     */
+    private void applyConfigChanges(){
+        ConfigChange change;
+        long banTime = banTable.getBanTime();
+        long maxBanTime = banTable.getMaxBanTime();
+        double escalation = banTable.getEscalation();
+        boolean bansChanged = false;
+        boolean allowlistChanged = false;
+        List<String> networks = allowlist.getNetworks();
+        String allowlistFile = allowlist.getFilename();
+        
+        while((change = configChanges.poll()) != null){
+            switch(change.getKey()){
+                case "seconds":
+                    seconds = Math.max(1, change.asInt(seconds));
+                break;
+                //The keys of the SSH detector
+                case "attempts":
+                    for(LogDetector detector : detectors)
+                        if(detector.getKind().equals(LogDetector.SSH))
+                            detector.setAttempts(change.asInt(detector.getAttempts()));
+                break;
+                case "lines":
+                    for(LogDetector detector : detectors)
+                        if(detector.getKind().equals(LogDetector.SSH))
+                            detector.setLines(change.asInt(detector.getLines()));
+                break;
+                case "authlogfilename":
+                    for(LogDetector detector : detectors)
+                        if(detector.getKind().equals(LogDetector.SSH))
+                            detector.setLogfile(change.asString(detector.getLogfile()));
+                break;
+                case "replytimeout":
+                    replyTimeout = change.asInt((int) (replyTimeout/1000))*1000L;
+                break;
+                case "allowlist":
+                    networks = new ArrayList<String>();
+                    if(!change.isRemoved() && change.getNewValue().isArray())
+                        for(JsonValue network : change.getNewValue().asArray())
+                            networks.add(network.asString());
+                    allowlistChanged = true;
+                break;
+                case "allowlistfile":
+                    allowlistFile = change.isRemoved() ? "" : change.asString(allowlistFile);
+                    allowlistChanged = true;
+                break;
+                case "loglevel":
+                    log.setLevel(AgentLog.parseLevel(change.asString("info"), AgentLog.INFO));
+                break;
+                case "lograte":
+                    log.setRate(change.asDouble(5));
+                break;
+                case "logecho":
+                    dlogger.setEcho(change.asBoolean(true));
+                break;
+                case "bantime":
+                    //By default, an IP is banned for two runs
+                    banTime = change.asInt(-1) < 0 ? 2*seconds*1000L : change.asInt(-1)*1000L;
+                    bansChanged = true;
+                break;
+                case "maxbantime":
+                    maxBanTime = change.asInt((int) (maxBanTime/1000))*1000L;
+                    bansChanged = true;
+                break;
+                case "banescalation":
+                    escalation = change.asDouble(escalation);
+                    bansChanged = true;
+                break;
+                default:
+                    log.warn("Configuration key "+change.getKey()+" changed, it needs a restart");
+                continue;
+            }
+            
+            log.info("Configuration key "+change.getKey()+" changed");
+        }
+        
+        if(bansChanged)
+            banTable.setBanTimes(banTime, maxBanTime, escalation);
+        if(allowlistChanged)
+            reloadAllowlist(networks, allowlistFile);
+    }
+    
+    /**
+     * Loads the allowlist again with new networks, or if its file changed
+     * @param networks The networks of the configuration file (null to just check the file)
+     * @param filename The file with more networks
+     */
+    private void reloadAllowlist(List<String> networks, String filename){
+        try{
+            List<String> wrong = null;
+            
+            if(networks != null){
+                wrong = allowlist.load(networks, filename);
+            }
+            else if(allowlist.reloadIfChanged()){
+                wrong = new ArrayList<String>();
+            }
+            
+            if(wrong != null){
+                log.info("Allowlist loaded: "+allowlist.size()+" networks");
+                if(!wrong.isEmpty())
+                    log.warn("Wrong networks in the allowlist: "+wrong);
+                
+                //The network rules over the new allowed hosts are split
+                synchronized(firewallLock){
+                    applyFirewall(aggregator.checkAllowlist(), null, null);
+                }
+            }
+        }
+        catch(IOException ex){
+            log.error("Error loading the allowlist file: "+ex.getMessage());
+        }
+    }
+    
+    /**
+     * Task that re-allows the IPs whose ban finished (at their exact time, not
+     * at the next run), and recovers the firewall commands that failed
+     */
+    private void maintainFirewall(){
+        try{
+            releaseExpiredBans();
+            
+            //The first time, the real rules are loaded
+            checkFirewallFailures();
+        }
+        catch(Exception ex){
+            log.error("An error occurred maintaining the firewall");
+        }
+    }
+
     /**
      * The cancel to the subscription to the server agent
      */
     private void stateCancelSubs() throws InterruptedException {
-        System.out.println("IN CANCEL SUBS");
+        log.debug("IN CANCEL SUBS");
         //Sending the cancel message
         //Creating the message
         JsonObject message = new JsonObject();
 
         message.add("task", "SSH authentications");
 
-        //Sending the message
-        this.sendMessage(server, 
-                    ACLMessage.CANCEL, 
-                    message.toString());
-        
-        //Waiting for an answer
-        while(this.messagesQueue.isEmpty())
-            Thread.sleep(500);
-        
-        ACLMessage messageReceived = messagesQueue.Pop();
-        
-        while(!(messageReceived.getPerformativeInt() == ACLMessage.AGREE && 
-                messageReceived.getContent().contains("cancel")) &&
-                !messageReceived.getContent().contains("not cancelled reason")){   //It is not a cancel message. We ignore it
-            while(this.messagesQueue.isEmpty())
-                Thread.sleep(500);
-        
-            messageReceived = messagesQueue.Pop();
-        }
+        //Sending the message and waiting for the answer (the other messages are not answers)
+        ACLMessage messageReceived = waitAnswer(this.request(server, 
+                                                    ACLMessage.CANCEL, 
+                                                    message.toString(),
+                                                    conversWithServer,
+                                                    this.generateReplyId(),
+                                                    replyTimeout));
         
         try{
-            if(messageReceived.getPerformativeInt() == ACLMessage.AGREE){
-                dlogger.AddObject(logMessage("\"status\":\"The subscribe with the server "+server.name+" has been successfully cancelled\""));
+            if(messageReceived == null){
+                log.error("The server "+server.name+" didn't answer the cancelling");
+            }
+            else if(messageReceived.getPerformativeInt() == ACLMessage.AGREE){
+                log.info("The subscribe with the server "+server.name+" has been successfully cancelled");
             }
             else{                
-                dlogger.AddObject(logMessage("\"status\":\"Cancelling the subscribe with the server "+server.name+" failed\""));
+                log.error("Cancelling the subscribe with the server "+server.name+" failed");
             }
         }
         catch(Exception ex){
-            dlogger.AddObject(logMessage("\"status\":\"Error receiving the cancelling answer from the server "+this.server.name+"\""));
+            log.error("Error receiving the cancelling answer from the server "+this.server.name);
         }
         
         //Going to the final state
@@ -337,247 +943,207 @@ public class SSH extends MyAgent{
     }
 
     /**
-     * It checks the authentication log
+     * It checks the logs of the detectors
+     * @param attackers Where the attackers to ban are added
+     * @return true if the logs could be checked, false otherwise
      * @throws IOException 
      */     
-    private void stateCheckAuthLog() throws IOException {
-        System.out.println("IN CHECK AUTH LOG");
+    private boolean checkAuthLog(ArrayList<String> attackers) throws IOException {
+        log.debug("IN CHECK AUTH LOG");
         
         boolean ok = true;
+        IpLogger toSendFile = new IpLogger(this.ips_to_send_filename);
+        OccurrencesCounter oc;
+        long now = System.currentTimeMillis();
         
-        /*
-        //PREVIOUS CODE, BUT SOMETIMES DOESN'T WORK WELL
-        
-        File authlog = new File(this.authlogfilename);
-        ReversedLinesFileReader reverse = new ReversedLinesFileReader(authlog);
-        boolean beginning = false;
-        String line;
-        try(FileWriter fw = new FileWriter(tail_auth_log, true);
-            BufferedWriter bw = new BufferedWriter(fw);
-            PrintWriter out = new PrintWriter(bw))
-        {
-            PrintWriter writer = new PrintWriter(this.tail_auth_log);
-            writer.print("");   //File now empty
+        //First the attackers found in the logs of the time the agent wasn't running
+        while(ok && (oc = backfilled.poll()) != null){
+            attackers.add(oc.getIp());
             
-            for(int i = 0; i < this.lines && !beginning; i++){
-                line = reverse.readLine();
-                if(line != null){
-                    out.println(line);
-                }
-                else{
-                    beginning = true;
-                }
-            }
-            writer.close();
-            out.close();
-            bw.close();
-            fw.close();
-        } catch (Exception e) {
-            dlogger.AddObject(logMessage("\"status\":\"Error creating/filling the file "+this.tail_auth_log+"\""));
-            //state = CANCEL_SUBS;
-            //return;   
-        }*/
-        
-        //First extract the last lines of the file
-        File file = new File(this.authlogfilename);
-        String content = tail(file, this.lines);
-        
-        //Then create/empty the new file
-        file = new File(this.tail_auth_log);
-        if(!file.exists()){
-            try{
-                file.createNewFile();
-            }
-            catch(Exception e){
-                dlogger.AddObject(logMessage("\"status\":\"Error creating the file "+this.tail_auth_log+"\""));
-                state = CANCEL_SUBS;
-                return;
-            }
+            ok = toSendFile.addRegistry(oc.getIp(), oc.getDate());
         }
         
-        //At least, fill the new file with the extracted lines
-        if(ok){
+        for(int d = 0; d < detectors.size() && ok; d++){
+            LogDetector detector = detectors.get(d);
+            ArrayList<String> logLines;
+            
+            //The last lines of the log (just the new ones are read from the file)
             try{
-                PrintWriter writer = new PrintWriter(this.tail_auth_log);
-                writer.print(content);
-                writer.close();
+                logLines = tailer.tail(detector.getLogfile(), detector.getLines());
             }
-            catch(Exception e){
-                dlogger.AddObject(logMessage("\"status\":\"Error filling the file "+this.tail_auth_log+"\""));
-                state = CANCEL_SUBS;
-                return;
+            catch(IOException e){
+                //A log that doesn't exist yet doesn't stop the other detectors
+                log.error("Error reading the log file "+detector.getLogfile());
+                continue;
             }
-        }
-        
-        //Extracting the IP which they exceed the attempt number
-        OccurrencesSearch occurrences = new OccurrencesSearch(tail_auth_log);
-        OccurrencesList attackerIPs = occurrences.searchOccurrences(attempts,seconds);
-        
-        OccurrencesList sshIPs = occurrences.searchOccurrences(1,seconds);  //For re-allowing IPs or not
-        
-        //Deleting ban content
-        IpLogger banFile = new IpLogger(this.ips_to_ban_filename);
-        ok = banFile.eraseContent();
-        
-        //If an IP to re-allow tried to authenticate (but failed) again
-        IpLogger reallowFile = new IpLogger(this.ips_to_reallow_filename);
-        IpLogger toSendFile = new IpLogger(this.ips_to_send_filename);
-        IpLogger waitToReallowFile = new IpLogger(this.wait_to_reallow_filename);
-        OccurrencesCounter oc;
-       
-        for(int i = 0; i < sshIPs.size() && ok; i++){
-            oc = sshIPs.get(i);
-           
-            //Don't re-allow IPs that they tried to authenticate (but failed) again
-            if(reallowFile.isIP(oc.getIp())){
-                ok = reallowFile.deleteIP(oc.getIp());
-                
-                if(ok)
-                    ok = waitToReallowFile.addRegistry(oc.getIp(), oc.getDate());
-                
-                /*if(ok)
-                    ok = toSendFile.addRegistry(oc.getIp(), oc.getDate());
-                
-                if(ok)
-                    ok = banFile.addRegistry(oc.getIp(), oc.getDate());*/
+            
+            //Extracting the IP which they exceed the attempt number
+            OccurrencesList attackerIPs = detector.search(logLines, detector.getAttempts(), seconds);
+            
+            OccurrencesList seenIPs = detector.search(logLines, 1, seconds);  //For re-allowing IPs or not
+            
+            //Don't re-allow soon the banned IPs that they tried to authenticate (but failed) again
+            //(with the lock, like every change of the bans, so it never runs in the middle of an expiration)
+            synchronized(firewallLock){
+                for(int i = 0; i < seenIPs.size(); i++){
+                    banTable.extend(seenIPs.get(i).getIp(), now);
+                }
             }
-        }
-        
-        //Including IP attackers in banned and to send IPs files   
-        boolean found;
-        ArrayList<ArrayList<String>> contentWait = waitToReallowFile.getContent();
-        if(ok)
+
+            //Including IP attackers in banned IPs and to send IPs file
             for(int i = 0; i < attackerIPs.size() && ok; i++){
                 oc = attackerIPs.get(i);
-                found = false;
-                
-                //We just ban that IP if it didn't attack (to not re-ban)
-                for(int j = 0; j < contentWait.size() && !found; j++){
-                    if(contentWait.get(j).get(0).equals(oc.getIp()))
-                        found = true;
-                }
-                if(!found)
-                    ok = banFile.addRegistry(oc.getIp(), oc.getDate());
 
-                if(ok)
-                    ok = toSendFile.addRegistry(oc.getIp(), oc.getDate());
+                //It is banned after the scan (if it isn't banned yet, to not re-ban)
+                attackers.add(oc.getIp());
+
+                ok = toSendFile.addRegistry(oc.getIp(), oc.getDate());
             }
-        
-        if(ok)
-            state = RE_ALLOW_IPS;
-        else{            
-            dlogger.AddRecord(logMessage("\"status\":\"Error checking the authentication log file "+this.authlogfilename+"\""));
-            state = CANCEL_SUBS;
         }
+        
+        if(!ok)
+            log.error("Error checking the log files of the detectors");
+        
+        return ok;
     }
 
+    
     /**
-     * Re-allows the IPs banned last run/loop that they didn't try to attempt again
-     * @throws IOException 
+     * Sends to the firewall (in just one batch) the IPs whose ban finished
      */
-    private void stateReAllowIPs() throws IOException {
-        System.out.println("IN REALLOWIPS");
-        IpLogger re_allow_ips = new IpLogger(this.ips_to_reallow_filename);
-        IpLogger wait_to_re_allow = new IpLogger(this.wait_to_reallow_filename);
-        ArrayList<ArrayList<String>> content_re_allow = re_allow_ips.getContent();
-        ArrayList<ArrayList<String>> content_wait = wait_to_re_allow.getContent();
-        boolean ok = true;
-        String reason = "";
+    private void releaseExpiredBans(){
+        ArrayList<FirewallCommand> commands = new ArrayList<FirewallCommand>();
         
-        //Re-allowing IPs
-        while(content_re_allow.size() > 0 && ok){            
-            String cmd = "/sbin/iptables -D INPUT -s "+content_re_allow.get(0).get(0)+" -j DROP";
-            Process pb = Runtime.getRuntime().exec(cmd);
-            
-            ok = re_allow_ips.deleteIndex(0);
+        synchronized(firewallLock){
+            for(String ip : banTable.expire(System.currentTimeMillis()))
+                commands.addAll(aggregator.remove(ip));
             
-            if(ok)
-                content_re_allow = re_allow_ips.getContent();
-            else
-                reason = "failed deleting an IP from the reallow IPs file content";
+            applyFirewall(commands, null, null);
         }
+    }
+    
+    /**
+     * Bans IPs and sends to the firewall (in just one batch) their rules. The
+     * bans, the expiries and the firewall rules are changed under the same
+     * lock, so the rules are queued in the same order as the bans
+     * @param ips The IPs (the banned ones just get a longer ban)
+     * @param banTimes The milliseconds of the ban of every IP (null, or a 
+     * negative time, for the ban time of the table)
+     * @param trace The trace of the bans (null if there isn't any)
+     * @param hop The hop of the trace, finished when the commands are applied
+     */
+    private void ban(List<String> ips, List<Long> banTimes, String trace, String hop){
+        ArrayList<FirewallCommand> commands = new ArrayList<FirewallCommand>();
+        long now = System.currentTimeMillis();
+        boolean added;
         
-        //Extracting the IPs from wait to re-allow file to the re-allow file
-        while(content_wait.size() > 0 && ok){
-            ok = re_allow_ips.addIP(content_wait.get(0).get(0));
-            if(ok){
-                ok = wait_to_re_allow.deleteIndex(0);            
-            
-                if(ok)
-                    content_wait = wait_to_re_allow.getContent();
+        synchronized(firewallLock){
+            for(int i = 0; i < ips.size(); i++){
+                if(banTimes != null && banTimes.get(i) >= 0)
+                    added = banTable.ban(ips.get(i), now, banTimes.get(i));
                 else
-                    reason = "failed deleting an IP from the wait-to-reallow IPs file content";              
-            }
-            else
-                reason = "failed adding an IP to the reallow IPs file";
+                    added = banTable.ban(ips.get(i), now);
                 
-        }
-        
-        if(ok)
-            state = BAN_IPS;
-        else{
-            dlogger.AddRecord(logMessage("\"status\":\"Error re-allowing banned IPs: "+reason+"\""));
-            state = CANCEL_SUBS;
+                if(added){
+                    metrics.count("bans");
+                    commands.addAll(aggregator.add(ips.get(i)));
+                    
+                    //The firewall rules are just IPv4 (iptables), the others are only reported
+                    if(!IpUtils.isIpv4(ips.get(i))){
+                        log.warn("not ipv4", "The IP "+ips.get(i)+" isn't IPv4, it isn't blocked in the firewall");
+                        metrics.count("bans not in the firewall");
+                    }
+                }
+            }
+            
+            applyFirewall(commands, trace, hop);
         }
     }
-
+    
     /**
-     * Ban IPs thanks to iptables that they attempts x times in a shorter time given
-     * @throws IOException 
+     * Sends to the firewall the commands that change something (the caller
+     * holds the firewall lock)
+     * @param commands The commands
+     * @param trace The trace of the bans (null if there isn't any)
+     * @param hop The hop of the trace, finished when the commands are applied
      */
-    private void stateBanIPs() throws IOException {
-        System.out.println("IN BANIPS");
-        IpLogger banned_ips = new IpLogger(this.ips_to_ban_filename);
-        IpLogger re_allow_ips = new IpLogger(this.ips_to_reallow_filename); //Initially, it should be empty
-        ArrayList<ArrayList<String>> content = banned_ips.getContent();
-        boolean ok = true;
-        String reason = "";
-        
-        while(content.size() > 0 && ok){
-            String cmd = "/sbin/iptables -I INPUT -s "+content.get(0).get(0)+" -j DROP";
-            Process pb = Runtime.getRuntime().exec(cmd);
+    private void applyFirewall(List<FirewallCommand> commands, String trace, String hop){
+        if(!commands.isEmpty()){
+            Tracer current = tracer;
+            long start = Tracer.now();
             
-            //Now we add the IP to the re-allow file 
-            ok = re_allow_ips.addIP(content.get(0).get(0));
+            firewall.submitBatch(reconciler.filter(commands), () -> current.span(trace, hop, start));
+        }
+    }
+    
+    /**
+     * Loads the real firewall rules (out of the agent thread) and applies just 
+     * the differences with the banned IPs, deleting the duplicated rules too.
+     * It is done in the firewall queue, so the commands queued before are in
+     * the rules read, and the ones queued after are applied over the result
+     */
+    private void synchronizeFirewall(){
+        synchronized(firewallLock){
+            //The rules wanted now: the commands queued later are filtered from them
+            HashSet<String> desired = aggregator.getRules();
+            reconciler.reset(desired);
             
-            if (ok){
-                ok = banned_ips.deleteIndex(0);   
-                
-                if(ok)
-                    content = banned_ips.getContent();
-                else
-                    reason = "failed deleting an IP from the banned IPs file content";
-            }
-            else{
-                reason = "failed adding IPs to reallow file";
-            }
+            firewall.reconcile(save -> reconciler.reconcile(save, desired))
+                    .exceptionally(ex -> {
+                        log.error("Error loading the firewall rules");
+                        reconciler.invalidate();
+                        return null;
+                    });
         }
-        
-        if(ok)
-            state = SEND_IPS;
-        else{
-            dlogger.AddRecord(logMessage("\"status\":\"Error banning IPs: "+reason+"\""));
-            state = CANCEL_SUBS;
+    }
+
+    /**
+     * Logs the failed firewall commands. If there is any, the real rules are
+     * loaded again and reconciled with the banned IPs
+     */
+    private void checkFirewallFailures() {
+        for(FirewallResult result : firewall.pollFailures()){
+            log.error("Firewall command failed", "Firewall command failed: "+result.toString());
+            reconciler.failed(result.getCommand());
         }
+        
+        if(reconciler.isDirty())
+            synchronizeFirewall();
     }
 
+
     /**
      * Send IPs that they tried to authenticate by SSH with the conditions given
-     * in this run (and in the last execution, if there were IPs that they wont be sent)
+     * in this run (and the ones not acknowledged by the server yet)
+     * @param reply The ReplyWith of the report
+     * @param scanStart When the scan of the authentication log started (for the trace)
+     * @param scanEnd When the scan of the authentication log finished (for the trace)
+     * @return false if the server answered with an error, true otherwise
      * @throws IOException 
      */
-    private void stateSendIPs() throws IOException, InterruptedException {
-        System.out.println("IN SENDIPS");
+    private boolean sendIPs(String reply, long scanStart, long scanEnd) throws IOException, InterruptedException {
+        log.debug("IN SENDIPS");
         IpLogger ips_to_send = new IpLogger(this.ips_to_send_filename);
-        ArrayList<ArrayList<String>> content = ips_to_send.getContent();
+        ArrayList<ArrayList<String>> newContent = ips_to_send.getContent();
         boolean ok = true;
         JsonObject message = new JsonObject();
         JsonObject ipDates;
         JsonArray vector = new JsonArray();
+        JsonArray sequences = new JsonArray();
         JsonArray dates;
         
+        //The IPs of this run are a new batch in the journal
+        if(newContent.size()>0){
+            journal.addBatch(newContent);
+            ok = ips_to_send.eraseContent();
+        }
+        
+        ArrayList<ArrayList<String>> content = journal.getPending();
+        ArrayList<Long> contentSequences = journal.getPendingSequences();
+        long sequence = journal.getLastSequence();
+        
         //We just send a message to the server agent if we have IPs to send
-        if(content.size()>0){
+        if(ok && content.size()>0){
             
             //First we made the message
             for(int i = 0; i < content.size(); i++){
@@ -591,95 +1157,138 @@ public class SSH extends MyAgent{
 
                 ipDates.add("ip", content.get(i).get(0));
                 ipDates.add("attack dates", dates);
+                ipDates.add("seq", contentSequences.get(i));
 
                 vector.add(ipDates);
+                sequences.add(contentSequences.get(i));
             }
 
-            message.add("SSH IP attackers", vector);
-            this.replyWithServer = this.generateReplyId();
-
-            //Sending the message
-            this.sendMessage(server, 
-                        ACLMessage.REQUEST, 
-                        message.toString(),
-                        this.conversWithServer,
-                        this.replyWithServer);
-
+            String report = compact ? encodeReport(content) : null;
+            if(report != null){
+                message.add("encoding", AttackReportCodec.COMPACT);
+                message.add("SSH IP attackers", report);
+                message.add("sequences", sequences);
+            }
+            else{
+                message.add("SSH IP attackers", vector);
+            }
+            message.add("sequence", sequence);
+            this.replyWithServer = reply;
             
-            //Receiving the answer
-            while(this.messagesQueue.isEmpty())
-                Thread.sleep(500);
+            String trace = Tracer.traceId(this.conversWithServer, reply);
+            long sendStart = Tracer.now();
+            tracer.span(trace, "scan", scanStart, scanEnd);
 
-            ACLMessage messageReceived = messagesQueue.Pop();
-            String contentReceived = messageReceived.getContent();
-            
-            while(!contentReceived.contains("not registered reason") &&
-                    !contentReceived.contains("registration")){ //We omit other messages that they are not the answer 
-                messagesQueue.Push(messageReceived);
-                messageReceived = messagesQueue.Pop();
-                contentReceived = messageReceived.getContent();
-            }
+            //Sending the message and receiving the answer
+            ACLMessage messageReceived = waitAnswer(this.request(server, 
+                                                        ACLMessage.REQUEST, 
+                                                        message.toString(),
+                                                        this.conversWithServer,
+                                                        this.replyWithServer,
+                                                        replyTimeout));
 
-            if(messageReceived.getPerformativeInt()!=ACLMessage.INFORM ||
+            if(messageReceived == null){
+                //The journal keeps the IPs, so they will be sent again in the next run
+                log.error("The server "+server.name+" didn't answer the IPs sent");
+            }
+            else if(messageReceived.getPerformativeInt() == ACLMessage.REFUSE){
+                //The server is overloaded: the journal keeps the IPs for the next run
+                log.warn("The server "+server.name+" refused the IPs sent, they will be sent again");
+                metrics.count("refused reports");
+            }
+            else if(messageReceived.getPerformativeInt() == ACLMessage.NOT_UNDERSTOOD &&
+                    messageReceived.getContent().contains("UNREGISTERED")){
+                //The server forgot this agent: it subscribes again, and the journal keeps the IPs
+                log.warn("The server "+server.name+" doesn't have this agent subscribed, the IPs will be sent again");
+                resubscribe();
+            }
+            else if(messageReceived.getPerformativeInt()!=ACLMessage.INFORM ||
                     !messageReceived.getConversationId().equals(this.conversWithServer) ||
                     !messageReceived.getInReplyTo().equals(this.replyWithServer)){
                 ok = false;
-                dlogger.AddObject(logMessage("\"status\":\"Unexpected message from the server "+server.name+"\""));
+                log.warn("Unexpected message from the server "+server.name);
             }
             else{
-                ok = ips_to_send.eraseContent();
-                dlogger.AddObject(logMessage("\"status\":\"Successful sending IPs to the server agent "+server.name+"\""));
+                //The old servers don't send the watermark, but they saved everything
+                long ack = Json.parse(messageReceived.getContent()).asObject().getLong("ack", sequence);
+                journal.acknowledge(ack);
+                tracer.span(trace, "report", sendStart);
+                log.info("Successful sending IPs to the server agent "+server.name);
             }
         }    
         
-        if(ok)
-            state = WAIT;
-        else{
-            dlogger.AddRecord(logMessage("\"status\":\"Error sending IPs to the server "+this.server.name+"\""));
-            state = CANCEL_SUBS;
-        }
+        if(!ok)
+            log.error("Error sending IPs to the server "+this.server.name);
+        
+        return ok;
     }
 
     /**
-     * Waits a time to check the authentication log again
-     * @throws InterruptedException 
+     * Encodes the IPs to send in the compact format
+     * @param content The IPs to send and their dates
+     * @return The encoded report (null if a date couldn't be read or an IP
+     * isn't IPv4, then the report is sent in JSON)
      */
-    private void stateWait() throws InterruptedException {
-        System.out.println("IN WAIT");
+    private String encodeReport(ArrayList<ArrayList<String>> content){
+        ArrayList<String> ips = new ArrayList<String>();
+        ArrayList<ArrayList<Long>> dates = new ArrayList<ArrayList<Long>>();
+        SimpleDateFormat format = new SimpleDateFormat(AttackReportCodec.DATE_FORMAT, Locale.ENGLISH);
         
-        Date current_time = Calendar.getInstance().getTime();
-        
-        //We wait until there is a message or until the time ends
-        while(messagesQueue.isEmpty() && current_time.before(limit_wait_time.getTime())){
-            Thread.sleep(1000);
-            
-            current_time = Calendar.getInstance().getTime();
+        try{
+            for(ArrayList<String> ipDates : content){
+                ArrayList<Long> seconds = new ArrayList<Long>();
+                
+                //The compact format just has IPv4 addresses, the server checks the rest in JSON
+                if(!IpUtils.isIpv4(ipDates.get(0)))
+                    return null;
+                
+                for(int j = 1; j < ipDates.size(); j++)
+                    seconds.add(format.parse(ipDates.get(j)).getTime()/1000);
+                
+                ips.add(ipDates.get(0));
+                dates.add(seconds);
+            }
+        }
+        catch(ParseException e){
+            return null;
         }
         
-        if(!current_time.before(limit_wait_time.getTime())){    //The waiting finished
-            //We change the time for the next run           
-            Date next_time = new Date(current_time.getTime()+seconds*1000);          
-            limit_wait_time = Calendar.getInstance();
-            limit_wait_time.setTime(next_time);
-
-            state = CHECK_AUTH_LOG;
+        return AttackReportCodec.encodeReport(ips, dates);
+    }
+    
+    /**
+     * Extracts the IPs to block from a message, in JSON or compact encoding
+     * @param ips The "block IPs" value
+     * @return The IPs
+     */
+    private ArrayList<String> readBlockIps(JsonValue ips){
+        ArrayList<String> list;
+        
+        if(ips.isString()){
+            list = AttackReportCodec.decodeIps(ips.asString());
         }
-        else{   //There is a message (or more than one)
-            state = PREVENT_ATTACKS;
+        else{
+            list = new ArrayList<String>();
+            for(JsonValue ip : ips.asArray())
+                list.add(ip.asString());
         }
+        
+        return list;
     }
     
+    
     /**
-     * Bans the attacker IPs sent, and answers the prevention message
+     * Bans the attacker IPs sent, and answers the prevention message. The wrong
+     * messages are just answered as not understood
+     * @param messageReceived The prevention message
+     * @param received When the message was received (for the trace)
      */
-    private void statePreventAttacks() throws InterruptedException, IOException{
-        System.out.println("IN PREVENT ATTACKS");
-        
+    private void preventAttacks(ACLMessage messageReceived, long received){
         boolean ok = true;
         
-        ACLMessage messageReceived = this.messagesQueue.Pop();
         JsonObject contentMessageReceived = Json.parse(messageReceived.getContent()).asObject();
-        JsonArray ipsReceived;
+        String trace = contentMessageReceived.getString("trace", null);
+        ArrayList<String> ipsReceived;
         String ip;
         JsonObject message = new JsonObject();
         ArrayList <String> ips = new ArrayList();
@@ -695,13 +1304,13 @@ public class SSH extends MyAgent{
                         this.conversWithServer,
                         messageReceived.getReplyWith());
             
-            dlogger.AddRecord(logMessage("\"status\":\"Error receiving preventing attack message from server agent "
-                    +this.server.name+": bad task\""));
+            log.error("Error receiving preventing attack message from server agent "
+                    +this.server.name+": bad task");
             
             ok = false;
         }
         else{
-            ipsReceived = contentMessageReceived.get("block IPs").asArray();
+            ipsReceived = readBlockIps(contentMessageReceived.get("block IPs"));
                 
             if(messageReceived.getPerformativeInt() != ACLMessage.REQUEST){
                 message.add("not prevented reason","BAD PERFORMATIVE");
@@ -713,8 +1322,8 @@ public class SSH extends MyAgent{
                             this.conversWithServer,
                             messageReceived.getReplyWith());
                 
-                dlogger.AddRecord(logMessage("\"status\":\"Error receiving preventing attack message from server agent "
-                    +this.server.name+": bad performative\""));
+                log.error("Error receiving preventing attack message from server agent "
+                    +this.server.name+": bad performative");
                 
                 ok = false;
             }
@@ -729,15 +1338,15 @@ public class SSH extends MyAgent{
                                 this.conversWithServer,
                                 messageReceived.getReplyWith());
                     
-                    dlogger.AddRecord(logMessage("\"status\":\"Error receiving preventing attack message from server agent "
-                        +this.server.name+": bad conversation\""));
+                    log.error("Error receiving preventing attack message from server agent "
+                        +this.server.name+": bad conversation");
                     
                     ok = false;
                 }
                 else{
                     for(int i = 0; i < ipsReceived.size() && ok; i++){
                         if(ok){
-                            ip = ipsReceived.get(i).asString();
+                            ip = ipsReceived.get(i);
 
                             if(!this.checkIp(ip)){
                                 ok = false;
@@ -758,8 +1367,8 @@ public class SSH extends MyAgent{
                                     this.conversWithServer,
                                     messageReceived.getReplyWith());
                         
-                        dlogger.AddRecord(logMessage("\"status\":\"Error receiving preventing attack message from server agent "
-                            +this.server.name+": bad IP\""));
+                        log.error("Error receiving preventing attack message from server agent "
+                            +this.server.name+": bad IP");
                     }
                 }
             }
@@ -768,25 +1377,32 @@ public class SSH extends MyAgent{
         
         //Now we ban the IPs (even if the message to the server failed)
         if(ok){
-            IpLogger wait_to_re_allow_ips = new IpLogger(this.wait_to_reallow_filename);
-            IpLogger reallowFile = new IpLogger(this.ips_to_reallow_filename);
+            ArrayList<String> toBan = new ArrayList<String>();
+            ArrayList<Long> banTimes = new ArrayList<Long>();
             
-            for(int i = 0; i < ips.size() && ok; i++){
-                if(!reallowFile.isIP(ips.get(i))){
-                    String cmd = "/sbin/iptables -I INPUT -s "+ips.get(i)+" -j DROP";
-                    Process pb = Runtime.getRuntime().exec(cmd);
-                }
-                else{
-                    ok = reallowFile.deleteIP(ips.get(i));
-                }
-                    
-                if(ok){
-                    ok = wait_to_re_allow_ips.addIP(ips.get(i));
+            //The server decides the ban time of every IP (the old servers don't send it)
+            JsonValue banSeconds = contentMessageReceived.get("ban seconds");
+            
+            for(int i = 0; i < ips.size(); i++){
+                //Our own hosts aren't banned, even if the server asks for it
+                if(allowlist.contains(ips.get(i))){
+                    metrics.count("allowlisted");
+                    continue;
                 }
+                
+                //If it is already banned, its ban is just extended
+                toBan.add(ips.get(i));
+                if(banSeconds != null && banSeconds.isArray() && i < banSeconds.asArray().size())
+                    banTimes.add(banSeconds.asArray().get(i).asLong()*1000);
+                else
+                    banTimes.add(-1L);
             }
+            
+            ban(toBan, banTimes, trace, "peer firewall");
         }
          
         if(ok){
+            metrics.count("block requests");
             message.add("block IPs","ok");
 
             //Sending the message
@@ -796,79 +1412,43 @@ public class SSH extends MyAgent{
                         this.conversWithServer,
                         messageReceived.getReplyWith());
 
-            dlogger.AddRecord(logMessage("\"status\":\"Successful preventing SSH attacks received from the server\""));
+            log.info("Successful preventing SSH attacks received from the server");
+            tracer.span(trace, "block", received);
 
         }
-        
-        if(ok)
-            state = WAIT;
-        else
-            state = CANCEL_SUBS;
     }
     
     /**
-     * Saves the SERV agent messages
-     * @param msg The received message
+     * Waits for the answer of a request to the server
+     * @param answer The answer of the request
+     * @return The answer, or null if it didn't arrive in time
+     * @throws InterruptedException 
      */
-    @Override
-    public void onMessage(ACLMessage msg){
-        try {
-            messagesQueue.Push(msg);
-        } catch (InterruptedException ex) {
-            dlogger.AddRecord(logMessage("\"status\":\"Error queueing message: queue is full\""));
+    private ACLMessage waitAnswer(CompletableFuture<ACLMessage> answer) throws InterruptedException{
+        try{
+            return answer.get();
+        }
+        catch(ExecutionException ex){   //Timeout
+            return null;
         }
     }
-
+    
     /**
-     * Saves the X last lines in a file to a String
-     * Reference: https://stackoverflow.com/questions/686231/quickly-read-the-last-line-of-a-text-file
-     * @param file The file to extract the lines
-     * @param lines The number of lines to extract
-     * @return The last lines of the file
+     * Handles the SERV agent messages (the answers go to their requests, and 
+     * the others are prevention requests)
+     * @param msg The received message
      */
-    private String tail( File file, int lines) {
-        java.io.RandomAccessFile fileHandler = null;
+    @Override
+    public void onMessage(ACLMessage msg){
+        metrics.received(msg);
+        if(dispatchReply(msg))
+            return;
+        
         try {
-            fileHandler = 
-                new java.io.RandomAccessFile( file, "r" );
-            long fileLength = fileHandler.length() - 1;
-            StringBuilder sb = new StringBuilder();
-            int line = 0;
-
-            for(long filePointer = fileLength; filePointer != -1; filePointer--){
-                fileHandler.seek( filePointer );
-                int readByte = fileHandler.readByte();
-
-                 if( readByte == 0xA ) {
-                    if (filePointer < fileLength) {
-                        line = line + 1;
-                    }
-                } else if( readByte == 0xD ) {
-                    if (filePointer < fileLength-1) {
-                        line = line + 1;
-                    }
-                }
-                if (line >= lines) {
-                    break;
-                }
-                sb.append( ( char ) readByte );
-            }
-
-            String lastLine = sb.reverse().toString();
-            return lastLine;
-        } catch( java.io.FileNotFoundException e ) {
-            e.printStackTrace();
-            return null;
-        } catch( java.io.IOException e ) {
-            e.printStackTrace();
-            return null;
-        }
-        finally {
-            if (fileHandler != null )
-                try {
-                    fileHandler.close();
-                } catch (IOException e) {
-                }
+            long received = Tracer.now();
+            requests.execute(() -> preventAttacks(msg, received));
+        } catch (RejectedExecutionException ex) {
+            log.error("Error queueing message: queue is full");
         }
     }
 }
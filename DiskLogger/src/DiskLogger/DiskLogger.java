@@ -4,21 +4,24 @@
  */
 package DiskLogger;
 
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.Writer;
 import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.util.Date;
 
 /**
  *
  * @author Luis Castillo
  */
 public class DiskLogger {
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+    private static volatile TimeStamp lastTimeStamp = new TimeStamp(-1, "");
+    
     private String filename;
     private boolean valid;
+    private volatile boolean echo = true;
     
     public DiskLogger() {
         filename="defaultlog.json";
@@ -62,20 +65,23 @@ public class DiskLogger {
            return false;            // null
     }
     
+    public boolean isEcho()  {
+        return echo;
+    }
+    /**
+     * Sets if the status records are printed in the standard output too
+     * @param echo true to print them, false otherwise
+     */
+    public void setEcho(boolean echo)  {
+        this.echo = echo;
+    }
+    
     public String AddRecord(String s) {
         if (valid)  {
-            String timeStamp = new SimpleDateFormat("dd/MM/yyyy_HH:mm:ss").format(Calendar.getInstance().getTime());
-            PrintWriter outfile;
-            try {
-                outfile = new PrintWriter(new BufferedWriter(new FileWriter(filename, true)));
-            } catch (IOException ex) {
+            JsonWriter record = JsonWriter.get();
+            record.beginObject().name("date").value(timeStamp()).name("value").value(s).endObject();
+            if (!write(record, false))
                 return "";
-            }
-            BufferedWriter out = new BufferedWriter(outfile);
-            String toRecord="{\"date\":\""+timeStamp+"\", \"value\":\""+s+"\"}"; 
-            outfile.println(toRecord);
-            //System.out.println(toRecord);
-            outfile.close();
             return s;
         }
         else
@@ -83,20 +89,101 @@ public class DiskLogger {
     }
     public String AddObject(String s) {
         if (valid)  {
-            String timeStamp = new SimpleDateFormat("dd/MM/yyyy_HH:mm:ss").format(Calendar.getInstance().getTime());
-            PrintWriter outfile;
-            try {
-                outfile = new PrintWriter(new BufferedWriter(new FileWriter(filename, true)));
-            } catch (IOException ex) {
+            JsonWriter record = JsonWriter.get();
+            record.beginObject().name("date").value(timeStamp()).name("value").rawValue(s).endObject();
+            if (!write(record, false))
                 return "";
-            }
-            BufferedWriter out = new BufferedWriter(outfile);
-            String toRecord="{\"date\":\""+timeStamp+"\", \"value\":"+s+"}"; 
-            outfile.println(toRecord);
-            outfile.close();
             return s;
         }
         else
             return "";
     }
+    /**
+     * Adds the status of an agent, {"agent":..., "content":{"status":...}},
+     * escaping both strings
+     * @param agent The name of the agent
+     * @param status The status
+     * @return The status ("" if it couldn't be saved)
+     */
+    public String AddStatus(String agent, String status) {
+        if (valid)  {
+            JsonWriter record = JsonWriter.get();
+            record.beginObject().name("date").value(timeStamp()).name("value")
+                    .beginObject().name("agent").value(agent).name("content")
+                        .beginObject().name("status").value(status).endObject()
+                    .endObject()
+                  .endObject();
+            if (!write(record, echo))
+                return "";
+            return status;
+        }
+        else
+            return "";
+    }
+    /**
+     * Starts a record in the writer of this thread, with its date. The caller
+     * writes the value of the record and saves it with AddObject(JsonWriter)
+     * @return The writer, where the value goes next
+     */
+    public JsonWriter BeginRecord() {
+        return JsonWriter.get().beginObject().name("date").value(timeStamp()).name("value");
+    }
+    /**
+     * Saves a status record started with BeginRecord() (it is printed too if
+     * echo is on)
+     * @param record The writer with the record
+     * @return true if it was saved, false otherwise
+     */
+    public boolean AddObject(JsonWriter record) {
+        if (!valid)
+            return false;
+        record.endObject();
+        return write(record, echo);
+    }
+    
+    /**
+     * Writes a record in a line of the file
+     * @param record The record
+     * @param print true to print it in the standard output too
+     * @return true if it was written, false otherwise
+     */
+    private synchronized boolean write(JsonWriter record, boolean print) {
+        try (Writer out = new FileWriter(filename, true)) {
+            record.writeTo(out);
+            out.write(LINE_SEPARATOR);
+        } catch (IOException ex) {
+            return false;
+        }
+        if (print)
+            System.out.println(record);
+        return true;
+    }
+    
+    /**
+     * Gets the date of the records, formatted once per second
+     * @return The date (dd/MM/yyyy_HH:mm:ss)
+     */
+    private static String timeStamp() {
+        long second = System.currentTimeMillis()/1000;
+        TimeStamp last = lastTimeStamp;
+        
+        if (last.second != second)  {
+            last = new TimeStamp(second, new SimpleDateFormat("dd/MM/yyyy_HH:mm:ss").format(new Date(second*1000)));
+            lastTimeStamp = last;
+        }
+        return last.text;
+    }
+    
+    /**
+     * A second and its date
+     */
+    private static class TimeStamp {
+        private final long second;
+        private final String text;
+        
+        private TimeStamp(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
 }
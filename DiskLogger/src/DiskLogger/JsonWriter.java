@@ -0,0 +1,255 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package DiskLogger;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Streaming JSON writer, to build the records of the logs without temporary
+ * strings: the names and values are escaped and appended to a buffer that is
+ * written as it is to the log. There is one writer per thread, reused for
+ * every record (get() returns it empty)
+ * @author Aaron Rodriguez Bueno
+ */
+public class JsonWriter {
+
+    private static final ThreadLocal<JsonWriter> WRITERS = ThreadLocal.withInitial(JsonWriter::new);
+    private static final char [] HEX = "0123456789abcdef".toCharArray();
+    private static final int MAX_KEPT = 64*1024;    //A bigger buffer isn't kept after a record
+
+    private StringBuilder buffer;
+    private char [] chars;          //To write the buffer without copying it to a String
+    private boolean comma;          //If the next name or value needs a comma before it
+
+    /**
+     * Constructor
+     */
+    private JsonWriter(){
+        buffer = new StringBuilder(512);
+        chars = new char[512];
+        comma = false;
+    }
+
+    /**
+     * Gets the writer of the current thread, empty
+     * @return The writer
+     */
+    public static JsonWriter get(){
+        JsonWriter writer = WRITERS.get();
+        writer.reset();
+        return writer;
+    }
+
+    /**
+     * Empties the writer
+     * @return This writer
+     */
+    public JsonWriter reset(){
+        if(buffer.capacity() > MAX_KEPT)
+            buffer = new StringBuilder(512);
+        buffer.setLength(0);
+        comma = false;
+        return this;
+    }
+
+    /**
+     * Starts an object
+     * @return This writer
+     */
+    public JsonWriter beginObject(){
+        separator();
+        buffer.append('{');
+        comma = false;
+        return this;
+    }
+
+    /**
+     * Ends an object
+     * @return This writer
+     */
+    public JsonWriter endObject(){
+        buffer.append('}');
+        comma = true;
+        return this;
+    }
+
+    /**
+     * Starts an array
+     * @return This writer
+     */
+    public JsonWriter beginArray(){
+        separator();
+        buffer.append('[');
+        comma = false;
+        return this;
+    }
+
+    /**
+     * Ends an array
+     * @return This writer
+     */
+    public JsonWriter endArray(){
+        buffer.append(']');
+        comma = true;
+        return this;
+    }
+
+    /**
+     * Writes the name of a member of an object (its value goes next)
+     * @param name The name
+     * @return This writer
+     */
+    public JsonWriter name(String name){
+        separator();
+        string(name);
+        buffer.append(':');
+        comma = false;
+        return this;
+    }
+
+    /**
+     * Writes a string value
+     * @param value The value (null is written as null)
+     * @return This writer
+     */
+    public JsonWriter value(String value){
+        separator();
+        if(value == null)
+            buffer.append("null");
+        else
+            string(value);
+        comma = true;
+        return this;
+    }
+
+    /**
+     * Writes an integer value
+     * @param value The value
+     * @return This writer
+     */
+    public JsonWriter value(long value){
+        separator();
+        buffer.append(value);
+        comma = true;
+        return this;
+    }
+
+    /**
+     * Writes a decimal value
+     * @param value The value (NaN and infinite are written as null)
+     * @return This writer
+     */
+    public JsonWriter value(double value){
+        separator();
+        if(Double.isNaN(value) || Double.isInfinite(value))
+            buffer.append("null");
+        else
+            buffer.append(value);
+        comma = true;
+        return this;
+    }
+
+    /**
+     * Writes a boolean value
+     * @param value The value
+     * @return This writer
+     */
+    public JsonWriter value(boolean value){
+        separator();
+        buffer.append(value);
+        comma = true;
+        return this;
+    }
+
+    /**
+     * Writes a value that is JSON already, as it is
+     * @param json The JSON value
+     * @return This writer
+     */
+    public JsonWriter rawValue(String json){
+        separator();
+        buffer.append(json);
+        comma = true;
+        return this;
+    }
+
+    /**
+     * Gets the length of what was written
+     * @return The number of chars
+     */
+    public int length(){
+        return buffer.length();
+    }
+
+    /**
+     * Writes what was written to a writer
+     * @param out The writer
+     * @throws IOException
+     */
+    public void writeTo(Writer out) throws IOException{
+        int length = buffer.length();
+
+        for(int start = 0; start < length; start += chars.length){
+            int end = Math.min(length, start + chars.length);
+            buffer.getChars(start, end, chars, 0);
+            out.write(chars, 0, end - start);
+        }
+    }
+
+    /**
+     * Gets what was written
+     * @return The JSON text
+     */
+    @Override
+    public String toString(){
+        return buffer.toString();
+    }
+
+    /**
+     * Writes the comma between two members or elements, if it is needed
+     */
+    private void separator(){
+        if(comma)
+            buffer.append(',');
+    }
+
+    /**
+     * Writes a string between quotes, escaping the quotes, the backslashes,
+     * the control characters and the line separators of JavaScript
+     * @param s The string
+     */
+    private void string(String s){
+        int length = s.length();
+        int start = 0;
+
+        buffer.append('"');
+        for(int i = 0; i < length; i++){
+            char c = s.charAt(i);
+
+            if(c >= 0x20 && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029')
+                continue;
+
+            //The chars that don't need escaping are appended in blocks
+            buffer.append(s, start, i);
+            start = i + 1;
+
+            switch(c){
+                case '"':   buffer.append("\\\""); break;
+                case '\\':  buffer.append("\\\\"); break;
+                case '\n':  buffer.append("\\n"); break;
+                case '\r':  buffer.append("\\r"); break;
+                case '\t':  buffer.append("\\t"); break;
+                case '\b':  buffer.append("\\b"); break;
+                case '\f':  buffer.append("\\f"); break;
+                default:
+                    buffer.append("\\u").append(HEX[(c >> 12) & 0xF]).append(HEX[(c >> 8) & 0xF])
+                                        .append(HEX[(c >> 4) & 0xF]).append(HEX[c & 0xF]);
+            }
+        }
+        buffer.append(s, start, length);
+        buffer.append('"');
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package myagent;
+
+import DiskLogger.DiskLogger;
+import DiskLogger.JsonWriter;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Status log of an agent, with levels and a limit of records per message:
+ * every key (by default, the message itself) has a token bucket, and the
+ * records over it are just counted. Every few seconds, the keys with records
+ * dropped are written once, like "Error queueing message: queue is full x12345
+ * in last 10s", so a flood of attacks doesn't fill the disk with the same line
+ * nor take the CPU from the agent
+ * @author Aaron Rodriguez Bueno
+ */
+public class AgentLog {
+
+    public static final int DEBUG = 0;
+    public static final int INFO = 1;
+    public static final int WARN = 2;
+    public static final int ERROR = 3;
+    private static final String [] LEVEL_NAMES = {"debug", "info", "warn", "error"};
+
+    private static final int MAX_KEYS = 10000;      //More keys are counted together (messages with IPs as keys...)
+    private static final String OTHER_KEY = "";
+
+    //Shared by all the logs, it writes the summaries
+    private static final ScheduledExecutorService summaries = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "log-summaries");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String agent;
+    private final DiskLogger dlogger;
+    private final ConcurrentHashMap<String, KeyState> keys;
+    private final LongAdder suppressed;
+    private final AtomicBoolean scheduled;  //If there is a summary scheduled (only while there are keys)
+    private volatile int level;
+    private volatile double perSecond;
+    private volatile double burst;
+    private volatile int summarySeconds;
+    private volatile boolean console;       //If there isn't any disk logger
+
+    /**
+     * Constructor, with the INFO level, 5 records per second of every key
+     * (bursts of 50) and summaries every 10 seconds
+     * @param agent The name of the agent
+     * @param dlogger The log file (null to just print the records)
+     */
+    public AgentLog(String agent, DiskLogger dlogger){
+        this.agent = agent;
+        this.dlogger = dlogger;
+        this.keys = new ConcurrentHashMap<String, KeyState>();
+        this.suppressed = new LongAdder();
+        this.level = INFO;
+        this.perSecond = 5;
+        this.burst = 50;
+        this.summarySeconds = 10;
+        this.console = true;
+        this.scheduled = new AtomicBoolean(false);
+    }
+
+    /**
+     * Gets the number of a level
+     * @param name The name of the level ("debug", "info", "warn" or "error")
+     * @param defaultLevel The level returned if the name is wrong
+     * @return The level
+     */
+    public static int parseLevel(String name, int defaultLevel){
+        for(int i = 0; i < LEVEL_NAMES.length; i++)
+            if(LEVEL_NAMES[i].equalsIgnoreCase(name))
+                return i;
+
+        return defaultLevel;
+    }
+
+    /**
+     * Sets the lowest level written
+     * @param level The level
+     */
+    public void setLevel(int level){
+        this.level = level;
+    }
+
+    /**
+     * Gets the lowest level written
+     * @return The level
+     */
+    public int getLevel(){
+        return level;
+    }
+
+    /**
+     * Sets how many records of the same key are written: a number per second
+     * on average, and bursts of ten seconds of records
+     * @param perSecond The records per second (0 for no limit)
+     */
+    public void setRate(double perSecond){
+        this.perSecond = perSecond;
+        this.burst = 10*perSecond;
+
+        for(KeyState state : keys.values())
+            synchronized(state){
+                state.bucket.setRate(perSecond, burst);
+            }
+    }
+
+    /**
+     * Sets how often the records dropped are summarized
+     * @param seconds The seconds
+     */
+    public void setSummarySeconds(int seconds){
+        this.summarySeconds = Math.max(1, seconds);
+    }
+
+    /**
+     * Sets if the records are printed when there isn't any disk logger (with
+     * a disk logger, its echo is used)
+     * @param console true to print them, false otherwise
+     */
+    public void setConsole(boolean console){
+        this.console = console;
+    }
+
+    /**
+     * Gets the number of records dropped by the limit since the agent started
+     * @return The number of records
+     */
+    public long getSuppressed(){
+        return suppressed.sum();
+    }
+
+    /**
+     * Writes a DEBUG record
+     * @param message The message (it is its key too)
+     */
+    public void debug(String message){
+        log(DEBUG, message, message);
+    }
+
+    /**
+     * Writes an INFO record
+     * @param message The message (it is its key too)
+     */
+    public void info(String message){
+        log(INFO, message, message);
+    }
+
+    /**
+     * Writes an INFO record
+     * @param key The key of the limit (the same for the same kind of message)
+     * @param message The message
+     */
+    public void info(String key, String message){
+        log(INFO, key, message);
+    }
+
+    /**
+     * Writes a WARN record
+     * @param message The message (it is its key too)
+     */
+    public void warn(String message){
+        log(WARN, message, message);
+    }
+
+    /**
+     * Writes a WARN record
+     * @param key The key of the limit (the same for the same kind of message)
+     * @param message The message
+     */
+    public void warn(String key, String message){
+        log(WARN, key, message);
+    }
+
+    /**
+     * Writes an ERROR record
+     * @param message The message (it is its key too)
+     */
+    public void error(String message){
+        log(ERROR, message, message);
+    }
+
+    /**
+     * Writes an ERROR record
+     * @param key The key of the limit (the same for the same kind of message)
+     * @param message The message
+     */
+    public void error(String key, String message){
+        log(ERROR, key, message);
+    }
+
+    /**
+     * Writes a record, if its level is high enough and its key didn't go
+     * over the limit
+     * @param level The level
+     * @param key The key of the limit
+     * @param message The message
+     */
+    public void log(int level, String key, String message){
+        if(level < this.level)
+            return;
+
+        if(perSecond > 0){
+            KeyState state = keys.get(key);
+            if(state == null){
+                if(keys.size() >= MAX_KEYS)
+                    key = OTHER_KEY;
+                state = keys.computeIfAbsent(key, k -> new KeyState(perSecond, burst));
+                scheduleSummary();
+            }
+
+            synchronized(state){
+                state.level = level;
+                state.message = message;
+                if(!state.bucket.tryAcquire(System.nanoTime())){
+                    state.suppressed++;
+                    suppressed.increment();
+                    return;
+                }
+            }
+        }
+
+        write(level, message, 0);
+    }
+
+    /**
+     * Writes a record
+     * @param level The level
+     * @param message The message
+     * @param dropped The records summarized (0 if it isn't a summary)
+     */
+    private void write(int level, String message, long dropped){
+        JsonWriter record = (dlogger != null) ? dlogger.BeginRecord() : JsonWriter.get();
+
+        record.beginObject().name("agent").value(agent).name("content").beginObject();
+        if(dropped > 0)
+            record.name("status").value(message+" x"+dropped+" in last "+summarySeconds+"s")
+                  .name("repeated").value(dropped);
+        else
+            record.name("status").value(message);
+        record.name("level").value(LEVEL_NAMES[level]).endObject().endObject();
+
+        if(dlogger != null)
+            dlogger.AddObject(record);
+        else if(console)
+            System.out.println(record);
+    }
+
+    /**
+     * Writes the summaries of the keys with records dropped, and forgets the
+     * keys not used lately
+     */
+    private void summarize(){
+        long now = System.nanoTime();
+
+        try{
+            Iterator<Map.Entry<String, KeyState>> it = keys.entrySet().iterator();
+            while(it.hasNext()){
+                KeyState state = it.next().getValue();
+                long dropped;
+                String message;
+                int recordLevel;
+
+                synchronized(state){
+                    dropped = state.suppressed;
+                    message = state.message;
+                    recordLevel = state.level;
+                    state.suppressed = 0;
+
+                    if(dropped == 0 && state.bucket.isFull(now))
+                        it.remove();
+                }
+
+                if(dropped > 0)
+                    write(recordLevel, message, dropped);
+            }
+        }
+        finally{
+            scheduled.set(false);
+            if(!keys.isEmpty())
+                scheduleSummary();
+        }
+    }
+
+    /**
+     * Schedules the next summary, if there isn't any scheduled
+     */
+    private void scheduleSummary(){
+        if(scheduled.compareAndSet(false, true))
+            summaries.schedule(this::summarize, summarySeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * The limit and the records dropped of a key
+     */
+    private static class KeyState {
+        private final TokenBucket bucket;
+        private long suppressed;
+        private String message;         //The last one
+        private int level;
+
+        private KeyState(double perSecond, double burst){
+            this.bucket = new TokenBucket(perSecond, burst);
+            this.suppressed = 0;
+        }
+    }
+}
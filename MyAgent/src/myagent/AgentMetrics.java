@@ -0,0 +1,208 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package myagent;
+
+import es.upv.dsic.gti_ia.core.ACLMessage;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Runtime metrics of an agent, registered as the MBean "CID:type=Agent,name=..."
+ * so they can be read with JConsole or any JMX client: queue depths and other
+ * current values, counts of events and messages, the time spent in every state
+ * and latency histograms. All the methods can be called from any thread
+ * @author Aaron Rodriguez Bueno
+ */
+public class AgentMetrics implements AgentMetricsMXBean {
+    private final ConcurrentHashMap<String, LongSupplier> gauges;
+    private final ConcurrentHashMap<String, LongAdder> counters;
+    private final ConcurrentHashMap<String, LongAdder> received;
+    private final ConcurrentHashMap<String, LongAdder> sent;
+    private final ConcurrentHashMap<String, LatencyHistogram> latencies;
+    private final TreeMap<String, Long> stateNanos;
+    private String state;
+    private long stateStart;
+    private ObjectName name;
+    
+    /**
+     * Constructor. It registers the MBean (if there is another one with the 
+     * same name, it is replaced)
+     * @param agentName The name of the agent
+     */
+    public AgentMetrics(String agentName){
+        gauges = new ConcurrentHashMap<String, LongSupplier>();
+        counters = new ConcurrentHashMap<String, LongAdder>();
+        received = new ConcurrentHashMap<String, LongAdder>();
+        sent = new ConcurrentHashMap<String, LongAdder>();
+        latencies = new ConcurrentHashMap<String, LatencyHistogram>();
+        stateNanos = new TreeMap<String, Long>();
+        state = "";
+        stateStart = System.nanoTime();
+        
+        try{
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            name = ObjectName.getInstance("CID:type=Agent,name="+ObjectName.quote(agentName));
+            if(server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(this, name);
+        }
+        catch(Exception ex){
+            //Without JMX the metrics are still collected
+            name = null;
+        }
+    }
+    
+    /**
+     * Unregisters the MBean
+     */
+    public void unregister(){
+        try{
+            if(name != null)
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }
+        catch(Exception ex){
+            //It was already unregistered
+        }
+    }
+    
+    /**
+     * Adds a current value, read every time the metrics are read
+     * @param gauge The name
+     * @param value The function that returns the value
+     */
+    public void gauge(String gauge, LongSupplier value){
+        gauges.put(gauge, value);
+    }
+    
+    /**
+     * Counts an event
+     * @param counter The name of the event
+     */
+    public void count(String counter){
+        count(counter, 1);
+    }
+    
+    /**
+     * Counts several events
+     * @param counter The name of the events
+     * @param n The number of events
+     */
+    public void count(String counter, long n){
+        counters.computeIfAbsent(counter, k -> new LongAdder()).add(n);
+    }
+    
+    /**
+     * Counts a received message
+     * @param msg The message
+     */
+    public void received(ACLMessage msg){
+        received.computeIfAbsent(msg.getPerformative(), k -> new LongAdder()).increment();
+    }
+    
+    /**
+     * Counts a sent message
+     * @param msg The message
+     */
+    public void sent(ACLMessage msg){
+        sent.computeIfAbsent(msg.getPerformative(), k -> new LongAdder()).increment();
+    }
+    
+    /**
+     * Records the latency of an operation
+     * @param operation The name of the operation
+     * @param start The System.nanoTime() when the operation started
+     */
+    public void latency(String operation, long start){
+        latencies.computeIfAbsent(operation, k -> new LatencyHistogram()).record(System.nanoTime() - start);
+    }
+    
+    /**
+     * Changes the current state, adding the time spent to the last one
+     * @param newState The new state
+     */
+    public synchronized void enterState(String newState){
+        long now = System.nanoTime();
+        
+        if(!state.isEmpty())
+            stateNanos.merge(state, now - stateStart, Long::sum);
+        state = newState;
+        stateStart = now;
+    }
+    
+    @Override
+    public Map<String, Long> getGauges(){
+        TreeMap<String, Long> values = new TreeMap<String, Long>();
+        
+        for(Map.Entry<String, LongSupplier> gauge : gauges.entrySet())
+            values.put(gauge.getKey(), gauge.getValue().getAsLong());
+        
+        return values;
+    }
+    
+    @Override
+    public Map<String, Long> getCounters(){
+        return sums(counters);
+    }
+    
+    @Override
+    public Map<String, Long> getMessagesReceived(){
+        return sums(received);
+    }
+    
+    @Override
+    public Map<String, Long> getMessagesSent(){
+        return sums(sent);
+    }
+    
+    @Override
+    public synchronized Map<String, Long> getStateMillis(){
+        TreeMap<String, Long> millis = new TreeMap<String, Long>();
+        
+        for(Map.Entry<String, Long> time : stateNanos.entrySet())
+            millis.put(time.getKey(), time.getValue()/1000000);
+        
+        //Including the time in the current state
+        if(!state.isEmpty())
+            millis.merge(state, (System.nanoTime() - stateStart)/1000000, Long::sum);
+        
+        return millis;
+    }
+    
+    @Override
+    public synchronized String getState(){
+        return state;
+    }
+    
+    @Override
+    public Map<String, Map<String, Long>> getLatencies(){
+        TreeMap<String, Map<String, Long>> snapshots = new TreeMap<String, Map<String, Long>>();
+        
+        for(Map.Entry<String, LatencyHistogram> histogram : latencies.entrySet())
+            snapshots.put(histogram.getKey(), histogram.getValue().snapshot());
+        
+        return snapshots;
+    }
+    
+    /**
+     * Reads some counters
+     * @param adders The counters
+     * @return The values by name
+     */
+    private static TreeMap<String, Long> sums(ConcurrentHashMap<String, LongAdder> adders){
+        TreeMap<String, Long> values = new TreeMap<String, Long>();
+        
+        for(Map.Entry<String, LongAdder> adder : adders.entrySet())
+            values.put(adder.getKey(), adder.getValue().sum());
+        
+        return values;
+    }
+}
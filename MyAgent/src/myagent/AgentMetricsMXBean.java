@@ -0,0 +1,57 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package myagent;
+
+import java.util.Map;
+
+/**
+ * JMX interface of the metrics of an agent (see AgentMetrics)
+ * @author Aaron Rodriguez Bueno
+ */
+public interface AgentMetricsMXBean {
+    
+    /**
+     * Returns the current values (queue depths, subscribed agents, active bans...)
+     * @return The values by name
+     */
+    Map<String, Long> getGauges();
+    
+    /**
+     * Returns the events counted since the agent started (reports, broadcasts...)
+     * @return The counts by name
+     */
+    Map<String, Long> getCounters();
+    
+    /**
+     * Returns the received messages
+     * @return The counts by performative
+     */
+    Map<String, Long> getMessagesReceived();
+    
+    /**
+     * Returns the sent messages
+     * @return The counts by performative
+     */
+    Map<String, Long> getMessagesSent();
+    
+    /**
+     * Returns the time spent in every state of the agent
+     * @return The milliseconds by state
+     */
+    Map<String, Long> getStateMillis();
+    
+    /**
+     * Returns the current state of the agent
+     * @return The state
+     */
+    String getState();
+    
+    /**
+     * Returns the latency distributions of the measured operations
+     * @return The count, mean and percentiles (in microseconds) by operation
+     */
+    Map<String, Map<String, Long>> getLatencies();
+}
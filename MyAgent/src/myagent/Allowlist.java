@@ -0,0 +1,145 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package myagent;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The IPs that are never counted as attackers nor banned (our own jump hosts,
+ * monitoring probes, NAT gateways...): a list of networks of the configuration
+ * file plus, for long lists (like the ranges of a cloud provider), a file with
+ * a network per line ('#' starts a comment). A reload builds a new trie and
+ * replaces the old one at once, so the searches are never blocked nor see a
+ * half-loaded list
+ * @author Aaron Rodriguez Bueno
+ */
+public class Allowlist {
+    private volatile CidrTrie trie;
+    private List<String> networks;
+    private String filename;
+    private long fileModified;
+    private long fileLength;
+
+    /**
+     * Constructor of an empty allowlist
+     */
+    public Allowlist(){
+        this.trie = new CidrTrie();
+        this.networks = new ArrayList<String>();
+        this.filename = "";
+        this.fileModified = 0;
+        this.fileLength = 0;
+    }
+
+    /**
+     * Checks if an IP is allowed
+     * @param ip The IPv4 or IPv6 address
+     * @return true if it is in a network of the allowlist, false otherwise
+     */
+    public boolean contains(String ip){
+        return trie.contains(ip);
+    }
+
+    /**
+     * Checks if an IPv4 network has any allowed address
+     * @param network The first address of the network, as an integer
+     * @param prefix The prefix length of the network
+     * @return true if any address of the network is allowed, false otherwise
+     */
+    public boolean overlaps(int network, int prefix){
+        return trie.overlaps4(network, prefix);
+    }
+
+    /**
+     * Gets the number of networks
+     * @return The number of networks
+     */
+    public int size(){
+        return trie.size();
+    }
+
+    /**
+     * Gets the networks of the configuration file
+     * @return The networks
+     */
+    public synchronized List<String> getNetworks(){
+        return new ArrayList<String>(networks);
+    }
+
+    /**
+     * Gets the file with more networks
+     * @return The file name ("" if there isn't any)
+     */
+    public synchronized String getFilename(){
+        return filename;
+    }
+
+    /**
+     * Loads the networks, replacing the current ones
+     * @param networks The networks of the configuration file
+     * @param filename The file with more networks ("" if there isn't any)
+     * @return The wrong networks, that are ignored
+     * @throws IOException If the file can't be read (the current networks are kept)
+     */
+    public synchronized List<String> load(List<String> networks, String filename) throws IOException{
+        ArrayList<String> wrong = new ArrayList<String>();
+        CidrTrie loaded = new CidrTrie();
+        long modified = 0;
+        long length = 0;
+
+        for(String network : networks)
+            if(!loaded.add(network.trim()))
+                wrong.add(network);
+
+        if(!filename.equals("")){
+            File file = new File(filename);
+            modified = file.lastModified();
+            length = file.length();
+
+            try(BufferedReader in = new BufferedReader(new FileReader(file))){
+                String line;
+
+                while((line = in.readLine()) != null){
+                    int comment = line.indexOf('#');
+                    String network = ((comment == -1) ? line : line.substring(0, comment)).trim();
+
+                    if(!network.isEmpty() && !loaded.add(network))
+                        wrong.add(network);
+                }
+            }
+        }
+
+        this.networks = new ArrayList<String>(networks);
+        this.filename = filename;
+        this.fileModified = modified;
+        this.fileLength = length;
+        this.trie = loaded;
+
+        return wrong;
+    }
+
+    /**
+     * Loads the networks again if the file changed since the last load
+     * @return true if it was loaded, false if it didn't change
+     * @throws IOException If the file can't be read (the current networks are kept)
+     */
+    public synchronized boolean reloadIfChanged() throws IOException{
+        if(filename.equals(""))
+            return false;
+
+        File file = new File(filename);
+        if(file.lastModified() == fileModified && file.length() == fileLength)
+            return false;
+
+        load(networks, filename);
+        return true;
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package myagent;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Class that encodes the attack reports and the IPs to block in a compact 
+ * binary format (carried in Base64 in the message content). The IPv4 addresses
+ * are saved as 4 fixed bytes, and the counts and the dates (delta-encoded
+ * seconds since the epoch) as variable length integers.
+ * @author Aaron Rodriguez Bueno
+ */
+public class AttackReportCodec {
+    
+    //Encodings negotiated at SUBSCRIBE
+    public static final String JSON = "json";
+    public static final String COMPACT = "compact";
+    
+    //Format of the attack dates in the reports (English month names, like the logs)
+    public static final String DATE_FORMAT = "yyyy MMM dd HH:mm:ss";
+    
+    private static final byte VERSION = 1;
+    
+    /**
+     * Encodes the attack dates of every IP (an IP can be more than once)
+     * @param ips The attacker IPv4 addresses
+     * @param dates The attack dates (seconds since the epoch) of every IP
+     * @return The encoded report
+     * @throws IllegalArgumentException If an IP is not an IPv4 address
+     */
+    public static String encodeReport(List<String> ips, List<? extends List<Long>> dates){
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        
+        out.write(VERSION);
+        writeVarLong(out, ips.size());
+        
+        for(int i = 0; i < ips.size(); i++){
+            writeInt(out, toInt(ips.get(i)));
+            
+            long [] sorted = new long[dates.get(i).size()];
+            for(int j = 0; j < sorted.length; j++)
+                sorted[j] = dates.get(i).get(j);
+            Arrays.sort(sorted);
+            
+            writeVarLong(out, sorted.length);
+            long last = 0;
+            for(long date : sorted){
+                writeVarLong(out, date - last);
+                last = date;
+            }
+        }
+        
+        return Base64.getEncoder().encodeToString(out.toByteArray());
+    }
+    
+    /**
+     * Decodes a report
+     * @param report The encoded report
+     * @param ips The list to fill with the attacker IPs
+     * @param dates The list to fill with the attack dates (seconds since the epoch) of every IP
+     * @throws IllegalArgumentException If the report is not well formed
+     */
+    public static void decodeReport(String report, List<String> ips, List<ArrayList<Long>> dates){
+        ByteBuffer in = open(report);
+        
+        long size = readVarLong(in);
+        for(long i = 0; i < size; i++){
+            String ip = IpUtils.toIp(readInt(in));
+            long numDates = readVarLong(in);
+            ArrayList<Long> ipDates = new ArrayList<Long>();
+            long date = 0;
+            
+            for(long j = 0; j < numDates; j++){
+                date += readVarLong(in);
+                ipDates.add(date);
+            }
+            
+            ips.add(ip);
+            dates.add(ipDates);
+        }
+    }
+    
+    /**
+     * Encodes a list of IPv4 addresses
+     * @param ips The IPs
+     * @return The encoded list
+     * @throws IllegalArgumentException If an IP is not an IPv4 address
+     */
+    public static String encodeIps(List<String> ips){
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        
+        out.write(VERSION);
+        writeVarLong(out, ips.size());
+        for(String ip : ips)
+            writeInt(out, toInt(ip));
+        
+        return Base64.getEncoder().encodeToString(out.toByteArray());
+    }
+    
+    /**
+     * Decodes a list of IPv4 addresses
+     * @param ips The encoded list
+     * @return The IPs
+     * @throws IllegalArgumentException If the list is not well formed
+     */
+    public static ArrayList<String> decodeIps(String ips){
+        ArrayList<String> list = new ArrayList<String>();
+        ByteBuffer in = open(ips);
+        
+        long size = readVarLong(in);
+        for(long i = 0; i < size; i++)
+            list.add(IpUtils.toIp(readInt(in)));
+        
+        return list;
+    }
+    
+    /**
+     * Converts an IP into 4 bytes, checking that it is an IPv4 address (a
+     * port or an IPv6 address would be encoded as a wrong IPv4 address)
+     * @param ip The IP
+     * @return The integer
+     */
+    private static int toInt(String ip){
+        if(!IpUtils.isIpv4(ip))
+            throw new IllegalArgumentException("Not an IPv4 address: "+ip);
+        
+        return IpUtils.toInt(ip);
+    }
+    
+    /**
+     * Decodes the Base64 content and checks the version
+     * @param content The content
+     * @return The binary content
+     */
+    private static ByteBuffer open(String content){
+        ByteBuffer in = ByteBuffer.wrap(Base64.getDecoder().decode(content));
+        
+        if(!in.hasRemaining() || in.get() != VERSION)
+            throw new IllegalArgumentException("Unknown compact encoding version");
+        
+        return in;
+    }
+    
+    /**
+     * Writes 4 bytes
+     * @param out The output
+     * @param value The value
+     */
+    private static void writeInt(ByteArrayOutputStream out, int value){
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+    
+    /**
+     * Reads 4 bytes
+     * @param in The input
+     * @return The value
+     */
+    private static int readInt(ByteBuffer in){
+        if(in.remaining() < 4)
+            throw new IllegalArgumentException("Truncated compact content");
+        
+        return in.getInt();
+    }
+    
+    /**
+     * Writes a non negative number with 7 bits per byte
+     * @param out The output
+     * @param value The value
+     */
+    private static void writeVarLong(ByteArrayOutputStream out, long value){
+        while((value & ~0x7FL) != 0){
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+    
+    /**
+     * Reads a number written with writeVarLong
+     * @param in The input
+     * @return The value
+     */
+    private static long readVarLong(ByteBuffer in){
+        long value = 0;
+        int shift = 0;
+        byte b;
+        
+        do{
+            if(!in.hasRemaining() || shift > 63)
+                throw new IllegalArgumentException("Truncated compact content");
+            b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        }while((b & 0x80) != 0);
+        
+        return value;
+    }
+}
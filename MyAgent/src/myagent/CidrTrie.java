@@ -0,0 +1,211 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package myagent;
+
+import java.util.Arrays;
+
+/**
+ * Binary trie of IPv4 and IPv6 networks (CIDR prefixes), to know if an IP is
+ * in any of them following its bits: at most 32 steps for an IPv4 address and
+ * 128 for an IPv6 one, whatever the number of networks. The nodes are kept in
+ * arrays (two children per node), not in objects, so a list of thousands of
+ * networks is built fast and it takes little memory.
+ * The trie is filled before publishing it; after that, it is just read, so it
+ * can be read from any thread without locks
+ * @author Aaron Rodriguez Bueno
+ */
+public class CidrTrie {
+
+    private static final int ROOT4 = 0;
+    private static final int ROOT6 = 1;
+
+    private int [] children;        //children[2*node] for the bit 0, children[2*node+1] for the bit 1 (0 if there isn't any)
+    private boolean [] networks;    //If the node is the end of a network
+    private int nodes;
+    private int size;
+
+    /**
+     * Constructor of an empty trie
+     */
+    public CidrTrie(){
+        children = new int[64];
+        networks = new boolean[32];
+        nodes = 2;      //The roots of IPv4 and IPv6
+        size = 0;
+    }
+
+    /**
+     * Adds a network
+     * @param cidr The network ("10.0.0.0/8", "2001:db8::/32") or an IP alone
+     * @return true if it was added, false if it isn't a valid network
+     */
+    public boolean add(String cidr){
+        int slash = cidr.indexOf('/');
+        String address = (slash == -1) ? cidr : cidr.substring(0, slash);
+        int prefix;
+        byte [] bytes;
+
+        if(IpUtils.isIpv4(address)){
+            int ip = IpUtils.toInt(address);
+            bytes = new byte[]{(byte) (ip >>> 24), (byte) (ip >>> 16), (byte) (ip >>> 8), (byte) ip};
+        }
+        else{
+            bytes = IpUtils.ipv6ToBytes(address);
+            if(bytes == null)
+                return false;
+        }
+
+        try{
+            prefix = (slash == -1) ? bytes.length*8 : Integer.parseInt(cidr.substring(slash + 1));
+        }
+        catch(NumberFormatException e){
+            return false;
+        }
+        if(prefix < 0 || prefix > bytes.length*8)
+            return false;
+
+        int node = (bytes.length == 4) ? ROOT4 : ROOT6;
+        for(int depth = 0; depth < prefix; depth++){
+            //A wider network already covers this one
+            if(networks[node])
+                return true;
+
+            int child = 2*node + bit(bytes, depth);
+            if(children[child] == 0){
+                //Not in one line: newNode() may replace the array
+                int created = newNode();
+                children[child] = created;
+            }
+            node = children[child];
+        }
+
+        if(!networks[node]){
+            networks[node] = true;
+            size++;
+        }
+
+        return true;
+    }
+
+    /**
+     * Checks if an IP is in any network of the trie
+     * @param ip The IPv4 or IPv6 address
+     * @return true if it is in a network, false otherwise (or if it isn't an IP)
+     */
+    public boolean contains(String ip){
+        if(IpUtils.isIpv4(ip))
+            return contains4(IpUtils.toInt(ip));
+
+        byte [] bytes = IpUtils.ipv6ToBytes(ip);
+        if(bytes == null)
+            return false;
+
+        //The IPv4 addresses mapped in IPv6 (::ffff:a.b.c.d) are checked as IPv4 too
+        if(isMappedIpv4(bytes) && contains4(((bytes[12] & 0xFF) << 24) | ((bytes[13] & 0xFF) << 16) |
+                                                ((bytes[14] & 0xFF) << 8) | (bytes[15] & 0xFF)))
+            return true;
+
+        int node = ROOT6;
+        for(int depth = 0; depth < 128; depth++){
+            if(networks[node])
+                return true;
+
+            node = children[2*node + bit(bytes, depth)];
+            if(node == 0)
+                return false;
+        }
+
+        return networks[node];
+    }
+
+    /**
+     * Checks if an IPv4 network has any address of the trie: it is in a
+     * network of the trie, or a network of the trie is in it
+     * @param network The first address of the network, as an integer
+     * @param prefix The prefix length of the network
+     * @return true if they share any address, false otherwise
+     */
+    public boolean overlaps4(int network, int prefix){
+        int node = ROOT4;
+
+        for(int depth = 0; depth < prefix; depth++){
+            if(networks[node])
+                return true;
+
+            node = children[2*node + ((network >>> (31 - depth)) & 1)];
+            if(node == 0)
+                return false;
+        }
+
+        //The nodes are only created on the way to a network (but the root always exists)
+        return networks[node] || children[2*node] != 0 || children[2*node + 1] != 0;
+    }
+
+    /**
+     * Gets the number of networks (without the ones covered by wider ones
+     * added before them)
+     * @return The number of networks
+     */
+    public int size(){
+        return size;
+    }
+
+    /**
+     * Checks if an IPv4 address is in any network of the trie
+     * @param ip The IP as an integer
+     * @return true if it is in a network, false otherwise
+     */
+    private boolean contains4(int ip){
+        int node = ROOT4;
+
+        for(int depth = 0; depth < 32; depth++){
+            if(networks[node])
+                return true;
+
+            node = children[2*node + ((ip >>> (31 - depth)) & 1)];
+            if(node == 0)
+                return false;
+        }
+
+        return networks[node];
+    }
+
+    /**
+     * Creates a node, making the arrays bigger if they are full
+     * @return The new node
+     */
+    private int newNode(){
+        if(nodes == networks.length){
+            networks = Arrays.copyOf(networks, 2*nodes);
+            children = Arrays.copyOf(children, 4*nodes);
+        }
+
+        return nodes++;
+    }
+
+    /**
+     * Gets a bit of an address
+     * @param bytes The address
+     * @param index The index of the bit (0 is the highest one)
+     * @return The bit (0 or 1)
+     */
+    private static int bit(byte [] bytes, int index){
+        return (bytes[index >>> 3] >>> (7 - (index & 7))) & 1;
+    }
+
+    /**
+     * Checks if an IPv6 address is an IPv4 one mapped (::ffff:a.b.c.d)
+     * @param bytes The IPv6 address
+     * @return true if it is mapped, false otherwise
+     */
+    private static boolean isMappedIpv4(byte [] bytes){
+        for(int i = 0; i < 10; i++)
+            if(bytes[i] != 0)
+                return false;
+
+        return bytes[10] == (byte) 0xFF && bytes[11] == (byte) 0xFF;
+    }
+}
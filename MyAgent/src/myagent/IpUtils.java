@@ -0,0 +1,179 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package myagent;
+
+import java.util.Arrays;
+
+/**
+ * Class with some operations to manage IPv4 addresses as integers (and IPv6
+ * addresses as bytes)
+ * @author Aaron Rodriguez Bueno
+ */
+public class IpUtils {
+    
+    /**
+     * Checks if a String is an IPv4 address
+     * @param ip The String to check
+     * @return true if it is an IPv4 address, false otherwise
+     */
+    public static boolean isIpv4(String ip){
+        int parts = 0;
+        int value = -1;
+        
+        for(int i = 0; i < ip.length(); i++){
+            char c = ip.charAt(i);
+            
+            if(c == '.'){
+                if(value == -1)
+                    return false;
+                parts++;
+                value = -1;
+            }
+            else if(c >= '0' && c <= '9'){
+                value = (value == -1) ? c - '0' : value*10 + (c - '0');
+                if(value > 255)
+                    return false;
+            }
+            else{
+                return false;
+            }
+        }
+        
+        return parts == 3 && value != -1;
+    }
+    
+    /**
+     * Converts an IPv4 address into an integer
+     * @param ip The IP (it must be a valid IPv4 address)
+     * @return The integer
+     */
+    public static int toInt(String ip){
+        int result = 0;
+        int value = 0;
+        
+        for(int i = 0; i < ip.length(); i++){
+            char c = ip.charAt(i);
+            
+            if(c == '.'){
+                result = (result << 8) | value;
+                value = 0;
+            }
+            else{
+                value = value*10 + (c - '0');
+            }
+        }
+        
+        return (result << 8) | value;
+    }
+    
+    /**
+     * Converts an integer into an IPv4 address
+     * @param ip The integer
+     * @return The IP
+     */
+    public static String toIp(int ip){
+        return ((ip >>> 24) & 0xFF)+"."+((ip >>> 16) & 0xFF)+"."+((ip >>> 8) & 0xFF)+"."+(ip & 0xFF);
+    }
+    
+    /**
+     * Gets the network of an IPv4 address
+     * @param ip The IP as an integer
+     * @param prefix The prefix length (0-32)
+     * @return The network as an integer
+     */
+    public static int network(int ip, int prefix){
+        return (prefix == 0) ? 0 : ip & (-1 << (32 - prefix));
+    }
+    
+    /**
+     * Converts an IPv6 address into bytes (without resolving any name, unlike
+     * InetAddress). The zone (%eth0) is ignored
+     * @param ip The IP, with "::" or an IPv4 address at the end if it has them
+     * @return The 16 bytes, or null if it isn't an IPv6 address
+     */
+    public static byte [] ipv6ToBytes(String ip){
+        byte [] bytes = new byte[16];
+        int zone = ip.indexOf('%');
+        int length = (zone == -1) ? ip.length() : zone;
+        int groups = 0;
+        int gap = -1;       //Group where the "::" is
+        int i = 0;
+        
+        if(length < 2)
+            return null;
+        if(ip.charAt(0) == ':'){
+            if(ip.charAt(1) != ':')
+                return null;
+            gap = 0;
+            i = 2;
+        }
+        
+        while(i < length){
+            int end = ip.indexOf(':', i);
+            if(end == -1 || end > length)
+                end = length;
+            
+            //An IPv4 address at the end takes two groups
+            if(end == length && ip.lastIndexOf('.', length - 1) >= i){
+                String ipv4 = ip.substring(i, length);
+                if(groups > 6 || !isIpv4(ipv4))
+                    return null;
+                
+                int value = toInt(ipv4);
+                bytes[2*groups] = (byte) (value >>> 24);
+                bytes[2*groups+1] = (byte) (value >>> 16);
+                bytes[2*groups+2] = (byte) (value >>> 8);
+                bytes[2*groups+3] = (byte) value;
+                groups += 2;
+                break;
+            }
+            
+            if(groups == 8 || end == i || end - i > 4)
+                return null;
+            
+            int value = 0;
+            for(int j = i; j < end; j++){
+                int digit = Character.digit(ip.charAt(j), 16);
+                if(digit == -1)
+                    return null;
+                value = value*16 + digit;
+            }
+            bytes[2*groups] = (byte) (value >>> 8);
+            bytes[2*groups+1] = (byte) value;
+            groups++;
+            
+            if(end == length){
+                i = length;
+            }
+            else if(end + 1 < length && ip.charAt(end + 1) == ':'){
+                if(gap != -1)
+                    return null;
+                gap = groups;
+                i = end + 2;
+            }
+            else if(end + 1 == length){
+                return null;    //It can't finish with just one ':'
+            }
+            else{
+                i = end + 1;
+            }
+        }
+        
+        if(gap != -1){
+            //The groups after the "::" go to the end, and the gap is filled with zeros
+            if(groups == 8)
+                return null;
+            int after = groups - gap;
+            System.arraycopy(bytes, 2*gap, bytes, 16 - 2*after, 2*after);
+            Arrays.fill(bytes, 2*gap, 16 - 2*after, (byte) 0);
+        }
+        else if(groups != 8){
+            return null;
+        }
+        
+        return bytes;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package myagent;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies with a bucket for every power of two of microseconds.
+ * Recording is lock-free and takes constant memory, and the percentiles are 
+ * given as the upper bound of their bucket (at most twice the real value)
+ * @author Aaron Rodriguez Bueno
+ */
+public class LatencyHistogram {
+    private final AtomicLongArray buckets;
+    private final LongAdder count;
+    private final LongAdder total;
+    private volatile long max;
+    
+    /**
+     * Constructor
+     */
+    public LatencyHistogram(){
+        buckets = new AtomicLongArray(64);
+        count = new LongAdder();
+        total = new LongAdder();
+        max = 0;
+    }
+    
+    /**
+     * Records a latency
+     * @param nanos The latency in nanoseconds
+     */
+    public void record(long nanos){
+        long micros = Math.max(0, nanos/1000);
+        
+        buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(micros));
+        count.increment();
+        total.add(micros);
+        if(micros > max)
+            max = micros;
+    }
+    
+    /**
+     * Returns the distribution of the latencies recorded
+     * @return The count, mean, percentiles and maximum (in microseconds)
+     */
+    public LinkedHashMap<String, Long> snapshot(){
+        LinkedHashMap<String, Long> snapshot = new LinkedHashMap<String, Long>();
+        long [] counts = new long[buckets.length()];
+        long n = 0;
+        
+        for(int i = 0; i < counts.length; i++){
+            counts[i] = buckets.get(i);
+            n += counts[i];
+        }
+        
+        snapshot.put("count", n);
+        snapshot.put("mean us", (n == 0) ? 0 : total.sum()/Math.max(1, count.sum()));
+        snapshot.put("p50 us", percentile(counts, n, 0.50));
+        snapshot.put("p90 us", percentile(counts, n, 0.90));
+        snapshot.put("p99 us", percentile(counts, n, 0.99));
+        snapshot.put("max us", max);
+        
+        return snapshot;
+    }
+    
+    /**
+     * Calculates a percentile of the buckets
+     * @param counts The counts of the buckets
+     * @param n The total count
+     * @param fraction The percentile (between 0 and 1)
+     * @return The upper bound of the bucket of the percentile
+     */
+    private static long percentile(long [] counts, long n, double fraction){
+        long target = (long)Math.ceil(fraction*n);
+        long seen = 0;
+        
+        for(int i = 0; i < counts.length && n > 0; i++){
+            seen += counts[i];
+            if(seen >= target)
+                return (i == 0) ? 0 : (1L << i) - 1;
+        }
+        
+        return 0;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package myagent;
+
+import es.upv.dsic.gti_ia.core.ACLMessage;
+import es.upv.dsic.gti_ia.core.AgentID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transport that delivers the messages inside the JVM, calling directly the
+ * onMessage of the receiver agent (in the thread of the sender). It lets many
+ * agents work together without a broker, for tests and benchmarks
+ * @author Aaron Rodriguez Bueno
+ */
+public class LoopbackTransport implements Transport {
+    private final ConcurrentHashMap<String, MyAgent> agents;
+    private final AtomicLong delivered;
+    private final AtomicLong lost;
+    
+    /**
+     * Constructor
+     */
+    public LoopbackTransport(){
+        agents = new ConcurrentHashMap<String, MyAgent>();
+        delivered = new AtomicLong();
+        lost = new AtomicLong();
+    }
+    
+    /**
+     * Registers an agent to receive the messages sent to its name
+     * @param agent The agent
+     */
+    @Override
+    public void register(MyAgent agent){
+        agents.put(agent.getAid().name, agent);
+    }
+    
+    /**
+     * Unregisters an agent, so it doesn't receive messages anymore
+     * @param aid The AgentID of the agent
+     */
+    @Override
+    public void unregister(AgentID aid){
+        agents.remove(aid.name);
+    }
+    
+    /**
+     * Delivers a copy of the message to its receiver (like the broker, the 
+     * receiver doesn't share the object with the sender)
+     * @param msg The message
+     * @return true if the receiver was found, false otherwise
+     */
+    @Override
+    public boolean send(ACLMessage msg){
+        MyAgent receiver = (msg.getReceiver() == null) ? null : agents.get(msg.getReceiver().name);
+        
+        if(receiver == null){
+            lost.incrementAndGet();
+            return false;
+        }
+        
+        receiver.onMessage(copy(msg));
+        delivered.incrementAndGet();
+        
+        return true;
+    }
+    
+    /**
+     * Returns the number of messages delivered
+     * @return The number of messages
+     */
+    public long getDelivered(){
+        return delivered.get();
+    }
+    
+    /**
+     * Returns the number of messages whose receiver wasn't registered
+     * @return The number of messages
+     */
+    public long getLost(){
+        return lost.get();
+    }
+    
+    /**
+     * Copies the fields of a message used by the agents
+     * @param msg The message
+     * @return The copy
+     */
+    private static ACLMessage copy(ACLMessage msg){
+        ACLMessage copy = new ACLMessage();
+        
+        copy.setSender(msg.getSender());
+        copy.setReceiver(msg.getReceiver());
+        copy.setPerformative(msg.getPerformativeInt());
+        copy.setContent(msg.getContent());
+        copy.setConversationId(msg.getConversationId());
+        copy.setReplyWith(msg.getReplyWith());
+        copy.setInReplyTo(msg.getInReplyTo());
+        
+        return copy;
+    }
+}
@@ -8,7 +8,15 @@ package myagent;
 import es.upv.dsic.gti_ia.core.ACLMessage;
 import es.upv.dsic.gti_ia.core.AgentID;
 import es.upv.dsic.gti_ia.core.SingleAgent;
-import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Class that makes some agent tasks easier
@@ -16,6 +24,32 @@ import java.util.UUID;
  */
 public class MyAgent extends SingleAgent{
     
+    //Shared by all the agents, it just completes the requests without answer
+    private static final ScheduledExecutorService timeouts = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "reply-timeouts");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    //The way to deliver the messages (null to use the Magentix broker)
+    private volatile Transport transport = null;
+    
+    //The runtime metrics of the agent (JMX)
+    protected final AgentMetrics metrics;
+    
+    //The spans of the attacks lifecycle (disabled by default)
+    protected volatile Tracer tracer = Tracer.DISABLED;
+    
+    //The status log, with levels and a limit of repeated records (just printed by default)
+    protected volatile AgentLog log;
+    
+    //The ReplyWiths are a counter from a random start, so two requests never share one
+    private static final AtomicLong nextReplyId = new AtomicLong(ThreadLocalRandom.current().nextLong());
+    
+    //The requests waiting for an answer, by ConversationID and ReplyWith
+    private final ConcurrentHashMap<String, PendingReply> pendingReplies = 
+            new ConcurrentHashMap<String, PendingReply>();
+    
     /**
      * Constructor
      * @param aid The AgentID of the own Agent
@@ -23,6 +57,86 @@ public class MyAgent extends SingleAgent{
      */
     public MyAgent(AgentID aid) throws Exception {
         super(aid);
+        metrics = new AgentMetrics(aid.name);
+        log = new AgentLog(aid.name, null);
+        metrics.gauge("suppressed log records", () -> log.getSuppressed());
+    }
+    
+    /**
+     * Returns the runtime metrics of the agent
+     * @return The metrics
+     */
+    public AgentMetrics getMetrics(){
+        return metrics;
+    }
+    
+    /**
+     * Changes the status log of the agent
+     * @param log The log
+     */
+    public void setLog(AgentLog log){
+        this.log = log;
+    }
+    
+    /**
+     * Returns the status log of the agent
+     * @return The log
+     */
+    public AgentLog getLog(){
+        return log;
+    }
+    
+    /**
+     * Changes the trace file of the agent
+     * @param tracer The tracer (null to not write the spans)
+     */
+    public void setTracer(Tracer tracer){
+        this.tracer = (tracer == null) ? Tracer.DISABLED : tracer;
+    }
+    
+    /**
+     * Returns the tracer of the agent
+     * @return The tracer
+     */
+    public Tracer getTracer(){
+        return tracer;
+    }
+    
+    /**
+     * Changes the way to deliver the messages of this agent, and registers it
+     * to receive the messages of the transport
+     * @param transport The transport (null to use the Magentix broker)
+     */
+    public void setTransport(Transport transport){
+        if(this.transport != null)
+            this.transport.unregister(this.getAid());
+        
+        this.transport = transport;
+        
+        if(transport != null)
+            transport.register(this);
+    }
+    
+    /**
+     * Returns the way to deliver the messages of this agent
+     * @return The transport (null if it is the Magentix broker)
+     */
+    public Transport getTransport(){
+        return transport;
+    }
+    
+    /**
+     * Sends a message with the transport of the agent
+     * @param outbox The message
+     */
+    private void deliver(ACLMessage outbox){
+        Transport current = transport;
+        
+        metrics.sent(outbox);
+        if(current != null)
+            current.send(outbox);
+        else
+            send(outbox);
     }
     
     /**
@@ -52,7 +166,7 @@ public class MyAgent extends SingleAgent{
     public void sendMessage(AgentID receiver, int performative, String content){
         ACLMessage outbox = pack(receiver, performative, content);
         
-        send(outbox);
+        deliver(outbox);
     }
 
     /**
@@ -66,7 +180,7 @@ public class MyAgent extends SingleAgent{
         ACLMessage outbox = pack(receiver, performative, content);
         outbox.setConversationId(cid);
 
-        send(outbox);
+        deliver(outbox);
     }
   
     /**
@@ -82,7 +196,7 @@ public class MyAgent extends SingleAgent{
         outbox.setConversationId(cid);
         outbox.setReplyWith(reply);
         
-        send(outbox);
+        deliver(outbox);
     }
     
     /**
@@ -98,36 +212,112 @@ public class MyAgent extends SingleAgent{
         outbox.setConversationId(cid);
         outbox.setInReplyTo(reply);
         
-        send(outbox);
+        deliver(outbox);
     }
     
     /**
-     * Generates a random ReplyWith
+     * Sends the message to the receiver agent and waits for its answer without
+     * blocking the agent. The answer is the message whose InReplyTo is the ReplyWith
+     * sent (in the same conversation, if there is one, and from the receiver),
+     * and it must be given to dispatchReply when it is received
+     * @param receiver The receiver of the message
+     * @param performative The performative of the message
+     * @param content The content of the message
+     * @param cid The ConversationID (it can be null)
+     * @param reply The ReplyWith
+     * @param timeoutMillis The milliseconds to wait for the answer
+     * @return The answer, or a TimeoutException if it doesn't arrive in time
+     */
+    public CompletableFuture<ACLMessage> request(AgentID receiver, int performative, String content, 
+                                                    String cid, String reply, long timeoutMillis){
+        CompletableFuture<ACLMessage> answer = new CompletableFuture<ACLMessage>();
+        PendingReply pending = new PendingReply(receiver, answer);
+        String key = replyKey(cid, reply);
+        ACLMessage outbox = pack(receiver, performative, content);
+        
+        if(cid != null)
+            outbox.setConversationId(cid);
+        outbox.setReplyWith(reply);
+        
+        //Another request waiting for the same answer would take it from this one
+        if(pendingReplies.putIfAbsent(key, pending) != null){
+            answer.completeExceptionally(new IllegalStateException("Another request is waiting for "+reply));
+            return answer;
+        }
+        
+        ScheduledFuture<?> timeout = timeouts.schedule(() -> {
+            answer.completeExceptionally(new TimeoutException("No answer from "+receiver.name+" to "+reply));
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        
+        //Whatever happens, the request doesn't wait anymore
+        answer.whenComplete((message, ex) -> {
+            timeout.cancel(false);
+            pendingReplies.remove(key, pending);
+        });
+        
+        deliver(outbox);
+        
+        return answer;
+    }
+    
+    /**
+     * Gives a received message to the request waiting for it
+     * @param msg The received message
+     * @return true if it was the answer of a request, false otherwise (it must
+     * be processed as usual)
+     */
+    protected boolean dispatchReply(ACLMessage msg){
+        String reply = msg.getInReplyTo();
+        
+        if(reply == null || reply.isEmpty())
+            return false;
+        
+        PendingReply pending = pendingReplies.get(replyKey(msg.getConversationId(), reply));
+        
+        //A request without ConversationID gets it in the answer (like the subscriptions)
+        if(pending == null)
+            pending = pendingReplies.get(replyKey(null, reply));
+        
+        //Only the receiver of the request can answer it
+        if(pending == null || !pending.receiver.name.equals(msg.getSender().name))
+            return false;
+        
+        return pending.answer.complete(msg);
+    }
+    
+    /**
+     * Generates a new ReplyWith, different from the ones of the other requests
      * @return The ReplyWith
      */
     public String generateReplyId(){
-        return UUID.randomUUID().toString().substring(0, 5);
+        return Long.toString(nextReplyId.getAndIncrement() & Long.MAX_VALUE, 36);
     }
     
     /**
-     * Parse the message in a Json 
-     * @author Luis Castillo Vidal
-     * @param content The message to parse
-     * @return 
+     * Gets the key of a request waiting for its answer
+     * @param cid The ConversationID (it can be null)
+     * @param reply The ReplyWith
+     * @return The key
      */
-         protected String logMessage(String content)  {
-           String res = "{\"agent\":\""+this.getName()+"\", \"content\":{"+content+"}}";
-           System.out.println(res);
-           return res;
+    private static String replyKey(String cid, String reply){
+        return (cid == null ? "" : cid)+"/"+reply;
     }
-         
-
+    
     /**
      * Check if a String is an IP or not
      * @param ip The IP to check
      * @return true if it is an IP, false otherwise
      */
     protected boolean checkIp(String ip) {
+        return isIp(ip);
+    }
+    
+    /**
+     * Check if a String is an IP or not (without an agent, for the benchmarks)
+     * @param ip The IP to check
+     * @return true if it is an IP, false otherwise
+     */
+    public static boolean isIp(String ip) {
         String [] parts = ip.split("\\.");
         boolean correct = true;
         
@@ -144,4 +334,21 @@ public class MyAgent extends SingleAgent{
     }
     
          
+    /**
+     * A request waiting for its answer
+     */
+    private static class PendingReply {
+        private final AgentID receiver;
+        private final CompletableFuture<ACLMessage> answer;
+        
+        /**
+         * Constructor
+         * @param receiver The receiver of the request
+         * @param answer The answer
+         */
+        private PendingReply(AgentID receiver, CompletableFuture<ACLMessage> answer){
+            this.receiver = receiver;
+            this.answer = answer;
+        }
+    }
 }
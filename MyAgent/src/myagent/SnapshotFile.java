@@ -0,0 +1,131 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package myagent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+/**
+ * Binary snapshot of the state of an agent, to restart it without losing what
+ * it had in memory. The file is a header (magic number, kind of agent, version
+ * and length), the state written by the agent with a DataOutputStream, and a
+ * CRC32 of the state. It is written to an aux file that is renamed later, so a
+ * crash while saving keeps the previous snapshot
+ * @author Aaron Rodriguez Bueno
+ */
+public class SnapshotFile {
+
+    private static final int MAGIC = 0x43494453;    //"CIDS"
+    private static final int HEADER = 16;
+    private static final int TRAILER = 8;
+
+    /**
+     * Writes the state of an agent
+     */
+    public interface StateWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Reads the state of an agent
+     */
+    public interface StateReader {
+        void read(DataInputStream in) throws IOException;
+    }
+
+    /**
+     * Saves a snapshot
+     * @param filename The snapshot file
+     * @param kind The kind of agent (a snapshot of other kind isn't loaded)
+     * @param version The version of the format of the state
+     * @param writer The writer of the state
+     * @return The bytes written
+     * @throws IOException
+     */
+    public static int save(String filename, int kind, int version, StateWriter writer) throws IOException{
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(64*1024);
+        DataOutputStream out = new DataOutputStream(buffer);
+
+        //The length is filled in when the state is written
+        out.writeInt(MAGIC);
+        out.writeInt(kind);
+        out.writeInt(version);
+        out.writeInt(0);
+        writer.write(out);
+        out.flush();
+
+        byte [] bytes = buffer.toByteArray();
+        int length = bytes.length - HEADER;
+        ByteBuffer.wrap(bytes).putInt(12, length);
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes, HEADER, length);
+
+        Path file = Paths.get(filename);
+        Path tempFile = Paths.get(filename+".aux");
+        try(FileOutputStream fos = new FileOutputStream(tempFile.toFile())){
+            fos.write(bytes);
+            fos.write(ByteBuffer.allocate(TRAILER).putLong(crc.getValue()).array());
+            fos.getFD().sync();
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        return bytes.length + TRAILER;
+    }
+
+    /**
+     * Loads a snapshot
+     * @param filename The snapshot file
+     * @param kind The kind of agent
+     * @param version The version of the format of the state
+     * @param reader The reader of the state
+     * @return true if it was loaded, false if there isn't any snapshot or it has other kind or version
+     * @throws IOException If the file can't be read or it is damaged
+     */
+    public static boolean load(String filename, int kind, int version, StateReader reader) throws IOException{
+        byte [] bytes;
+
+        try{
+            bytes = Files.readAllBytes(Paths.get(filename));
+        }
+        catch(NoSuchFileException e){
+            return false;
+        }
+
+        if(bytes.length < HEADER + TRAILER)
+            throw new IOException("Damaged snapshot "+filename);
+
+        ByteBuffer header = ByteBuffer.wrap(bytes);
+        if(header.getInt(0) != MAGIC)
+            throw new IOException("Bad format in the snapshot "+filename);
+        if(header.getInt(4) != kind || header.getInt(8) != version)
+            return false;
+
+        int length = header.getInt(12);
+        if(length != bytes.length - HEADER - TRAILER)
+            throw new IOException("Damaged snapshot "+filename);
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes, HEADER, length);
+        if(crc.getValue() != header.getLong(HEADER + length))
+            throw new IOException("Damaged snapshot "+filename);
+
+        reader.read(new DataInputStream(new ByteArrayInputStream(bytes, HEADER, length)));
+
+        return true;
+    }
+}
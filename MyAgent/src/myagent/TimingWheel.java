@@ -0,0 +1,175 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package myagent;
+
+import java.util.ArrayList;
+
+/**
+ * Hierarchical timing wheel. Every level has 64 slots, and a slot of a level
+ * covers a whole turn of the level below, so scheduling an item is O(1) and
+ * advancing the wheel is O(1) per tick (plus the items that are cascaded).
+ * The wheel is not thread-safe.
+ * @author Aaron Rodriguez Bueno
+ * @param <T> The type of the scheduled items
+ */
+public class TimingWheel<T> {
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    
+    private final long tick;
+    private final int levels;
+    private final long range;
+    private final ArrayList<ArrayList<Timer<T>>> slots;
+    private final ArrayList<Timer<T>> due;
+    private long currentTick;
+    private int size;
+    
+    /**
+     * Scheduled item with its deadline
+     * @param <T> The type of the item
+     */
+    private static class Timer<T> {
+        private final T item;
+        private final long deadlineTick;
+        
+        private Timer(T item, long deadlineTick){
+            this.item = item;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+    
+    /**
+     * Constructor
+     * @param tick The milliseconds of every tick
+     * @param levels The number of levels (the wheel covers 64^levels ticks)
+     * @param now The current time in milliseconds
+     */
+    public TimingWheel(long tick, int levels, long now){
+        this.tick = tick;
+        this.levels = levels;
+        this.range = 1L << (BITS * levels);
+        this.slots = new ArrayList<ArrayList<Timer<T>>>(levels * SLOTS);
+        this.due = new ArrayList<Timer<T>>();
+        this.currentTick = now / tick;
+        this.size = 0;
+        
+        for(int i = 0; i < levels * SLOTS; i++)
+            slots.add(new ArrayList<Timer<T>>());
+    }
+    
+    /**
+     * Schedules an item
+     * @param item The item
+     * @param deadline The time in milliseconds when the item expires
+     */
+    public void schedule(T item, long deadline){
+        insert(new Timer<T>(item, (deadline + tick - 1) / tick));
+        size++;
+    }
+    
+    /**
+     * Advances the wheel until the time given
+     * @param now The current time in milliseconds
+     * @return The expired items
+     */
+    public ArrayList<T> advance(long now){
+        ArrayList<T> expired = new ArrayList<T>();
+        long targetTick = now / tick;
+        
+        for(Timer<T> t : due)
+            expired.add(t.item);
+        size -= due.size();
+        due.clear();
+        
+        if(size == 0 && targetTick > currentTick)
+            currentTick = targetTick;
+        
+        while(currentTick < targetTick){
+            currentTick++;
+            
+            //First we cascade the upper levels that finished a turn
+            for(int level = 1; level < levels && (currentTick & ((1L << (BITS * level)) - 1)) == 0; level++){
+                ArrayList<Timer<T>> slot = slot(level, currentTick);
+                ArrayList<Timer<T>> toCascade = new ArrayList<Timer<T>>(slot);
+                slot.clear();
+                
+                for(Timer<T> t : toCascade)
+                    insert(t);
+            }
+            
+            //Then we extract the expired items of the level 0
+            ArrayList<Timer<T>> slot = slot(0, currentTick);
+            if(!slot.isEmpty()){
+                ArrayList<Timer<T>> fired = new ArrayList<Timer<T>>(slot);
+                slot.clear();
+                
+                for(Timer<T> t : fired){
+                    if(t.deadlineTick <= currentTick){
+                        expired.add(t.item);
+                        size--;
+                    }
+                    else{
+                        insert(t);  //It was beyond the range of the wheel
+                    }
+                }
+            }
+            
+            if(size == 0)
+                currentTick = targetTick;
+        }
+        
+        //The cascaded items that were already expired
+        for(Timer<T> t : due)
+            expired.add(t.item);
+        size -= due.size();
+        due.clear();
+        
+        return expired;
+    }
+    
+    /**
+     * Gets the number of scheduled items
+     * @return The number of items
+     */
+    public int size(){
+        return size;
+    }
+    
+    /**
+     * Puts a timer in its level and slot
+     * @param t The timer
+     */
+    private void insert(Timer<T> t){
+        long delta = t.deadlineTick - currentTick;
+        
+        if(delta <= 0){
+            due.add(t);
+        }
+        else{
+            //If it is beyond the range, it is placed as far as possible and re-inserted later
+            long placed = (delta < range) ? t.deadlineTick : currentTick + range - 1;
+            delta = placed - currentTick;
+            
+            int level = 0;
+            while(level < levels - 1 && delta >= (1L << (BITS * (level + 1))))
+                level++;
+            
+            slot(level, placed).add(t);
+        }
+    }
+    
+    /**
+     * Gets the slot of a level for a tick
+     * @param level The level
+     * @param tickNumber The tick
+     * @return The slot
+     */
+    private ArrayList<Timer<T>> slot(int level, long tickNumber){
+        int index = (int) ((tickNumber >>> (BITS * level)) & MASK);
+        return slots.get(level * SLOTS + index);
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package myagent;
+
+/**
+ * Token bucket: it allows a number of events per second on average, and
+ * bursts of up to its capacity. It isn't thread-safe (the caller synchronizes)
+ * @author Aaron Rodriguez Bueno
+ */
+public class TokenBucket {
+    private double rate;        //Tokens per nanosecond
+    private double capacity;
+    private double tokens;
+    private long last;          //Last refill (System.nanoTime())
+
+    /**
+     * Constructor of a full bucket
+     * @param perSecond The events allowed per second on average
+     * @param capacity The events allowed at once
+     */
+    public TokenBucket(double perSecond, double capacity){
+        this.last = System.nanoTime();
+        setRate(perSecond, capacity);
+        this.tokens = this.capacity;
+    }
+
+    /**
+     * Changes the rate, keeping the tokens (up to the new capacity)
+     * @param perSecond The events allowed per second on average
+     * @param capacity The events allowed at once
+     */
+    public void setRate(double perSecond, double capacity){
+        this.rate = perSecond/1e9;
+        this.capacity = Math.max(1, capacity);
+        this.tokens = Math.min(tokens, this.capacity);
+    }
+
+    /**
+     * Takes a token, if there is any
+     * @param now The current time (System.nanoTime())
+     * @return true if the event is allowed, false otherwise
+     */
+    public boolean tryAcquire(long now){
+        tokens = Math.min(capacity, tokens + (now - last)*rate);
+        last = now;
+
+        if(tokens < 1)
+            return false;
+
+        tokens--;
+        return true;
+    }
+
+    /**
+     * Checks if the bucket is full (no event took a token lately)
+     * @param now The current time (System.nanoTime())
+     * @return true if it is full, false otherwise
+     */
+    public boolean isFull(long now){
+        return tokens + (now - last)*rate >= capacity;
+    }
+}
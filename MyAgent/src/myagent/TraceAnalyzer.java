@@ -0,0 +1,142 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package myagent;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Joins the trace files of the agents and prints the latency percentiles of
+ * every hop: how long it takes, and when it finishes since the trace started
+ * (the scan of the agent that detected the attack). The hops that finish much
+ * later than the previous one ended are waiting in the broker or in a queue
+ *
+ * Usage: java myagent.TraceAnalyzer trace_file [trace_file ...]
+ * @author Aaron Rodriguez Bueno
+ */
+public class TraceAnalyzer {
+
+    //The hops in the order of the lifecycle (the unknown ones go at the end)
+    private static final String [] HOPS = {"scan", "firewall", "report", "add attack", "broadcast", "block", "peer firewall"};
+
+    /**
+     * Analyzer start
+     * @param args The trace files
+     */
+    public static void main(String[] args) {
+        if(args.length == 0){
+            System.err.println("Usage: java myagent.TraceAnalyzer trace_file [trace_file ...]");
+            System.exit(1);
+        }
+
+        HashMap<String, ArrayList<long[]>> traces = new HashMap<String, ArrayList<long[]>>();
+        HashMap<String, Integer> hopIndex = new HashMap<String, Integer>();
+        ArrayList<String> hops = new ArrayList<String>();
+
+        for(String hop : HOPS){
+            hopIndex.put(hop, hops.size());
+            hops.add(hop);
+        }
+
+        //Every span is saved as {hop, start, duration}
+        for(String filename : args){
+            try(BufferedReader in = new BufferedReader(new FileReader(filename))){
+                String line;
+
+                while((line = in.readLine()) != null){
+                    String [] fields = line.split("\t");
+                    if(fields.length != 5)
+                        continue;
+
+                    if(!hopIndex.containsKey(fields[2])){
+                        hopIndex.put(fields[2], hops.size());
+                        hops.add(fields[2]);
+                    }
+
+                    ArrayList<long[]> spans = traces.get(fields[0]);
+                    if(spans == null){
+                        spans = new ArrayList<long[]>();
+                        traces.put(fields[0], spans);
+                    }
+                    spans.add(new long[]{hopIndex.get(fields[2]), Long.parseLong(fields[3]), Long.parseLong(fields[4])});
+                }
+            }
+            catch(IOException | NumberFormatException ex){
+                System.err.println("*** Error reading the trace file "+filename+": "+ex.getMessage());
+                System.exit(1);
+            }
+        }
+
+        ArrayList<ArrayList<Long>> durations = new ArrayList<ArrayList<Long>>();
+        ArrayList<ArrayList<Long>> ends = new ArrayList<ArrayList<Long>>();
+        ArrayList<Long> totals = new ArrayList<Long>();
+
+        for(int i = 0; i < hops.size(); i++){
+            durations.add(new ArrayList<Long>());
+            ends.add(new ArrayList<Long>());
+        }
+
+        for(ArrayList<long[]> spans : traces.values()){
+            long start = Long.MAX_VALUE;
+            long end = Long.MIN_VALUE;
+
+            for(long [] span : spans){
+                start = Math.min(start, span[1]);
+                end = Math.max(end, span[1] + span[2]);
+            }
+
+            for(long [] span : spans){
+                durations.get((int) span[0]).add(span[2]);
+                ends.get((int) span[0]).add(span[1] + span[2] - start);
+            }
+            totals.add(end - start);
+        }
+
+        System.out.println("Traces: "+traces.size()+" (milliseconds)");
+        System.out.println(String.format("%-16s%8s%10s%10s%10s%10s%12s%12s%12s",
+                            "hop", "spans", "p50", "p90", "p99", "max", "end p50", "end p90", "end p99"));
+
+        for(int i = 0; i < hops.size(); i++){
+            ArrayList<Long> duration = durations.get(i);
+            ArrayList<Long> end = ends.get(i);
+
+            if(duration.isEmpty())
+                continue;
+
+            Collections.sort(duration);
+            Collections.sort(end);
+            System.out.println(String.format("%-16s%8d%10.1f%10.1f%10.1f%10.1f%12.1f%12.1f%12.1f",
+                                hops.get(i), duration.size(),
+                                percentile(duration, 50), percentile(duration, 90), percentile(duration, 99),
+                                percentile(duration, 100),
+                                percentile(end, 50), percentile(end, 90), percentile(end, 99)));
+        }
+
+        if(!totals.isEmpty()){
+            Collections.sort(totals);
+            System.out.println(String.format("%-16s%8d%10.1f%10.1f%10.1f%10.1f",
+                                "total", totals.size(),
+                                percentile(totals, 50), percentile(totals, 90), percentile(totals, 99),
+                                percentile(totals, 100)));
+        }
+    }
+
+    /**
+     * Calculates a percentile of the sorted microseconds
+     * @param sorted The sorted values
+     * @param p The percentile (0-100)
+     * @return The percentile in milliseconds
+     */
+    private static double percentile(ArrayList<Long> sorted, int p){
+        int index = (int) Math.ceil(p/100.0*sorted.size()) - 1;
+
+        return sorted.get(Math.max(0, Math.min(index, sorted.size()-1)))/1000.0;
+    }
+}
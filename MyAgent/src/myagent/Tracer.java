@@ -0,0 +1,124 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package myagent;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Writes the spans of the attacks lifecycle (scan, report, add attack,
+ * broadcast, block, firewall) to a local trace file, one line per span:
+ * trace ID, agent, hop, start and duration (in microseconds since the epoch)
+ * separated by tabs. The trace ID is the ConversationID and the ReplyWith of
+ * the report, so the spans of every agent can be joined by TraceAnalyzer
+ * @author Aaron Rodriguez Bueno
+ */
+public class Tracer {
+
+    //The tracer that doesn't write anything
+    public static final Tracer DISABLED = new Tracer();
+
+    //Clock with microseconds, shared by all the tracers of the JVM
+    private static final long baseMicros = System.currentTimeMillis()*1000;
+    private static final long baseNanos = System.nanoTime();
+
+    private final String agent;
+    private final BufferedWriter out;
+
+    /**
+     * Constructor of the disabled tracer
+     */
+    private Tracer(){
+        agent = "";
+        out = null;
+    }
+
+    /**
+     * Constructor. The spans are appended to the file
+     * @param agent The name of the agent
+     * @param filename The trace file
+     * @throws IOException
+     */
+    public Tracer(String agent, String filename) throws IOException {
+        this.agent = agent;
+        this.out = new BufferedWriter(new FileWriter(filename, true));
+    }
+
+    /**
+     * Returns the current time
+     * @return The microseconds since the epoch
+     */
+    public static long now(){
+        return baseMicros + (System.nanoTime() - baseNanos)/1000;
+    }
+
+    /**
+     * Makes the trace ID of a report
+     * @param cid The ConversationID
+     * @param reply The ReplyWith of the report
+     * @return The trace ID
+     */
+    public static String traceId(String cid, String reply){
+        return cid+"/"+reply;
+    }
+
+    /**
+     * Checks if the spans are written
+     * @return true if they are written, false otherwise
+     */
+    public boolean isEnabled(){
+        return out != null;
+    }
+
+    /**
+     * Writes a span that finishes now
+     * @param trace The trace ID (nothing is written if it is null)
+     * @param hop The hop of the lifecycle
+     * @param start The start of the span, given by now()
+     */
+    public void span(String trace, String hop, long start){
+        span(trace, hop, start, now());
+    }
+
+    /**
+     * Writes a span
+     * @param trace The trace ID (nothing is written if it is null)
+     * @param hop The hop of the lifecycle
+     * @param start The start of the span, given by now()
+     * @param end The end of the span, given by now()
+     */
+    public void span(String trace, String hop, long start, long end){
+        if(out == null || trace == null)
+            return;
+
+        String line = trace+"\t"+agent+"\t"+hop+"\t"+start+"\t"+(end - start)+"\n";
+
+        synchronized(this){
+            try{
+                //Flushed every time, so the file can be analyzed while the agents run
+                out.write(line);
+                out.flush();
+            }
+            catch(IOException ex){
+                //A lost span doesn't stop the agent
+            }
+        }
+    }
+
+    /**
+     * Closes the trace file
+     */
+    public synchronized void close(){
+        try{
+            if(out != null)
+                out.close();
+        }
+        catch(IOException ex){
+            //It was already closed
+        }
+    }
+}
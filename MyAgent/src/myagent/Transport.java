@@ -0,0 +1,37 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package myagent;
+
+import es.upv.dsic.gti_ia.core.ACLMessage;
+import es.upv.dsic.gti_ia.core.AgentID;
+
+/**
+ * Interface of the ways to deliver the messages of the agents. Without a
+ * transport, the agents use the Magentix broker
+ * @author Aaron Rodriguez Bueno
+ */
+public interface Transport {
+    
+    /**
+     * Registers an agent to receive the messages sent to its name
+     * @param agent The agent
+     */
+    void register(MyAgent agent);
+    
+    /**
+     * Unregisters an agent, so it doesn't receive messages anymore
+     * @param aid The AgentID of the agent
+     */
+    void unregister(AgentID aid);
+    
+    /**
+     * Delivers a message to its receiver. The sender, ConversationID, ReplyWith
+     * and InReplyTo must arrive as they were sent
+     * @param msg The message
+     * @return true if the receiver was found, false otherwise
+     */
+    boolean send(ACLMessage msg);
+}
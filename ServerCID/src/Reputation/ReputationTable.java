@@ -0,0 +1,354 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package Reputation;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Class that keeps the reputation of the attacker IPs reported by the whole 
+ * fleet. Every IP has a score that grows with every agent that reports it and
+ * with its attempts, and that decays exponentially with the time. The score
+ * decides if the IP is sent to the other agents, and for how long they ban it.
+ * The table is bounded: when it is full, the IP not seen for longer is forgotten.
+ * @author Aaron Rodriguez Bueno
+ */
+public class ReputationTable {
+    private static final double REPORTER_WEIGHT = 1.0;  //Score of every agent that reports the IP
+    private static final double ATTEMPT_WEIGHT = 0.1;   //Score of every attempt reported
+    private static final double FORGET_FACTOR = 0.01;   //Below broadcastScore*FORGET_FACTOR, the IP starts again
+    
+    private final LinkedHashMap<String, IpReputation> reputations;
+    private double halfLife;
+    private double broadcastScore;
+    private long banTime;
+    private long maxBanTime;
+    private final int maxEntries;
+    
+    /**
+     * Reputation of an IP
+     */
+    private static class IpReputation {
+        private double score;
+        private long updated;               //When the score was calculated
+        private long attempts;
+        private long lastSeen;
+        private long broadcastUntil;        //When the ban of the last broadcast finishes
+        private final HashSet<String> reporters;
+        
+        private IpReputation(){
+            score = 0;
+            updated = 0;
+            attempts = 0;
+            lastSeen = 0;
+            broadcastUntil = 0;
+            reporters = new HashSet<String>();
+        }
+    }
+    
+    /**
+     * Constructor
+     * @param halfLife The milliseconds for the score to decay to half
+     * @param broadcastScore The minimum score to send an IP to the other agents
+     * @param banTime The milliseconds of the ban of an IP with the minimum score
+     * @param maxBanTime The maximum milliseconds of a ban
+     * @param maxEntries The maximum IPs to keep
+     */
+    public ReputationTable(long halfLife, double broadcastScore, long banTime, long maxBanTime, final int maxEntries){
+        this.reputations = new LinkedHashMap<String, IpReputation>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, IpReputation> eldest){
+                return size() > maxEntries;
+            }
+        };
+        this.halfLife = Math.max(1, halfLife);
+        this.broadcastScore = broadcastScore;
+        this.banTime = banTime;
+        this.maxBanTime = Math.max(banTime, maxBanTime);
+        this.maxEntries = maxEntries;
+    }
+    
+    /**
+     * Changes the policy of the next reports and broadcasts (the current scores
+     * are kept)
+     * @param halfLife The milliseconds for the score to decay to half
+     * @param broadcastScore The minimum score to send an IP to the other agents
+     * @param banTime The milliseconds of the ban of an IP with the minimum score
+     * @param maxBanTime The maximum milliseconds of a ban
+     */
+    public synchronized void setPolicy(long halfLife, double broadcastScore, long banTime, long maxBanTime){
+        this.halfLife = Math.max(1, halfLife);
+        this.broadcastScore = broadcastScore;
+        this.banTime = banTime;
+        this.maxBanTime = Math.max(banTime, maxBanTime);
+    }
+    
+    /**
+     * Gets the milliseconds for the score to decay to half
+     * @return The milliseconds
+     */
+    public synchronized long getHalfLife(){
+        return (long) halfLife;
+    }
+    
+    /**
+     * Gets the minimum score to send an IP to the other agents
+     * @return The score
+     */
+    public synchronized double getBroadcastScore(){
+        return broadcastScore;
+    }
+    
+    /**
+     * Gets the milliseconds of the ban of an IP with the minimum score
+     * @return The milliseconds
+     */
+    public synchronized long getBanTime(){
+        return banTime;
+    }
+    
+    /**
+     * Gets the maximum milliseconds of a ban
+     * @return The milliseconds
+     */
+    public synchronized long getMaxBanTime(){
+        return maxBanTime;
+    }
+    
+    /**
+     * Records a report of an IP
+     * @param ip The attacker IP
+     * @param reporter The name of the agent that reports it
+     * @param attempts The attempts reported
+     * @param now The current time in milliseconds
+     */
+    public synchronized void report(String ip, String reporter, int attempts, long now){
+        IpReputation reputation = reputations.get(ip);
+        
+        if(reputation == null){
+            reputation = new IpReputation();
+            reputations.put(ip, reputation);
+        }
+        
+        decay(reputation, now);
+        
+        //An old attacker is a new one again (but it is still sent if its ban is running)
+        if(reputation.score < broadcastScore*FORGET_FACTOR){
+            reputation.reporters.clear();
+            reputation.attempts = 0;
+        }
+        
+        if(reputation.reporters.add(reporter))
+            reputation.score += REPORTER_WEIGHT;
+        reputation.score += attempts*ATTEMPT_WEIGHT;
+        reputation.attempts += attempts;
+        reputation.lastSeen = now;
+    }
+    
+    /**
+     * Decides if an IP has to be sent to the other agents now. It is sent if 
+     * its score is high enough, and the last ban sent finished or it is too 
+     * short for its current score
+     * @param ip The attacker IP
+     * @param now The current time in milliseconds
+     * @return The milliseconds of the ban, or -1 if it doesn't have to be sent
+     */
+    public synchronized long broadcast(String ip, long now){
+        IpReputation reputation = reputations.get(ip);
+        long ban = -1;
+        
+        if(reputation != null){
+            decay(reputation, now);
+            
+            if(reputation.score >= broadcastScore){
+                long duration = Math.min(maxBanTime, (long)(banTime*reputation.score/broadcastScore));
+                
+                //The remaining ban is enough if it is at least the half of the new one
+                if(reputation.broadcastUntil - now < duration/2){
+                    reputation.broadcastUntil = now + duration;
+                    ban = duration;
+                }
+            }
+        }
+        
+        return ban;
+    }
+    
+    /**
+     * Returns the current score of an IP
+     * @param ip The IP
+     * @param now The current time in milliseconds
+     * @return The score (0 if it is unknown)
+     */
+    public synchronized double getScore(String ip, long now){
+        IpReputation reputation = reputations.get(ip);
+        
+        if(reputation == null)
+            return 0;
+        
+        decay(reputation, now);
+        return reputation.score;
+    }
+    
+    /**
+     * Returns the number of agents that reported an IP
+     * @param ip The IP
+     * @return The number of agents
+     */
+    public synchronized int getReporters(String ip){
+        IpReputation reputation = reputations.get(ip);
+        
+        return (reputation == null) ? 0 : reputation.reporters.size();
+    }
+    
+    /**
+     * Returns the total attempts reported of an IP
+     * @param ip The IP
+     * @return The attempts
+     */
+    public synchronized long getAttempts(String ip){
+        IpReputation reputation = reputations.get(ip);
+        
+        return (reputation == null) ? 0 : reputation.attempts;
+    }
+    
+    /**
+     * Returns when an IP was reported for the last time
+     * @param ip The IP
+     * @return The time in milliseconds (0 if it is unknown)
+     */
+    public synchronized long getLastSeen(String ip){
+        IpReputation reputation = reputations.get(ip);
+        
+        return (reputation == null) ? 0 : reputation.lastSeen;
+    }
+    
+    /**
+     * Returns the number of IPs in the table
+     * @return The number of IPs
+     */
+    public synchronized int size(){
+        return reputations.size();
+    }
+    
+    /**
+     * Returns the maximum IPs kept in the table
+     * @return The number of IPs
+     */
+    public int getMaxEntries(){
+        return maxEntries;
+    }
+    
+    /**
+     * Returns the number of IPs whose last broadcast ban is still running
+     * @param now The current time in milliseconds
+     * @return The number of IPs
+     */
+    public synchronized int countBanned(long now){
+        int banned = 0;
+        
+        for(IpReputation reputation : reputations.values())
+            if(reputation.broadcastUntil > now)
+                banned++;
+        
+        return banned;
+    }
+    
+    /**
+     * Adds the reports of an IP rebuilt from the threat log, as if they were
+     * recorded when they happened
+     * @param ip The attacker IP
+     * @param reporters The agents that reported it, with the time of their first report in milliseconds
+     * @param attempts The attempts reported
+     * @param decayedAttempts The attempts weighted with their decay until now
+     * @param lastSeen When it was reported for the last time, in milliseconds
+     * @param now The current time in milliseconds
+     */
+    public synchronized void replay(String ip, Map<String, Long> reporters, long attempts, double decayedAttempts, 
+                                        long lastSeen, long now){
+        IpReputation reputation = reputations.get(ip);
+        
+        if(reputation == null){
+            reputation = new IpReputation();
+            reputations.put(ip, reputation);
+        }
+        
+        decay(reputation, now);
+        
+        for(Map.Entry<String, Long> reporter : reporters.entrySet())
+            if(reputation.reporters.add(reporter.getKey()))
+                reputation.score += REPORTER_WEIGHT*Math.pow(0.5, Math.max(0, now - reporter.getValue())/halfLife);
+        reputation.score += decayedAttempts*ATTEMPT_WEIGHT;
+        reputation.attempts += attempts;
+        reputation.lastSeen = Math.max(reputation.lastSeen, lastSeen);
+    }
+    
+    /**
+     * Writes the reputation of every IP to a snapshot, the least recently 
+     * used first
+     * @param out The snapshot
+     * @throws IOException 
+     */
+    public synchronized void writeTo(DataOutputStream out) throws IOException{
+        out.writeInt(reputations.size());
+        
+        for(Map.Entry<String, IpReputation> e : reputations.entrySet()){
+            IpReputation reputation = e.getValue();
+            
+            out.writeUTF(e.getKey());
+            out.writeDouble(reputation.score);
+            out.writeLong(reputation.updated);
+            out.writeLong(reputation.attempts);
+            out.writeLong(reputation.lastSeen);
+            out.writeLong(reputation.broadcastUntil);
+            out.writeInt(reputation.reporters.size());
+            for(String reporter : reputation.reporters)
+                out.writeUTF(reporter);
+        }
+    }
+    
+    /**
+     * Reads the reputations of a snapshot (the ones that don't fit in the 
+     * table are forgotten, the least recently used first)
+     * @param in The snapshot
+     * @throws IOException 
+     */
+    public synchronized void readFrom(DataInputStream in) throws IOException{
+        int size = in.readInt();
+        
+        for(int i = 0; i < size; i++){
+            String ip = in.readUTF();
+            IpReputation reputation = new IpReputation();
+            reputation.score = in.readDouble();
+            reputation.updated = in.readLong();
+            reputation.attempts = in.readLong();
+            reputation.lastSeen = in.readLong();
+            reputation.broadcastUntil = in.readLong();
+            
+            int reporters = in.readInt();
+            for(int j = 0; j < reporters; j++)
+                reputation.reporters.add(in.readUTF());
+            
+            reputations.put(ip, reputation);
+        }
+    }
+    
+    /**
+     * Applies the decay since the last update to the score
+     * @param reputation The reputation
+     * @param now The current time in milliseconds
+     */
+    private void decay(IpReputation reputation, long now){
+        if(now > reputation.updated){
+            reputation.score *= Math.pow(0.5, (now - reputation.updated)/halfLife);
+            reputation.updated = now;
+        }
+    }
+}
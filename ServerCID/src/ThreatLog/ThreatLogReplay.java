@@ -0,0 +1,462 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package ThreatLog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import myagent.AttackReportCodec;
+
+/**
+ * Reads a threat log from an offset to its end to rebuild the aggregates of
+ * every attacker (attempts, agents that reported it and when, last attack).
+ * The file is split in chunks at line boundaries, and every chunk is mapped
+ * in memory and parsed by its own thread, so millions of entries are read in
+ * a fraction of a second
+ * @author Aaron Rodriguez Bueno
+ */
+public class ThreatLogReplay {
+    private static final int MAX_CHUNK = 64*1024*1024;
+    private static final int BLOCK = 1024*1024;
+    
+    //The fields of an entry: "Date: D, IP: I, IP attacker: A, threat:T[, comments: C]"
+    private static final byte [] DATE = "Date: ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte [] IP = ", IP: ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte [] ATTACKER = ", IP attacker: ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte [] THREAT = ", threat:".getBytes(StandardCharsets.US_ASCII);
+
+    private final String filename;
+    private final double halfLife;
+    private final int threads;
+    private long entries;
+    private long end;
+
+    /**
+     * Aggregates of the entries of an attacker
+     */
+    public static class Attacker {
+        private long attempts;
+        private double decayedAttempts;
+        private long lastSeen;
+        //An attacker is reported by a few agents, usually just one, so the 
+        //first one is kept apart and the others in arrays (not in a map)
+        private String reporter;
+        private long firstReport;
+        private String [] reporters;
+        private long [] firstReports;
+        private int numReporters;
+
+        private Attacker(){
+            attempts = 0;
+            decayedAttempts = 0;
+            lastSeen = 0;
+            reporter = null;
+            firstReport = 0;
+            reporters = null;
+            firstReports = null;
+            numReporters = 0;
+        }
+
+        /**
+         * Adds a report of an agent
+         * @param reporter The agent IP
+         * @param date The date of the report in milliseconds
+         */
+        private void report(String agent, long date){
+            if(reporter == null || reporter.equals(agent)){
+                firstReport = (reporter == null) ? date : Math.min(firstReport, date);
+                reporter = agent;
+                return;
+            }
+
+            for(int i = 0; i < numReporters; i++){
+                if(reporters[i].equals(agent)){
+                    firstReports[i] = Math.min(firstReports[i], date);
+                    return;
+                }
+            }
+
+            if(reporters == null){
+                reporters = new String[2];
+                firstReports = new long[2];
+            }
+            else if(numReporters == reporters.length){
+                reporters = Arrays.copyOf(reporters, numReporters*2);
+                firstReports = Arrays.copyOf(firstReports, numReporters*2);
+            }
+            reporters[numReporters] = agent;
+            firstReports[numReporters] = date;
+            numReporters++;
+        }
+
+        /**
+         * Adds the aggregates of other part of the file
+         * @param other The aggregates of the same attacker
+         */
+        private void merge(Attacker other){
+            attempts += other.attempts;
+            decayedAttempts += other.decayedAttempts;
+            lastSeen = Math.max(lastSeen, other.lastSeen);
+            if(other.reporter != null)
+                report(other.reporter, other.firstReport);
+            for(int i = 0; i < other.numReporters; i++)
+                report(other.reporters[i], other.firstReports[i]);
+        }
+
+        /**
+         * Gets the number of attempts
+         * @return The number of attempts
+         */
+        public long getAttempts(){
+            return attempts;
+        }
+
+        /**
+         * Gets the attempts weighted with the decay since they happened until
+         * the replay (an attempt of now is 1, one of a half life ago is 0.5...)
+         * @return The weighted attempts
+         */
+        public double getDecayedAttempts(){
+            return decayedAttempts;
+        }
+
+        /**
+         * Gets the date of the last attempt
+         * @return The date in milliseconds
+         */
+        public long getLastSeen(){
+            return lastSeen;
+        }
+
+        /**
+         * Gets the IPs of the agents that reported the attacker
+         * @return Every agent IP with the date of its first report in milliseconds
+         */
+        public HashMap<String, Long> getReporters(){
+            HashMap<String, Long> map = new HashMap<String, Long>();
+
+            if(reporter != null)
+                map.put(reporter, firstReport);
+            for(int i = 0; i < numReporters; i++)
+                map.put(reporters[i], firstReports[i]);
+
+            return map;
+        }
+    }
+
+    /**
+     * Constructor
+     * @param filename The threat log file
+     * @param halfLife The milliseconds for the weight of an attempt to decay to half
+     * @param threads The threads that parse the file
+     */
+    public ThreatLogReplay(String filename, long halfLife, int threads){
+        this.filename = filename;
+        this.halfLife = Math.max(1, halfLife);
+        this.threads = Math.max(1, threads);
+        this.entries = 0;
+        this.end = 0;
+    }
+
+    /**
+     * Gets the number of entries read in the last replay
+     * @return The number of entries
+     */
+    public long getEntries(){
+        return entries;
+    }
+
+    /**
+     * Gets where the last replay finished
+     * @return The offset of the end of the file
+     */
+    public long getEnd(){
+        return end;
+    }
+
+    /**
+     * Reads the entries from an offset to the end of the file
+     * @param from The offset (if the file is shorter, it was rotated and it is read from the beginning)
+     * @param now The current time in milliseconds, to weight the attempts
+     * @return The aggregates of every attacker IP
+     * @throws IOException If the file can't be read
+     * @throws InterruptedException
+     */
+    public HashMap<String, Attacker> replay(long from, long now) throws IOException, InterruptedException{
+        HashMap<String, Attacker> attackers = new HashMap<String, Attacker>();
+        entries = 0;
+
+        try(FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)){
+            end = channel.size();
+            if(from > end)
+                from = 0;
+
+            //Chunks of the same size, at least one per thread, finished at the end of a line
+            long length = end - from;
+            int chunks = (int) Math.max(threads, (length + MAX_CHUNK - 1)/MAX_CHUNK);
+            ArrayList<Long> bounds = new ArrayList<Long>();
+            bounds.add(from);
+            for(int i = 1; i < chunks; i++){
+                long bound = nextLine(channel, from + length*i/chunks, end);
+                if(bound > bounds.get(bounds.size()-1))
+                    bounds.add(bound);
+            }
+            if(end > bounds.get(bounds.size()-1))
+                bounds.add(end);
+
+            ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, bounds.size()), r -> {
+                Thread thread = new Thread(r, "threatlog-replay");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+            try{
+                List<Future<HashMap<String, Attacker>>> parts = new ArrayList<Future<HashMap<String, Attacker>>>();
+                for(int i = 0; i + 1 < bounds.size(); i++){
+                    MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, bounds.get(i), bounds.get(i+1) - bounds.get(i));
+                    parts.add(pool.submit(() -> parse(chunk, now)));
+                }
+
+                for(Future<HashMap<String, Attacker>> part : parts){
+                    for(Map.Entry<String, Attacker> e : part.get().entrySet()){
+                        Attacker attacker = attackers.get(e.getKey());
+                        if(attacker == null)
+                            attackers.put(e.getKey(), e.getValue());
+                        else
+                            attacker.merge(e.getValue());
+                        entries += e.getValue().attempts;
+                    }
+                }
+            }
+            catch(ExecutionException e){
+                throw new IOException("Error reading the threat log "+filename, e.getCause());
+            }
+            finally{
+                pool.shutdownNow();
+            }
+        }
+        catch(NoSuchFileException e){
+            end = 0;    //Nothing happened yet
+        }
+
+        return attackers;
+    }
+
+    /**
+     * Finds the start of the next line
+     * @param channel The file
+     * @param position The position to start to look for
+     * @param end The end of the file
+     * @return The position after the next '\n' (or the end)
+     * @throws IOException
+     */
+    private long nextLine(FileChannel channel, long position, long end) throws IOException{
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+        while(position < end){
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if(read <= 0)
+                break;
+
+            for(int i = 0; i < read; i++)
+                if(buffer.get(i) == '\n')
+                    return position + i + 1;
+            position += read;
+        }
+
+        return end;
+    }
+
+    /**
+     * Parses the entries of a chunk of the file. The lines are copied in 
+     * blocks and the fields are found in the bytes, so just the attacker IP
+     * of every entry becomes a String (the date and the agent are usually the
+     * same as in the previous entry, because the entries of a report are together)
+     * @param chunk The chunk, starting at the beginning of a line
+     * @param now The current time in milliseconds
+     * @return The aggregates of every attacker IP of the chunk
+     */
+    private HashMap<String, Attacker> parse(MappedByteBuffer chunk, long now){
+        HashMap<String, Attacker> attackers = new HashMap<String, Attacker>();
+        LineParser parser = new LineParser(now);
+        byte [] block = new byte[2*BLOCK];
+        int carry = 0;
+
+        while(true){
+            int read = Math.min(BLOCK, chunk.remaining());
+            if(carry + read > block.length)
+                block = Arrays.copyOf(block, 2*(carry + read));
+            chunk.get(block, carry, read);
+
+            int length = carry + read;
+            int start = 0;
+            for(int i = 0; i < length; i++){
+                if(block[i] == '\n'){
+                    parser.parse(block, start, i, attackers);
+                    start = i + 1;
+                }
+            }
+
+            //The last line of the chunk can be unfinished
+            if(!chunk.hasRemaining()){
+                if(start < length)
+                    parser.parse(block, start, length, attackers);
+                break;
+            }
+
+            carry = length - start;
+            System.arraycopy(block, start, block, 0, carry);
+        }
+
+        return attackers;
+    }
+
+    /**
+     * Parser of the entries of a chunk, that remembers the last date and agent
+     */
+    private class LineParser {
+        private final long now;
+        private final SimpleDateFormat format;
+        private byte [] lastDate;
+        private long lastTime;
+        private double lastWeight;
+        private byte [] lastReporterBytes;
+        private String lastReporter;
+
+        private LineParser(long now){
+            this.now = now;
+            this.format = new SimpleDateFormat(AttackReportCodec.DATE_FORMAT, Locale.ENGLISH);
+            this.lastDate = new byte[0];
+            this.lastReporterBytes = new byte[0];
+        }
+
+        /**
+         * Adds an entry to the aggregates of its attacker (the wrong lines are ignored)
+         * @param line The bytes of the chunk
+         * @param from The start of the line
+         * @param to The end of the line (without '\n')
+         * @param attackers The aggregates of every attacker IP
+         */
+        private void parse(byte [] line, int from, int to, HashMap<String, Attacker> attackers){
+            if(to > from && line[to-1] == '\r')
+                to--;
+            if(!matches(line, from, to, DATE))
+                return;
+
+            int ipStart = indexOf(line, from + DATE.length, to, IP);
+            int attackerStart = (ipStart < 0) ? -1 : indexOf(line, ipStart + IP.length, to, ATTACKER);
+            int threatStart = (attackerStart < 0) ? -1 : indexOf(line, attackerStart + ATTACKER.length, to, THREAT);
+            if(threatStart < 0)
+                return;
+
+            int dateStart = from + DATE.length;
+            if(!same(lastDate, line, dateStart, ipStart)){
+                lastDate = Arrays.copyOfRange(line, dateStart, ipStart);
+                try{
+                    String date = new String(line, dateStart, ipStart - dateStart, StandardCharsets.UTF_8);
+                    lastTime = Math.min(now, format.parse(date).getTime());
+                    lastWeight = Math.pow(0.5, (now - lastTime)/halfLife);
+                }
+                catch(ParseException e){
+                    lastTime = -1;
+                }
+            }
+            if(lastTime < 0)
+                return;
+
+            int reporterStart = ipStart + IP.length;
+            if(!same(lastReporterBytes, line, reporterStart, attackerStart)){
+                lastReporter = new String(line, reporterStart, attackerStart - reporterStart, StandardCharsets.UTF_8);
+                lastReporterBytes = Arrays.copyOfRange(line, reporterStart, attackerStart);
+            }
+
+            int ipFrom = attackerStart + ATTACKER.length;
+            String ip = new String(line, ipFrom, threatStart - ipFrom, StandardCharsets.ISO_8859_1);
+            Attacker attacker = attackers.get(ip);
+            if(attacker == null){
+                attacker = new Attacker();
+                attackers.put(ip, attacker);
+            }
+
+            attacker.attempts++;
+            attacker.decayedAttempts += lastWeight;
+            attacker.lastSeen = Math.max(attacker.lastSeen, lastTime);
+            attacker.report(lastReporter, lastTime);
+        }
+    }
+
+    /**
+     * Checks if some bytes start with a pattern
+     * @param bytes The bytes
+     * @param from The start
+     * @param to The end
+     * @param pattern The pattern
+     * @return true if they start with it, false otherwise
+     */
+    private static boolean matches(byte [] bytes, int from, int to, byte [] pattern){
+        if(to - from < pattern.length)
+            return false;
+
+        for(int i = 0; i < pattern.length; i++)
+            if(bytes[from + i] != pattern[i])
+                return false;
+
+        return true;
+    }
+
+    /**
+     * Finds a pattern in some bytes
+     * @param bytes The bytes
+     * @param from The start
+     * @param to The end
+     * @param pattern The pattern
+     * @return The position of the pattern, or -1 if it isn't found
+     */
+    private static int indexOf(byte [] bytes, int from, int to, byte [] pattern){
+        for(int i = from; i <= to - pattern.length; i++)
+            if(bytes[i] == pattern[0] && matches(bytes, i, to, pattern))
+                return i;
+
+        return -1;
+    }
+
+    /**
+     * Checks if some bytes are the same as a copy of them
+     * @param copy The copy
+     * @param bytes The bytes
+     * @param from The start
+     * @param to The end
+     * @return true if they are the same, false otherwise
+     */
+    private static boolean same(byte [] copy, byte [] bytes, int from, int to){
+        if(copy.length != to - from)
+            return false;
+
+        for(int i = 0; i < copy.length; i++)
+            if(copy[i] != bytes[from + i])
+                return false;
+
+        return true;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package serverAgents;
+
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import myagent.TokenBucket;
+
+/**
+ * Limits of the messages that the server accepts, checked when they arrive:
+ * every kind of message (subscriptions, reports, answers and heartbeats) has a limit per
+ * sender and a limit for the whole fleet, both token buckets with bursts of a
+ * few seconds. So an agent that floods the server uses up its own limit, not
+ * the queues of the rest of agents. Just the most recent senders are kept
+ * (a forgotten sender starts again with full buckets)
+ * @author Aaron Rodriguez Bueno
+ */
+public class AdmissionControl {
+
+    public static final int SUBSCRIBE = 0;      //SUBSCRIBE and CANCEL
+    public static final int REPORT = 1;         //REQUEST
+    public static final int ANSWER = 2;         //The rest
+    public static final int HEARTBEAT = 3;      //QUERY_IF of the heartbeats
+    public static final String [] KIND_NAMES = {"subscribe", "report", "answer", "heartbeat"};
+
+    public static final int ADMITTED = 0;
+    public static final int SENDER_LIMIT = 1;
+    public static final int GLOBAL_LIMIT = 2;
+
+    public static final int BURST_SECONDS = 5;  //Seconds of messages accepted at once
+    private static final int MAX_SENDERS = 10000;    //The least recent senders are forgotten
+
+    private final double [] senderRates;
+    private final double [] globalRates;
+    private final TokenBucket [] global;
+    private final LinkedHashMap<String, TokenBucket []> senders;     //In access order
+
+    /**
+     * Constructor, with the default limits (messages per second):
+     * subscriptions 1 per sender and 50 in total, reports 5 and 500,
+     * answers 20 and 2000, and heartbeats 1 and 1000
+     */
+    public AdmissionControl(){
+        senderRates = new double[]{1, 5, 20, 1};
+        globalRates = new double[]{50, 500, 2000, 1000};
+        global = new TokenBucket[KIND_NAMES.length];
+        senders = new LinkedHashMap<String, TokenBucket []>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, TokenBucket []> eldest){
+                return size() > MAX_SENDERS;
+            }
+        };
+
+        for(int kind = 0; kind < KIND_NAMES.length; kind++)
+            global[kind] = new TokenBucket(globalRates[kind], BURST_SECONDS*globalRates[kind]);
+    }
+
+    /**
+     * Changes the limits of a kind of message
+     * @param kind The kind
+     * @param perSender The messages per second of every sender (0 for no limit)
+     * @param total The messages per second of all the senders (0 for no limit)
+     */
+    public synchronized void setLimits(int kind, double perSender, double total){
+        senderRates[kind] = perSender;
+        globalRates[kind] = total;
+
+        synchronized(global[kind]){
+            global[kind].setRate(total, BURST_SECONDS*total);
+        }
+        synchronized(senders){
+            for(TokenBucket [] buckets : senders.values())
+                synchronized(buckets){
+                    buckets[kind].setRate(perSender, BURST_SECONDS*perSender);
+                }
+        }
+    }
+
+    /**
+     * Changes the limits of all the kinds of message, from the "admission" key
+     * of the configuration file: {"subscribe":{"sender":1,"global":50}, "report":...}
+     * (the kinds and limits missing get their default values)
+     * @param config The value of the key (null to use the default values)
+     */
+    public void setLimits(JsonValue config){
+        AdmissionControl defaults = new AdmissionControl();
+
+        for(int kind = 0; kind < KIND_NAMES.length; kind++){
+            double perSender = defaults.getSenderRate(kind);
+            double total = defaults.getGlobalRate(kind);
+
+            if(config != null && config.isObject() && config.asObject().get(KIND_NAMES[kind]) != null){
+                JsonObject limits = config.asObject().get(KIND_NAMES[kind]).asObject();
+                perSender = limits.getDouble("sender", perSender);
+                total = limits.getDouble("global", total);
+            }
+
+            setLimits(kind, perSender, total);
+        }
+    }
+
+    /**
+     * Gets the limit per sender of a kind of message
+     * @param kind The kind
+     * @return The messages per second (0 if there isn't any limit)
+     */
+    public double getSenderRate(int kind){
+        return senderRates[kind];
+    }
+
+    /**
+     * Gets the limit of all the senders of a kind of message
+     * @param kind The kind
+     * @return The messages per second (0 if there isn't any limit)
+     */
+    public double getGlobalRate(int kind){
+        return globalRates[kind];
+    }
+
+    /**
+     * Checks if a message is accepted, taking a token of its sender and of
+     * the whole fleet
+     * @param sender The name of the sender
+     * @param kind The kind of the message
+     * @return ADMITTED, SENDER_LIMIT or GLOBAL_LIMIT
+     */
+    public int admit(String sender, int kind){
+        long now = System.nanoTime();
+
+        //The limit of the sender first, so its flood doesn't take the tokens of the rest
+        if(senderRates[kind] > 0){
+            TokenBucket [] buckets;
+            
+            //A new sender over the maximum takes the place of the least recent one
+            synchronized(senders){
+                buckets = senders.get(sender);
+                if(buckets == null){
+                    buckets = newBuckets();
+                    senders.put(sender, buckets);
+                }
+            }
+
+            synchronized(buckets){
+                if(!buckets[kind].tryAcquire(now))
+                    return SENDER_LIMIT;
+            }
+        }
+
+        if(globalRates[kind] > 0)
+            synchronized(global[kind]){
+                if(!global[kind].tryAcquire(now))
+                    return GLOBAL_LIMIT;
+            }
+
+        return ADMITTED;
+    }
+
+    /**
+     * Gets the number of senders with a limit
+     * @return The number of senders
+     */
+    public int size(){
+        synchronized(senders){
+            return senders.size();
+        }
+    }
+
+    /**
+     * Creates the full buckets of a new sender
+     * @return The buckets, one per kind of message
+     */
+    private TokenBucket [] newBuckets(){
+        TokenBucket [] buckets = new TokenBucket[KIND_NAMES.length];
+
+        for(int kind = 0; kind < KIND_NAMES.length; kind++)
+            buckets[kind] = new TokenBucket(senderRates[kind], BURST_SECONDS*senderRates[kind]);
+
+        return buckets;
+    }
+}
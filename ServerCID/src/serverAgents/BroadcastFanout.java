@@ -0,0 +1,214 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package serverAgents;
+
+import es.upv.dsic.gti_ia.core.AgentID;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import myagent.MyAgent;
+
+/**
+ * Sends the same message to many agents in parallel, so the agent doesn't
+ * wait for thousands of sends before processing the next message. The
+ * targets are split in chunks, one task per chunk, in a pool with a bounded
+ * queue (if it is full, the chunk is sent by the caller). Every target that
+ * fails is reported when the whole broadcast finishes
+ * @author Aaron Rodriguez Bueno
+ */
+public class BroadcastFanout {
+
+    private static final int MIN_CHUNK = 64;        //Fewer targets aren't worth another task
+
+    private final MyAgent agent;
+    private final ThreadPoolExecutor senders;
+
+    /**
+     * Constructor
+     * @param agent The agent that sends the messages
+     * @param threads The threads that send the messages
+     * @param queue The chunks that can wait for a thread
+     */
+    public BroadcastFanout(MyAgent agent, int threads, int queue){
+        ThreadFactory daemons = r -> {
+            Thread thread = new Thread(r, "broadcast");
+            thread.setDaemon(true);
+            return thread;
+        };
+
+        this.agent = agent;
+        this.senders = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 0L, TimeUnit.MILLISECONDS,
+                                                new ArrayBlockingQueue<Runnable>(queue), daemons);
+    }
+
+    /**
+     * Changes the number of threads that send the messages
+     * @param threads The threads
+     */
+    public synchronized void setThreads(int threads){
+        threads = Math.max(1, threads);
+
+        //The core size can't be over the maximum size
+        if(threads > senders.getMaximumPoolSize()){
+            senders.setMaximumPoolSize(threads);
+            senders.setCorePoolSize(threads);
+        }
+        else{
+            senders.setCorePoolSize(threads);
+            senders.setMaximumPoolSize(threads);
+        }
+    }
+
+    /**
+     * Gets the number of threads that send the messages
+     * @return The threads
+     */
+    public int getThreads(){
+        return senders.getCorePoolSize();
+    }
+
+    /**
+     * Gets the number of chunks waiting for a thread
+     * @return The number of chunks
+     */
+    public int getPending(){
+        return senders.getQueue().size();
+    }
+
+    /**
+     * Sends the messages of a broadcast, without waiting for them
+     * @param targets The messages (their contents are shared, not copied)
+     * @return The targets whose message couldn't be sent, when all of them
+     * were tried
+     */
+    public CompletableFuture<List<Failure>> send(List<Target> targets){
+        int chunk = Math.max(MIN_CHUNK, (targets.size() + getThreads() - 1)/getThreads());
+        ArrayList<CompletableFuture<List<Failure>>> chunks = new ArrayList<CompletableFuture<List<Failure>>>();
+
+        for(int start = 0; start < targets.size(); start += chunk){
+            List<Target> part = targets.subList(start, Math.min(targets.size(), start + chunk));
+            CompletableFuture<List<Failure>> result = new CompletableFuture<List<Failure>>();
+            Runnable task = () -> result.complete(sendChunk(part));
+
+            try{
+                senders.execute(task);
+            }
+            catch(RejectedExecutionException ex){
+                //The pool is full: the agent sends this chunk itself, which slows down the broadcasts
+                task.run();
+            }
+            chunks.add(result);
+        }
+
+        return CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[chunks.size()])).thenApply(v -> {
+            ArrayList<Failure> failures = new ArrayList<Failure>();
+            for(CompletableFuture<List<Failure>> result : chunks)
+                failures.addAll(result.join());
+            return failures;
+        });
+    }
+
+    /**
+     * Stops the threads (the chunks waiting aren't sent)
+     */
+    public void shutdown(){
+        senders.shutdownNow();
+    }
+
+    /**
+     * Sends the messages of a chunk
+     * @param targets The messages
+     * @return The targets whose message couldn't be sent
+     */
+    private List<Failure> sendChunk(List<Target> targets){
+        ArrayList<Failure> failures = new ArrayList<Failure>();
+
+        for(Target target : targets){
+            try{
+                agent.sendMessage(target.receiver, target.performative, target.content, target.cid, target.reply);
+            }
+            catch(RuntimeException ex){
+                failures.add(new Failure(target, ex));
+            }
+        }
+
+        return failures;
+    }
+
+    /**
+     * A message of a broadcast
+     */
+    public static class Target {
+        private final AgentID receiver;
+        private final int performative;
+        private final String content;
+        private final String cid;
+        private final String reply;
+
+        /**
+         * Constructor
+         * @param receiver The receiver of the message
+         * @param performative The performative of the message
+         * @param content The content of the message
+         * @param cid The ConversationID
+         * @param reply The ReplyWith
+         */
+        public Target(AgentID receiver, int performative, String content, String cid, String reply){
+            this.receiver = receiver;
+            this.performative = performative;
+            this.content = content;
+            this.cid = cid;
+            this.reply = reply;
+        }
+
+        /**
+         * Gets the receiver of the message
+         * @return The receiver
+         */
+        public AgentID getReceiver(){
+            return receiver;
+        }
+    }
+
+    /**
+     * A message of a broadcast that couldn't be sent
+     */
+    public static class Failure {
+        private final Target target;
+        private final Exception error;
+
+        /**
+         * Constructor
+         * @param target The message
+         * @param error Why it couldn't be sent
+         */
+        private Failure(Target target, Exception error){
+            this.target = target;
+            this.error = error;
+        }
+
+        /**
+         * Gets the message that couldn't be sent
+         * @return The message
+         */
+        public Target getTarget(){
+            return target;
+        }
+
+        /**
+         * Gets why the message couldn't be sent
+         * @return The error
+         */
+        public Exception getError(){
+            return error;
+        }
+    }
+}
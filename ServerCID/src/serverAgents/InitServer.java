@@ -2,8 +2,16 @@ package serverAgents;
 
 import ConfigFile.ConfigFile;
 import DiskLogger.DiskLogger;
+import Reputation.ReputationTable;
 import es.upv.dsic.gti_ia.core.AgentID;
 import es.upv.dsic.gti_ia.core.AgentsConnection;
+import com.eclipsesource.json.JsonValue;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import myagent.AgentLog;
+import myagent.Allowlist;
+import myagent.Tracer;
 
 /**
  * Class that launches the server agent
@@ -28,9 +36,28 @@ public class InitServer {
             password =      "",
             sshlog =        "ssh_attacks.log",
             serverlog =     "serverlog.json",
-            servername =    "ServerAgent";
-        int port =          6000;
-        boolean ssl =       false;
+            servername =    "ServerAgent",
+            tracefile =     "",
+            snapshotfile =  "server_snapshot.bin";
+        int port =          6000,
+            reputationhalflife = 3600,
+            bantime =       600,
+            maxbantime =    86400,
+            reputationsize = 100000,
+            configwatch =   5,
+            snapshotseconds = 60,
+            heartbeatgrace = 90,
+            heartbeatevict = 3600,
+            broadcastthreads = 4;
+        double broadcastscore = 1.5;
+        boolean ssl =       false,
+            logecho =       true;
+        String loglevel =   "info";
+        double lograte =    5;
+        int logsummaryseconds = 10;
+        JsonValue admission = null;
+        ArrayList<String> allowlistNetworks = new ArrayList<String>();
+        String allowlistfile = "";
         
         DiskLogger dlogger;
         
@@ -66,13 +93,65 @@ public class InitServer {
                 serverlog = Config.config.get("serverlog").asString();
             if (Config.config.get("servername")!=null)
                 servername = Config.config.get("servername").asString();
+            if (Config.config.get("reputationhalflife")!=null)
+                reputationhalflife = Config.config.get("reputationhalflife").asInt();
+            if (Config.config.get("broadcastscore")!=null)
+                broadcastscore = Config.config.get("broadcastscore").asDouble();
+            if (Config.config.get("bantime")!=null)
+                bantime = Config.config.get("bantime").asInt();
+            if (Config.config.get("maxbantime")!=null)
+                maxbantime = Config.config.get("maxbantime").asInt();
+            if (Config.config.get("reputationsize")!=null)
+                reputationsize = Config.config.get("reputationsize").asInt();
+            if (Config.config.get("configwatch")!=null)
+                configwatch = Config.config.get("configwatch").asInt();
+            if (Config.config.get("tracefile")!=null)
+                tracefile = Config.config.get("tracefile").asString();
+            if (Config.config.get("snapshotfile")!=null)
+                snapshotfile = Config.config.get("snapshotfile").asString();
+            if (Config.config.get("snapshotseconds")!=null)
+                snapshotseconds = Config.config.get("snapshotseconds").asInt();
+            if (Config.config.get("allowlist")!=null && Config.config.get("allowlist").isArray())
+                for (JsonValue network : Config.config.get("allowlist").asArray())
+                    allowlistNetworks.add(network.asString());
+            if (Config.config.get("allowlistfile")!=null)
+                allowlistfile = Config.config.get("allowlistfile").asString();
+            if (Config.config.get("logecho")!=null)
+                logecho = Config.config.get("logecho").asBoolean();
+            if (Config.config.get("loglevel")!=null)
+                loglevel = Config.config.get("loglevel").asString();
+            if (Config.config.get("lograte")!=null)
+                lograte = Config.config.get("lograte").asDouble();
+            if (Config.config.get("logsummaryseconds")!=null)
+                logsummaryseconds = Config.config.get("logsummaryseconds").asInt();
+            if (Config.config.get("admission")!=null)
+                admission = Config.config.get("admission");
+            if (Config.config.get("heartbeatgrace")!=null)
+                heartbeatgrace = Config.config.get("heartbeatgrace").asInt();
+            if (Config.config.get("heartbeatevict")!=null)
+                heartbeatevict = Config.config.get("heartbeatevict").asInt();
+            if (Config.config.get("broadcastthreads")!=null)
+                broadcastthreads = Config.config.get("broadcastthreads").asInt();
         }
         
+        //The networks that are never broadcast
+        Allowlist allowlist = new Allowlist();
+        try{
+            List<String> wrong = allowlist.load(allowlistNetworks, allowlistfile);
+            if (!wrong.isEmpty())
+                System.err.println("*** Wrong networks in the allowlist: "+wrong);
+        }
+        catch(IOException ex){
+            System.err.println("*** Error loading the allowlist file ["+allowlistfile+"]");
+        }
+        System.out.println("Allowlist: "+allowlist.size()+" networks");
+        
         //Creating the log
         System.out.println("\nCreating log ... "+sshlog);
         dlogger = new DiskLogger(serverlog);
         if (!dlogger.Init())
             System.err.println("*** Error creating logs file.");
+        dlogger.setEcho(logecho);
         
         // We connect with Magentix server
         System.out.println("-------------------- Starting session with Magentix Server ----------------");
@@ -87,8 +166,24 @@ public class InitServer {
         
         // We try to initialize and start the server agent
         try {
-            SERV server = new SERV(new AgentID(servername), dlogger, serverlog, sshlog);
+            ReputationTable reputation = new ReputationTable(reputationhalflife*1000L, broadcastscore, 
+                                                                bantime*1000L, maxbantime*1000L, reputationsize);
+            SERV server = new SERV(new AgentID(servername), dlogger, serverlog, sshlog, reputation);
+            server.setSnapshot(snapshotfile, snapshotseconds);
+            server.setAllowlist(allowlist);
+            server.getAdmission().setLimits(admission);
+            server.setHeartbeat(heartbeatgrace, heartbeatevict);
+            server.setBroadcastThreads(broadcastthreads);
+            server.getLog().setLevel(AgentLog.parseLevel(loglevel, AgentLog.INFO));
+            server.getLog().setRate(lograte);
+            server.getLog().setSummarySeconds(logsummaryseconds);
+            if(!tracefile.equals(""))
+                server.setTracer(new Tracer(servername, tracefile));
             server.start();
+            
+            //The changes of the configuration file are applied without restarting
+            if(configwatch > 0)
+                Config.watch(configwatch*1000L, server);
 
         } catch(Exception ex) {
             System.err.println(dlogger.AddRecord(" *** Error creating "+servername));
@@ -1,18 +1,38 @@
 package serverAgents;
 
+import ConfigFile.ConfigChange;
+import ConfigFile.ConfigListener;
 import DiskLogger.DiskLogger;
 import SubscribedAgent.SubscribedAgent;
 import SubscribedAgent.SubscribedList;
 import ThreatLog.ThreatLog;
+import ThreatLog.ThreatLogReplay;
 import com.eclipsesource.json.Json;
 import com.eclipsesource.json.JsonArray;
 import com.eclipsesource.json.JsonObject;
 import com.eclipsesource.json.JsonValue;
 import es.upv.dsic.gti_ia.core.ACLMessage;
 import es.upv.dsic.gti_ia.core.AgentID;
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import Reputation.ReputationTable;
+import myagent.AgentLog;
+import myagent.Allowlist;
+import myagent.AttackReportCodec;
 import myagent.MyAgent;
+import myagent.SnapshotFile;
+import myagent.Tracer;
 import onmessage.MessageQueue;
 
 /**
@@ -20,7 +40,7 @@ import onmessage.MessageQueue;
  * 
  * @author Aaron Rodriguez Bueno
  */
-public class SERV extends MyAgent{
+public class SERV extends MyAgent implements ConfigListener{
     
     /***************************************************
      ***************CLASS MEMBER DATA***************
@@ -33,14 +53,34 @@ public class SERV extends MyAgent{
     private static final int ADD_SSH_ATTACK = 3;
     private static final int CHECK_ANSWER_SSH = 4;
     private static final int PREVENT_SSH_ATTACKS = 5;
+    private static final String [] STATE_NAMES = {"IDLE", "SUBSCRIBE_AGENT", "CANCEL_AGENT", "ADD_SSH_ATTACK", 
+                                                    "CHECK_ANSWER_SSH", "PREVENT_SSH_ATTACKS"};
     private int state;
     
+    //Format of the snapshot of the state
+    private static final int SNAPSHOT_KIND = 2;
+    private static final int SNAPSHOT_VERSION = 1;
+    
     private SubscribedList sshConversations;
+    private HashMap<String, Long> reportWatermarks;     //Highest report sequence saved of every agent
+    private JsonArray newAttackers;                     //The attackers of the last report not saved before
+    private ReputationTable reputation;                 //The score of every attacker in the whole fleet
+    private Allowlist allowlist;                        //The networks that are never broadcast
+    private AdmissionControl admission;                 //The limits of the messages received
+    private SubscriberLiveness liveness;                //When the subscribed agents were heard for the last time
+    private BroadcastFanout fanout;                     //Sends the IPs to block to the agents
+    private String attackTrace;                         //The trace of the last report (its ConversationID and ReplyWith)
     
     private String sshLog;
     private String serverLog;
     private DiskLogger dlogger;
     
+    //Snapshot of the subscriptions, the watermarks and the reputations (the threat log written later is replayed)
+    private String snapshotFilename;
+    private int snapshotSeconds;
+    private long lastSnapshot;
+    private volatile long snapshotBytes;
+    
     private ACLMessage messageReceived;
     
     private final int dimQueue = 1000;
@@ -49,6 +89,9 @@ public class SERV extends MyAgent{
     private MessageQueue sshAttacksMessages;
     private MessageQueue sshAnswerMessages;
     
+    //Configuration changes not applied yet (they are applied in the IDLE state)
+    private final ConcurrentLinkedQueue<ConfigChange> configChanges;
+    
     /***************************************************
      ******************CLASS METHODS*****************
     ***************************************************/
@@ -57,30 +100,111 @@ public class SERV extends MyAgent{
      * Constructor
      * @param aid ID agent
      * @param sshlog The name of the ssh attacks log
+     * @param reputation The reputation of the attackers, to decide what to send and the ban times
      * @throws Exception 
      */
-    public SERV(AgentID aid, DiskLogger dl, String serverlog, String sshlog) throws Exception {
+    public SERV(AgentID aid, DiskLogger dl, String serverlog, String sshlog, ReputationTable reputation) throws Exception {
         super(aid);
         sshConversations = new SubscribedList();
+        reportWatermarks = new HashMap<String, Long>();
+        newAttackers = new JsonArray();
+        this.reputation = reputation;
+        this.allowlist = new Allowlist();
+        this.admission = new AdmissionControl();
+        this.liveness = new SubscriberLiveness(90000, 3600000, System.currentTimeMillis());
         messageReceived = new ACLMessage();
         sshLog = sshlog;
         serverLog = serverlog;
         dlogger = dl;
+        log = new AgentLog(aid.name, dl);
+        snapshotFilename = "server_snapshot.bin";
+        snapshotSeconds = 60;
+        lastSnapshot = System.currentTimeMillis();
         
         this.subsMessages = new MessageQueue(dimQueue);
         this.cancelMessages = new MessageQueue(dimQueue);
         this.sshAttacksMessages = new MessageQueue(dimQueue);
         this.sshAnswerMessages = new MessageQueue(dimQueue);
+        this.configChanges = new ConcurrentLinkedQueue<ConfigChange>();
+        this.fanout = new BroadcastFanout(this, 4, dimQueue);
+        
+        //Runtime metrics
+        metrics.gauge("subscribe queue", () -> subsMessages.getSize());
+        metrics.gauge("cancel queue", () -> cancelMessages.getSize());
+        metrics.gauge("attack queue", () -> sshAttacksMessages.getSize());
+        metrics.gauge("answer queue", () -> sshAnswerMessages.getSize());
+        metrics.gauge("subscribed agents", () -> sshConversations.size());
+        metrics.gauge("reputation IPs", () -> reputation.size());
+        metrics.gauge("snapshot bytes", () -> snapshotBytes);
+        metrics.gauge("allowlist networks", () -> allowlist.size());
+        metrics.gauge("admission senders", () -> admission.size());
+        metrics.gauge("suspended agents", () -> liveness.suspendedCount());
+        metrics.gauge("broadcast queue", () -> fanout.getPending());
         
         System.out.println("Iniciated SERV agent "+this.getAid());
     }
     
+    /**
+     * Sets where and how often the state is saved to restart the server
+     * without losing it
+     * @param filename The snapshot file
+     * @param seconds The seconds between the snapshots (0 to not save them)
+     */
+    public void setSnapshot(String filename, int seconds){
+        this.snapshotFilename = filename;
+        this.snapshotSeconds = seconds;
+    }
+    
+    /**
+     * Sets the networks that are never broadcast to the other agents
+     * @param allowlist The allowlist
+     */
+    public void setAllowlist(Allowlist allowlist){
+        this.allowlist = allowlist;
+    }
+    
+    /**
+     * Sets the limits of the messages received
+     * @param admission The limits
+     */
+    public void setAdmission(AdmissionControl admission){
+        this.admission = admission;
+    }
+    
+    /**
+     * Gets the limits of the messages received
+     * @return The limits
+     */
+    public AdmissionControl getAdmission(){
+        return admission;
+    }
+    
+    /**
+     * Sets how long the subscribed agents can be silent: after the grace time
+     * they don't get the broadcasts, and after the eviction time their
+     * subscription is removed
+     * @param graceSeconds The seconds to suspend an agent
+     * @param evictSeconds The seconds to remove the subscription of an agent
+     */
+    public void setHeartbeat(int graceSeconds, int evictSeconds){
+        liveness.setTimes(graceSeconds*1000L, evictSeconds*1000L);
+    }
+    
+    /**
+     * Sets how many threads send the IPs to block to the agents
+     * @param threads The threads
+     */
+    public void setBroadcastThreads(int threads){
+        fanout.setThreads(threads);
+    }
+    
     /**
      * It initializes the agent
      */
     @Override
     public void init() {
-        dlogger.AddObject(logMessage("\"status\":\"Starting\""));
+        log.info("Starting");
+        restoreState();
         state = IDLE;
     }
     
@@ -89,16 +213,17 @@ public class SERV extends MyAgent{
      */
     @Override
     public void execute(){
-        dlogger.AddObject(logMessage("\"status\":\"Executing\""));
+        log.info("Executing");
         
         while(true){
+            metrics.enterState(STATE_NAMES[state]);
             switch(state){
                 case IDLE:
             {
                 try {
                     stateIdle();
                 } catch (InterruptedException ex) {
-                    dlogger.AddObject(logMessage("\"status\":\"Exception caught in IDLE state\""));
+                    log.error("Exception caught in IDLE state");
                 }
             }
                 break;
@@ -109,7 +234,9 @@ public class SERV extends MyAgent{
                     stateCancelAgent();
                 break;
                 case ADD_SSH_ATTACK:
+                    long start = System.nanoTime();
                     stateAddSSHAttack();
+                    metrics.latency("add SSH attack", start);
                 break;
                 case PREVENT_SSH_ATTACKS:
                     statePreventSSHAttacks();
@@ -126,7 +253,11 @@ public class SERV extends MyAgent{
      */
     @Override
     public void finalize(){
-        dlogger.AddObject(logMessage("\"status\":\"Ending\""));
+        log.info("Ending");
+        if(snapshotSeconds > 0)
+            saveSnapshot();
+        fanout.shutdown();
+        metrics.unregister();
         super.finalize();
     }
 
@@ -134,7 +265,12 @@ public class SERV extends MyAgent{
      * Waiting for the other agents' comunications. Then, in function of the message arrived, it goes to one state or another.
      */
     private void stateIdle() throws InterruptedException {
-        System.out.println("IN IDLE");
+        log.debug("IN IDLE");
+        
+        //Safe point: no message is being processed
+        applyConfigChanges();
+        checkSnapshot();
+        checkLiveness();
         
         while(this.subsMessages.isEmpty() &&
                 this.cancelMessages.isEmpty() &&
@@ -142,6 +278,9 @@ public class SERV extends MyAgent{
                 this.sshAnswerMessages.isEmpty()){
         
             Thread.sleep(500);
+            applyConfigChanges();
+            checkSnapshot();
+            checkLiveness();
         }
         
         //Priority actions
@@ -162,7 +301,294 @@ public class SERV extends MyAgent{
             state = this.CHECK_ANSWER_SSH;
         }
         else{
-            dlogger.AddObject(logMessage("\"status\":\"Empty queues, but out of the loop while queues are empty\""));
+            log.warn("Empty queues, but out of the loop while queues are empty");
+        }
+    }
+
+    /**
+     * Suspends the subscribed agents silent for the grace time, and removes
+     * the ones silent for the eviction time
+     */
+    private void checkLiveness(){
+        ArrayList<String> suspended = new ArrayList<String>();
+        ArrayList<String> evicted = new ArrayList<String>();
+        
+        liveness.check(System.currentTimeMillis(), suspended, evicted);
+        
+        for(String name : suspended){
+            log.warn("liveness suspended", "Agent "+name+" is silent, it doesn't get the broadcasts until it sends something");
+            metrics.count("suspended agents");
+        }
+        
+        for(String name : evicted){
+            int index = sshConversations.indexOfAgent(new AgentID(name));
+            if(index != -1){
+                sshConversations.removeSubscribedAgent(index);
+                log.warn("liveness evicted", "Agent "+name+" was silent too long, its subscription was removed");
+                metrics.count("evicted agents");
+            }
+        }
+    }
+    
+    /**
+     * Saves the state if the seconds between snapshots passed
+     */
+    private void checkSnapshot(){
+        if(snapshotSeconds > 0 && System.currentTimeMillis() - lastSnapshot >= snapshotSeconds*1000L)
+            saveSnapshot();
+    }
+    
+    /**
+     * Saves the subscribed agents, the report watermarks and the reputations,
+     * with the length of the threat log at this moment (the entries after it
+     * are replayed when the server starts)
+     */
+    private void saveSnapshot(){
+        long start = System.nanoTime();
+        lastSnapshot = System.currentTimeMillis();
+        
+        try{
+            snapshotBytes = SnapshotFile.save(snapshotFilename, SNAPSHOT_KIND, SNAPSHOT_VERSION, out -> {
+                out.writeLong(lastSnapshot);
+                out.writeUTF(sshLog);
+                out.writeLong(new File(sshLog).length());
+                
+                out.writeInt(sshConversations.size());
+                for(int i = 0; i < sshConversations.size(); i++){
+                    SubscribedAgent sa = sshConversations.getSubscribedAgent(i);
+                    out.writeUTF(sa.getAgentID().name);
+                    out.writeUTF(nullToEmpty(sa.getConversationID()));
+                    out.writeUTF(nullToEmpty(sa.getReplyID()));
+                    out.writeUTF(nullToEmpty(sa.getIp()));
+                    out.writeUTF(sa.getEncoding());
+                }
+                
+                out.writeInt(reportWatermarks.size());
+                for(Map.Entry<String, Long> watermark : reportWatermarks.entrySet()){
+                    out.writeUTF(watermark.getKey());
+                    out.writeLong(watermark.getValue());
+                }
+                
+                reputation.writeTo(out);
+            });
+            metrics.latency("snapshot save", start);
+        }
+        catch(IOException ex){
+            log.error("Error saving the snapshot: "+ex.getMessage());
+        }
+        catch(RuntimeException ex){
+            //A bad snapshot is lost, the server goes on (the previous one is kept)
+            log.error("Error saving the snapshot: "+ex);
+        }
+    }
+    
+    /**
+     * Gets a field of the snapshot that can be null (the snapshot can't write
+     * nulls, and an empty field means none, like in a new SubscribedAgent)
+     * @param field The field
+     * @return The field, or an empty String if it is null
+     */
+    private static String nullToEmpty(String field){
+        return field == null ? "" : field;
+    }
+    
+    /**
+     * Rebuilds the state of the server: the last snapshot (if there is any)
+     * and then the threat log written after it. Without snapshot, the whole
+     * threat log is replayed, so the reputations of the attackers and the 
+     * ones still banned aren't lost
+     */
+    private void restoreState(){
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        long [] offset = new long[1];
+        
+        try{
+            boolean loaded = SnapshotFile.load(snapshotFilename, SNAPSHOT_KIND, SNAPSHOT_VERSION, in -> {
+                in.readLong();
+                String threatLog = in.readUTF();
+                long length = in.readLong();
+                
+                //If the threat log is other file, all of it is replayed
+                offset[0] = threatLog.equals(sshLog) ? length : 0;
+                
+                int agents = in.readInt();
+                for(int i = 0; i < agents; i++){
+                    SubscribedAgent sa = new SubscribedAgent(new AgentID(in.readUTF()), in.readUTF(), in.readUTF(), in.readUTF());
+                    sa.setEncoding(in.readUTF());
+                    sshConversations.addSubscribedAgent(sa);
+                }
+                
+                int watermarks = in.readInt();
+                for(int i = 0; i < watermarks; i++)
+                    reportWatermarks.put(in.readUTF(), in.readLong());
+                
+                reputation.readFrom(in);
+            });
+            
+            if(!loaded)
+                offset[0] = 0;
+        }
+        catch(IOException ex){
+            //The damaged snapshot is ignored, everything is rebuilt from the threat log
+            log.error("Error loading the snapshot: "+ex.getMessage());
+            sshConversations = new SubscribedList();
+            reportWatermarks.clear();
+            offset[0] = 0;
+        }
+        
+        //The restored agents get the grace time from now to send something
+        for(int i = 0; i < sshConversations.size(); i++)
+            liveness.track(sshConversations.getSubscribedAgent(i).getAgentID().name, now);
+        
+        try{
+            ThreatLogReplay replay = new ThreatLogReplay(sshLog, reputation.getHalfLife(), 
+                                                            Runtime.getRuntime().availableProcessors());
+            HashMap<String, ThreatLogReplay.Attacker> attackers = replay.replay(offset[0], now);
+            
+            //The agents report with their name, and the threat log has their IP
+            HashMap<String, String> agentNames = new HashMap<String, String>();
+            for(int i = 0; i < sshConversations.size(); i++)
+                agentNames.put(sshConversations.getSubscribedAgent(i).getIp(), sshConversations.getSubscribedAgent(i).getAgentID().name);
+            
+            //The ones seen for the last time go last, and the ones that don't fit in the table are skipped
+            ArrayList<Map.Entry<String, ThreatLogReplay.Attacker>> sorted = new ArrayList<Map.Entry<String, ThreatLogReplay.Attacker>>(attackers.entrySet());
+            sorted.sort((a, b) -> Long.compare(a.getValue().getLastSeen(), b.getValue().getLastSeen()));
+            int first = Math.max(0, sorted.size() - reputation.getMaxEntries());
+            
+            for(Map.Entry<String, ThreatLogReplay.Attacker> e : sorted.subList(first, sorted.size())){
+                ThreatLogReplay.Attacker attacker = e.getValue();
+                HashMap<String, Long> reporters = new HashMap<String, Long>();
+                for(Map.Entry<String, Long> reporter : attacker.getReporters().entrySet())
+                    reporters.merge(agentNames.getOrDefault(reporter.getKey(), reporter.getKey()), reporter.getValue(), Math::min);
+                
+                reputation.replay(e.getKey(), reporters, attacker.getAttempts(), attacker.getDecayedAttempts(), 
+                                    attacker.getLastSeen(), now);
+            }
+            
+            metrics.latency("restore", start);
+            log.info("Restored the state: "+sshConversations.size()+" agents, "
+                    +reputation.size()+" attackers ("+reputation.countBanned(now)+" banned), "
+                    +replay.getEntries()+" threat log entries replayed in "+(System.nanoTime()-start)/1000000+" ms");
+        }
+        catch(IOException | InterruptedException ex){
+            log.error("Error replaying the threat log: "+ex.getMessage());
+        }
+    }
+    
+    /**
+     * Keeps the configuration changes to apply them in the IDLE state
+     * @param changes The keys changed
+     */
+    @Override
+    public void configChanged(List<ConfigChange> changes){
+        configChanges.addAll(changes);
+    }
+    
+    /**
+     * Applies the configuration changes received. The keys that can't be 
+     * changed while running are just logged
+     */
+    private void applyConfigChanges(){
+        ConfigChange change;
+        long halfLife = reputation.getHalfLife();
+        double broadcastScore = reputation.getBroadcastScore();
+        long banTime = reputation.getBanTime();
+        long maxBanTime = reputation.getMaxBanTime();
+        boolean policyChanged = false;
+        boolean allowlistChanged = false;
+        List<String> networks = allowlist.getNetworks();
+        String allowlistFile = allowlist.getFilename();
+        
+        while((change = configChanges.poll()) != null){
+            switch(change.getKey()){
+                case "reputationhalflife":
+                    halfLife = change.asInt((int) (halfLife/1000))*1000L;
+                    policyChanged = true;
+                break;
+                case "broadcastscore":
+                    broadcastScore = change.asDouble(broadcastScore);
+                    policyChanged = true;
+                break;
+                case "bantime":
+                    banTime = change.asInt((int) (banTime/1000))*1000L;
+                    policyChanged = true;
+                break;
+                case "maxbantime":
+                    maxBanTime = change.asInt((int) (maxBanTime/1000))*1000L;
+                    policyChanged = true;
+                break;
+                case "sshlog":
+                    sshLog = change.asString(sshLog);
+                break;
+                case "allowlist":
+                    networks = new ArrayList<String>();
+                    if(!change.isRemoved() && change.getNewValue().isArray())
+                        for(JsonValue network : change.getNewValue().asArray())
+                            networks.add(network.asString());
+                    allowlistChanged = true;
+                break;
+                case "allowlistfile":
+                    allowlistFile = change.isRemoved() ? "" : change.asString(allowlistFile);
+                    allowlistChanged = true;
+                break;
+                case "loglevel":
+                    log.setLevel(AgentLog.parseLevel(change.asString("info"), AgentLog.INFO));
+                break;
+                case "lograte":
+                    log.setRate(change.asDouble(5));
+                break;
+                case "logecho":
+                    dlogger.setEcho(change.asBoolean(true));
+                break;
+                case "admission":
+                    admission.setLimits(change.isRemoved() ? null : change.getNewValue());
+                break;
+                case "heartbeatgrace":
+                    liveness.setTimes(change.asInt(90)*1000L, liveness.getEvictAfter());
+                break;
+                case "heartbeatevict":
+                    liveness.setTimes(liveness.getGrace(), change.asInt(3600)*1000L);
+                break;
+                case "broadcastthreads":
+                    fanout.setThreads(change.asInt(4));
+                break;
+                default:
+                    log.warn("Configuration key "+change.getKey()+" changed, it needs a restart");
+                continue;
+            }
+            
+            log.info("Configuration key "+change.getKey()+" changed");
+        }
+        
+        if(policyChanged)
+            reputation.setPolicy(halfLife, broadcastScore, banTime, maxBanTime);
+        
+        reloadAllowlist(allowlistChanged ? networks : null, allowlistFile);
+    }
+    
+    /**
+     * Loads the allowlist again with new networks, or if its file changed
+     * @param networks The networks of the configuration file (null to just check the file)
+     * @param filename The file with more networks
+     */
+    private void reloadAllowlist(List<String> networks, String filename){
+        try{
+            List<String> wrong = null;
+            
+            if(networks != null){
+                wrong = allowlist.load(networks, filename);
+            }
+            else if(!allowlist.reloadIfChanged()){
+                return;
+            }
+            
+            log.info("Allowlist loaded: "+allowlist.size()+" networks");
+            if(wrong != null && !wrong.isEmpty())
+                log.warn("Wrong networks in the allowlist: "+wrong);
+        }
+        catch(IOException ex){
+            log.error("Error loading the allowlist file: "+ex.getMessage());
         }
     }
 
@@ -170,7 +596,7 @@ public class SERV extends MyAgent{
      * If everything is correct, subscribes into the server the contacted agent.
      */
     private void stateSubscribeAgent() {
-        System.out.println("IN SUBSCRIBE AGENT");
+        log.debug("IN SUBSCRIBE AGENT");
         JsonObject message = new JsonObject();
         
         try{
@@ -193,9 +619,11 @@ public class SERV extends MyAgent{
                                 message.add("reason", "BAD IP");
 
                                 //Sending the message
-                                this.sendMessage(messageReceived.getSender(), 
+                                this.answerMessage(messageReceived.getSender(), 
                                                             ACLMessage.NOT_UNDERSTOOD, 
-                                                            message.toString());
+                                                            message.toString(),
+                                                            messageReceived.getConversationId(), 
+                                                            messageReceived.getReplyWith());
                             }
                             //IP correct
                             else{
@@ -204,6 +632,7 @@ public class SERV extends MyAgent{
                                 if(index == -1)
                                     index = sshConversations.indexOfAgent(messageReceived.getSender());
                                 if( index != -1 ){
+                                    liveness.forget(sshConversations.getSubscribedAgent(index).getAgentID().name);
                                     sshConversations.removeSubscribedAgent(index);
                                 }
 
@@ -212,20 +641,30 @@ public class SERV extends MyAgent{
                                 SubscribedAgent sa = sshConversations.getSubscribedAgent(sshConversations.size()-1); //The last one
                                 sa.generateConversationID();
                                 sa.setIp(ip);
+                                liveness.track(sa.getAgentID().name, System.currentTimeMillis());
+                                
+                                //Negotiating the encoding (the old agents don't send it)
+                                if(contentMessageReceived.names().contains("encodings")){
+                                    for(JsonValue encoding : contentMessageReceived.get("encodings").asArray())
+                                        if(encoding.asString().equals(AttackReportCodec.COMPACT))
+                                            sa.setEncoding(AttackReportCodec.COMPACT);
+                                }
                                 
                                 //Creating the message
                                 message = new JsonObject();
 
                                 message.add("subscribe", "OK");
+                                message.add("encoding", sa.getEncoding());
 
                                 //Sending the message
-                                this.sendMessage(messageReceived.getSender(), 
+                                this.answerMessage(messageReceived.getSender(), 
                                                             ACLMessage.INFORM, 
                                                             message.toString(),
-                                                            sa.getConversationID());
+                                                            sa.getConversationID(),
+                                                            messageReceived.getReplyWith());
 
-                                dlogger.AddObject(logMessage("\"status\":\"Agent "+messageReceived.getSender().name+" with IP "+ip
-                                        +" is now subscribed to this server in the SSH agents list\""));
+                                log.info("Agent "+messageReceived.getSender().name+" with IP "+ip
+                                        +" is now subscribed to this server in the SSH agents list");
                             }
                         }
                         else{
@@ -235,9 +674,11 @@ public class SERV extends MyAgent{
                                 message.add("reason", "NO IP");
 
                                 //Sending the message
-                                this.sendMessage(messageReceived.getSender(), 
+                                this.answerMessage(messageReceived.getSender(), 
                                                             ACLMessage.NOT_UNDERSTOOD, 
-                                                            message.toString());
+                                                            message.toString(),
+                                                            messageReceived.getConversationId(), 
+                                                            messageReceived.getReplyWith());
                         }
 
                     break;
@@ -248,9 +689,11 @@ public class SERV extends MyAgent{
                         message.add("reason", "BAD TASK");
 
                         //Sending the message
-                        this.sendMessage(messageReceived.getSender(), 
+                        this.answerMessage(messageReceived.getSender(), 
                                                         ACLMessage.NOT_UNDERSTOOD, 
-                                                        message.toString());
+                                                        message.toString(),
+                                                        messageReceived.getConversationId(), 
+                                                        messageReceived.getReplyWith());
                     break;
                 }
             
@@ -261,13 +704,15 @@ public class SERV extends MyAgent{
                 message.add("reason", "NO TASK");
 
                 //Sending the message
-                this.sendMessage(messageReceived.getSender(), 
+                this.answerMessage(messageReceived.getSender(), 
                                                 ACLMessage.NOT_UNDERSTOOD, 
-                                                message.toString());
+                                                message.toString(),
+                                                messageReceived.getConversationId(), 
+                                                messageReceived.getReplyWith());
             }
         
         }catch(Exception ex){
-            dlogger.AddObject(logMessage("\"status\":\"Error subscribing to the agent "+messageReceived.getSender().name+"\""));
+            log.error("Error subscribing to the agent "+messageReceived.getSender().name);
             
             //Creating the message
             message = new JsonObject();
@@ -275,9 +720,11 @@ public class SERV extends MyAgent{
             message.add("reason", "EXCEPTION CAUGHT");
 
             //Sending the message
-            this.sendMessage(messageReceived.getSender(), 
+            this.answerMessage(messageReceived.getSender(), 
                                             ACLMessage.FAILURE, 
-                                            message.toString());
+                                            message.toString(),
+                                            messageReceived.getConversationId(), 
+                                            messageReceived.getReplyWith());
         }
         
         state = IDLE;
@@ -287,7 +734,7 @@ public class SERV extends MyAgent{
      * Cancels the subscribed agent if it is registered.
      */
     private void stateCancelAgent() {
-        System.out.println("IN CANCEL AGENT");
+        log.debug("IN CANCEL AGENT");
         JsonObject message = new JsonObject();
         
         try{
@@ -302,26 +749,31 @@ public class SERV extends MyAgent{
                             //Cancelling the agent's subscribe
                             String ip = sshConversations.getSubscribedAgent(index).getIp();
                             sshConversations.removeSubscribedAgent(index);
+                            liveness.forget(messageReceived.getSender().name);
 
                             //Creating the message
                             message.add("cancel", "OK");
 
                             //Sending the message
-                            this.sendMessage(messageReceived.getSender(), 
+                            this.answerMessage(messageReceived.getSender(), 
                                                         ACLMessage.AGREE, 
-                                                        message.toString());
+                                                        message.toString(),
+                                                        messageReceived.getConversationId(), 
+                                                        messageReceived.getReplyWith());
 
-                            dlogger.AddObject(logMessage("\"status\":\"Agent "+messageReceived.getSender().name+" with IP "+ip
-                                    +" successfully cancelled the subscription to this server in the SSH agents list\""));
+                            log.info("Agent "+messageReceived.getSender().name+" with IP "+ip
+                                    +" successfully cancelled the subscription to this server in the SSH agents list");
                         }
                         else{
                             //Creating the message
                             message.add("reason", "UNREGISTERED");
 
                             //Sending the message
-                            this.sendMessage(messageReceived.getSender(), 
+                            this.answerMessage(messageReceived.getSender(), 
                                                         ACLMessage.NOT_UNDERSTOOD, 
-                                                        message.toString());
+                                                        message.toString(),
+                                                        messageReceived.getConversationId(), 
+                                                        messageReceived.getReplyWith());
                         }
                     break;
                     default:
@@ -331,9 +783,11 @@ public class SERV extends MyAgent{
                         message.add("reason", "BAD TASK");
 
                         //Sending the message
-                        this.sendMessage(messageReceived.getSender(), 
+                        this.answerMessage(messageReceived.getSender(), 
                                                         ACLMessage.NOT_UNDERSTOOD, 
-                                                        message.toString());
+                                                        message.toString(),
+                                                        messageReceived.getConversationId(), 
+                                                        messageReceived.getReplyWith());
                     break;
                 }
             else{
@@ -341,13 +795,15 @@ public class SERV extends MyAgent{
                 message.add("reason", "NO TASK");
 
                 //Sending the message
-                this.sendMessage(messageReceived.getSender(), 
+                this.answerMessage(messageReceived.getSender(), 
                                             ACLMessage.NOT_UNDERSTOOD, 
-                                            message.toString());
+                                            message.toString(),
+                                            messageReceived.getConversationId(), 
+                                            messageReceived.getReplyWith());
             }
         
         }catch(Exception ex){
-            dlogger.AddObject(logMessage("\"status\":\"Error cancelling the subscription to the agent "+messageReceived.getSender().name+"\""));
+            log.error("Error cancelling the subscription to the agent "+messageReceived.getSender().name);
          
             //Creating the message
             message = new JsonObject();
@@ -355,9 +811,11 @@ public class SERV extends MyAgent{
             message.add("reason", "EXCEPTION CAUGHT");
 
             //Sending the message
-            this.sendMessage(messageReceived.getSender(), 
+            this.answerMessage(messageReceived.getSender(), 
                                             ACLMessage.FAILURE, 
-                                            message.toString());
+                                            message.toString(),
+                                            messageReceived.getConversationId(), 
+                                            messageReceived.getReplyWith());
         }
         
         state = IDLE;
@@ -367,8 +825,10 @@ public class SERV extends MyAgent{
      * If everything is correct, registers the possible attack.
      */
     private void stateAddSSHAttack() {
-        System.out.println("IN ADDSSHATTACK");
+        log.debug("IN ADDSSHATTACK");
         
+        long traceStart = Tracer.now();
+        attackTrace = Tracer.traceId(messageReceived.getConversationId(), messageReceived.getReplyWith());
         boolean ok = false;
         JsonObject message = new JsonObject();
         JsonObject contentMessageReceived = Json.parse(messageReceived.getContent()).asObject();
@@ -419,12 +879,17 @@ public class SERV extends MyAgent{
                 else{
                     
                     //Checking IP
-                    JsonArray vector = contentMessageReceived.get("SSH IP attackers").asArray();
+                    JsonArray vector = readAttackers(contentMessageReceived);
                     JsonArray dates;
                     JsonObject ipDates;
                     String ip;
                     ok = true;
                     
+                    //Checking the watermark (the agents that don't send it are always saved)
+                    long sequence = contentMessageReceived.getLong("sequence", -1);
+                    Long watermark = reportWatermarks.get(aid.name);
+                    long saved = (watermark == null) ? -1 : watermark;
+                    
                     for(int i = 0; i < vector.size() && ok; i++){ //For every IP
                         ipDates = vector.get(i).asObject();
                         ip = ipDates.get("ip").asString();
@@ -444,7 +909,15 @@ public class SERV extends MyAgent{
                                                 agent.getConversationID(), 
                                                 agent.getReplyID());
                         }
-                        else{
+                    }
+                    
+                    newAttackers = new JsonArray();
+                    for(int i = 0; i < vector.size() && ok; i++){ //For every IP
+                        ipDates = vector.get(i).asObject();
+                        
+                        //The entries already saved (resent after a lost answer) are omitted
+                        if(ipDates.getLong("seq", sequence) > saved || sequence == -1){
+                            ip = ipDates.get("ip").asString();
                             dates = ipDates.get("attack dates").asArray();
                             for (JsonValue date : dates){
                                 //Recording fact
@@ -452,15 +925,22 @@ public class SERV extends MyAgent{
                                 sshLog.addEntry(date.asString(), agent.getIp(), ip, "SSH attack");
                                 
                             }
-                            //dlogger.AddObject(logMessage("\"status\":\"The attacking IP "+ip+" from the agent "
-                            //        +messageReceived.getSender()+" has been registered successfully"));
-                            
+                            reputation.report(ip, aid.name, dates.size(), System.currentTimeMillis());
+                            newAttackers.add(ipDates);
                         }
                     }
                     
                     if (ok){
-                        dlogger.AddObject(logMessage("\"status\":\"The attacking SSH IPs from the agent "
-                                    +messageReceived.getSender().name+" have been registered successfully"));
+                        log.info("The attacking SSH IPs from the agent "
+                                    +messageReceived.getSender().name+" have been registered successfully");
+                        metrics.count("reports");
+                        metrics.count("reported IPs", newAttackers.size());
+                        tracer.span(attackTrace, "add attack", traceStart);
+                        
+                        if(sequence > saved){
+                            reportWatermarks.put(aid.name, sequence);
+                            saved = sequence;
+                        }
                         
                         //Changing reply
                         agent.setReplyID(messageReceived.getReplyWith());
@@ -469,6 +949,8 @@ public class SERV extends MyAgent{
                         message = new JsonObject();
 
                         message.add("registration", "OK");
+                        if(sequence != -1)
+                            message.add("ack", saved);
 
                         //Sending the message
                         this.answerMessage(messageReceived.getSender(), 
@@ -477,13 +959,15 @@ public class SERV extends MyAgent{
                                                         agent.getConversationID(), 
                                                         agent.getReplyID());
 
-
+                        //Nothing new to warn the other agents about
+                        if(newAttackers.isEmpty())
+                            ok = false;
                     }
                 }
 
             }
         }catch(Exception ex){
-            dlogger.AddObject(logMessage("\"status\":\"Error registering SSH IP attackers from the agent"+messageReceived.getSender().name+"\""));
+            log.error("Error registering SSH IP attackers from the agent"+messageReceived.getSender().name);
             
             //Creating the message
             message = new JsonObject();
@@ -508,39 +992,98 @@ public class SERV extends MyAgent{
      * Warns the other SSH agents about the attacker SSH IPs
      */
     private void statePreventSSHAttacks(){
-        System.out.println("IN PREVENT SSH ATTACKS");
+        log.debug("IN PREVENT SSH ATTACKS");
+        
+        long traceStart = Tracer.now();
         
         try{
             SubscribedAgent sa;
             JsonObject message = new JsonObject();
-            JsonObject contentReceived = Json.parse(messageReceived.getContent()).asObject();
+            JsonObject compactMessage = new JsonObject();
             JsonObject elementReceived;
             String ip;
-            JsonArray vectorReceived = contentReceived.get("SSH IP attackers").asArray();
+            JsonArray vectorReceived = newAttackers;
             JsonArray vectorToSend = new JsonArray();
+            JsonArray banSeconds = new JsonArray();
+            LinkedHashSet<String> ipsToSend = new LinkedHashSet<String>();     //Every IP once, in the order received
+            long now = System.currentTimeMillis();
+            long ban;
 
-            //Creating the message
+            //Creating the messages (JSON and compact), just with the IPs whose score is high enough
             for(int i = 0; i < vectorReceived.size(); i++){ //For every IP
                 elementReceived = vectorReceived.get(i).asObject();
                 ip = elementReceived.get("ip").asString();
-                vectorToSend.add(ip);
+                
+                //Our own networks are never banned in the fleet, whatever an agent reported
+                if(allowlist.contains(ip)){
+                    metrics.count("allowlisted");
+                    continue;
+                }
+                
+                ban = reputation.broadcast(ip, now);
+                if(ban >= 0 && ipsToSend.add(ip)){
+                    vectorToSend.add(ip);
+                    banSeconds.add(ban/1000);
+                }
+            }
+            
+            if(ipsToSend.isEmpty()){
+                state = IDLE;
+                return;
             }
 
             message.add("block IPs", vectorToSend);
+            message.add("ban seconds", banSeconds);
+            
+            //The SSH agents go on with the trace of the report
+            message.add("trace", attackTrace);
+            
+            String content = message.toString();
+            String compactContent = content;
+            
+            //The compact encoding is just for IPv4: with other IPs, every agent gets the JSON message
+            try{
+                compactMessage.add("encoding", AttackReportCodec.COMPACT);
+                compactMessage.add("block IPs", AttackReportCodec.encodeIps(new ArrayList<String>(ipsToSend)));
+                compactMessage.add("ban seconds", banSeconds);
+                compactMessage.add("trace", attackTrace);
+                compactContent = compactMessage.toString();
+            }
+            catch(IllegalArgumentException ex){
+                metrics.count("broadcasts in JSON (not IPv4)");
+            }
 
-            //Sending the message to the other SSH agents
+            metrics.count("broadcasts");
+            metrics.count("broadcast IPs", ipsToSend.size());
+            
+            //The messages to the other SSH agents (the ReplyIDs are taken here, the answers are checked in this thread)
+            ArrayList<BroadcastFanout.Target> targets = new ArrayList<BroadcastFanout.Target>();
             for(int i = 0; i < this.sshConversations.size(); i++){
                 sa = sshConversations.getSubscribedAgent(i);
-                if(!sa.getAgentID().name.equals(messageReceived.getSender().name)){
-                    this.sendMessage(sa.getAgentID(), 
+                if(liveness.isSuspended(sa.getAgentID().name)){
+                    metrics.count("broadcasts skipped (suspended)");
+                }
+                else if(!sa.getAgentID().name.equals(messageReceived.getSender().name)){
+                    targets.add(new BroadcastFanout.Target(sa.getAgentID(), 
                                         ACLMessage.REQUEST, 
-                                        message.toString(),
+                                        sa.getEncoding().equals(AttackReportCodec.COMPACT) ? compactContent : content,
                                         sa.getConversationID(), 
-                                        sa.generateReplyID());
+                                        sa.generateReplyID()));
                 }
             }
+            
+            //Sent in parallel, the agent goes on with the next message
+            String trace = attackTrace;
+            fanout.send(targets).thenAccept(failures -> {
+                for(BroadcastFanout.Failure failure : failures)
+                    log.warn("broadcast failed", "Error sending the IPs to block to agent "
+                                +failure.getTarget().getReceiver().name+": "+failure.getError());
+                if(!failures.isEmpty())
+                    metrics.count("broadcast failures", failures.size());
+                tracer.span(trace, "broadcast", traceStart);
+            });
         }catch(Exception e){
-            dlogger.AddObject(logMessage("\"status\":\"Error in state PREVENT SSH ATTACKS\""));
+            log.error("Error in state PREVENT SSH ATTACKS");
         }
         
         state = IDLE;
@@ -550,33 +1093,33 @@ public class SERV extends MyAgent{
      * Checks the answer message from an SSH agent about preventing SSH attacks
      */
     private void stateCheckAnswerSSH(){
-        System.out.println("IN CHECK ANSWER SSH");
+        log.debug("IN CHECK ANSWER SSH");
         
         try{
             String content = messageReceived.getContent();
             SubscribedAgent sa;
             int index = this.sshConversations.indexOfAgent(messageReceived.getSender());
             if(index == -1){
-                dlogger.AddObject(logMessage("\"status\":\"Error in state CHECK ANSWER SSH: agent "
-                        +messageReceived.getSender().name+" is not subscribed\""));
+                log.error("Error in state CHECK ANSWER SSH: agent "
+                        +messageReceived.getSender().name+" is not subscribed");
             }
             else{
                 sa = this.sshConversations.getSubscribedAgent(index);
                 if(!content.contains("block IPs")){
-                    dlogger.AddObject(logMessage("\"status\":\"Error in state CHECK ANSWER SSH: message from agent "
-                        +messageReceived.getSender().name+" has bad task\""));
+                    log.error("Error in state CHECK ANSWER SSH: message from agent "
+                        +messageReceived.getSender().name+" has bad task");
                 }
                 else{
                     String cid = messageReceived.getConversationId();
                     if(!sa.getConversationID().equals(cid)){
-                        dlogger.AddObject(logMessage("\"status\":\"Error in state CHECK ANSWER SSH: agent "
-                            +messageReceived.getSender().name+" sent bad ConversationID\""));
+                        log.error("Error in state CHECK ANSWER SSH: agent "
+                            +messageReceived.getSender().name+" sent bad ConversationID");
                     }
                     else{
                         String reply = messageReceived.getInReplyTo();
                         if(!sa.getReplyID().equals(reply)){
-                            dlogger.AddObject(logMessage("\"status\":\"Error in state CHECK ANSWER SSH: agent "
-                                +messageReceived.getSender().name+" sent bad InReplyTo\""));
+                            log.error("Error in state CHECK ANSWER SSH: agent "
+                                +messageReceived.getSender().name+" sent bad InReplyTo");
                         }
                         else{
                             //Everything is correct
@@ -586,47 +1129,130 @@ public class SERV extends MyAgent{
             }
         }
         catch(Exception e){
-            dlogger.AddObject(logMessage("\"status\":\"Error in state CHECK ANSWER SSH\""));        
+            log.error("Error in state CHECK ANSWER SSH");        
         }
         
         state = IDLE;
     }
     
     /**
-     * Manages input message queues.
+     * Extracts the attacker IPs and their dates from a report, in JSON or compact encoding
+     * @param content The content of the report
+     * @return The attackers, as [{"ip":ip, "attack dates":[date, ...], "seq":sequence}, ...]
+     */
+    private JsonArray readAttackers(JsonObject content){
+        JsonValue attackers = content.get("SSH IP attackers");
+        
+        if(attackers.isArray())
+            return attackers.asArray();
+        
+        //Compact encoding
+        JsonArray vector = new JsonArray();
+        SimpleDateFormat format = new SimpleDateFormat(AttackReportCodec.DATE_FORMAT, Locale.ENGLISH);
+        ArrayList<String> ips = new ArrayList<String>();
+        ArrayList<ArrayList<Long>> attackDates = new ArrayList<ArrayList<Long>>();
+        JsonValue sequences = content.get("sequences");
+        
+        AttackReportCodec.decodeReport(attackers.asString(), ips, attackDates);
+        
+        for(int i = 0; i < ips.size(); i++){
+            JsonObject ipDates = new JsonObject();
+            JsonArray dates = new JsonArray();
+            
+            for(long date : attackDates.get(i))
+                dates.add(format.format(new Date(date*1000)));
+            
+            ipDates.add("ip", ips.get(i));
+            ipDates.add("attack dates", dates);
+            if(sequences != null)
+                ipDates.add("seq", sequences.asArray().get(i));
+            vector.add(ipDates);
+        }
+        
+        return vector;
+    }
+    
+    /**
+     * Manages input message queues. The messages over the limits of their
+     * sender or of the whole fleet, or that don't fit in their queue, are
+     * refused at once
      * @param msg Input message
      */
+    @Override
     public void onMessage(ACLMessage msg){
+        metrics.received(msg);
+        
         String content = msg.getContent();
-        if(msg.getPerformativeInt() == ACLMessage.SUBSCRIBE &&
+        MessageQueue queue;
+        int kind;
+        
+        if(msg.getPerformativeInt() == ACLMessage.QUERY_IF &&
+                content.contains("heartbeat")){
+            queue = null;
+            kind = AdmissionControl.HEARTBEAT;
+        }
+        else if(msg.getPerformativeInt() == ACLMessage.SUBSCRIBE &&
                 content.contains("SSH authentications")){
-            try {
-                this.subsMessages.Push(msg);
-            } catch (InterruptedException ex) {
-                dlogger.AddObject(logMessage("\"status\":\"Error queueing subscribing message: queue is full\""));
-            }
+            queue = this.subsMessages;
+            kind = AdmissionControl.SUBSCRIBE;
         }
         else if(msg.getPerformativeInt() == ACLMessage.CANCEL &&
                 content.contains("SSH authentications")){
-            try {
-                this.cancelMessages.Push(msg);
-            } catch (InterruptedException ex) {
-                dlogger.AddObject(logMessage("\"status\":\"Error queueing cancelling message: queue is full\""));
-            }
+            queue = this.cancelMessages;
+            kind = AdmissionControl.SUBSCRIBE;
         }
         else if(msg.getPerformativeInt() == ACLMessage.REQUEST){
-            try {
-                this.sshAttacksMessages.Push(msg);
-            } catch (InterruptedException ex) {
-                dlogger.AddObject(logMessage("\"status\":\"Error queueing attacking message: queue is full\""));
-            }
+            queue = this.sshAttacksMessages;
+            kind = AdmissionControl.REPORT;
         }
         else{
+            queue = this.sshAnswerMessages;
+            kind = AdmissionControl.ANSWER;
+        }
+        
+        String kindName = AdmissionControl.KIND_NAMES[kind];
+        int admitted = admission.admit(msg.getSender().name, kind);
+        
+        //Any message accepted means that the agent is alive (a suspended agent gets the broadcasts again)
+        boolean subscribed = false;
+        if(admitted == AdmissionControl.ADMITTED)
+            subscribed = liveness.seen(msg.getSender().name, System.currentTimeMillis());
+        
+        if(admitted == AdmissionControl.ADMITTED && queue == null){
+            //The heartbeats are answered at once, telling the agent if it must subscribe again
+            JsonObject answer = new JsonObject();
+            answer.add("task", "heartbeat");
+            answer.add("subscribed", subscribed);
+            this.answerMessage(msg.getSender(), ACLMessage.INFORM, answer.toString(), 
+                                msg.getConversationId(), msg.getReplyWith());
+            metrics.count("heartbeats");
+            return;
+        }
+        else if(admitted == AdmissionControl.ADMITTED){
             try {
-                this.sshAnswerMessages.Push(msg);
+                queue.Push(msg);
+                return;
             } catch (InterruptedException ex) {
-                dlogger.AddObject(logMessage("\"status\":\"Error queueing answering message: queue is full\""));
+                log.error("Error queueing "+kindName+" message: queue is full");
+                metrics.count("refused "+kindName+" (queue full)");
             }
         }
+        else if(admitted == AdmissionControl.SENDER_LIMIT){
+            log.warn("refused "+kindName+" sender", "Refused "+kindName+" messages of "+msg.getSender().name+": over its limit");
+            metrics.count("refused "+kindName+" (sender limit)");
+        }
+        else{
+            log.warn("Refused "+kindName+" messages: over the limit of the fleet");
+            metrics.count("refused "+kindName+" (global limit)");
+        }
+        
+        //The answers aren't answered (the agents would take the REFUSE for a new request)
+        if(kind != AdmissionControl.ANSWER){
+            JsonObject refused = new JsonObject();
+            refused.add("refused", kindName);
+            refused.add("retry seconds", AdmissionControl.BURST_SECONDS);
+            this.answerMessage(msg.getSender(), ACLMessage.REFUSE, refused.toString(), 
+                                msg.getConversationId(), msg.getReplyWith());
+        }
     }
 }
@@ -0,0 +1,192 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package serverAgents;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import myagent.TimingWheel;
+
+/**
+ * When the subscribed agents were heard for the last time (any message that
+ * passes the admission control, heartbeats included). An agent silent for the grace time is suspended (it
+ * doesn't get the broadcasts), and if it is still silent after the eviction
+ * time, its subscription is removed. A suspended agent is admitted again as
+ * soon as one of its messages is accepted.
+ * The deadlines are kept in a TimingWheel and checked when they expire (the
+ * messages just update the last time, they don't touch the wheel). The
+ * messages can be received in any thread; the checks are done by the agent
+ * @author Aaron Rodriguez Bueno
+ */
+public class SubscriberLiveness {
+    private final ConcurrentHashMap<String, Long> lastSeen;     //The subscribed agents
+    private final Set<String> suspended;
+    private final ConcurrentLinkedQueue<String> revived;        //Suspended agents that sent something
+    private final TimingWheel<String> wheel;                    //Just used by the agent
+    private final HashMap<String, Long> nextCheck;              //The last deadline scheduled of every agent
+    private volatile long grace;
+    private volatile long evictAfter;
+
+    /**
+     * Constructor
+     * @param grace The milliseconds of silence to suspend an agent
+     * @param evictAfter The milliseconds of silence to remove the subscription of an agent
+     * @param now The current time in milliseconds
+     */
+    public SubscriberLiveness(long grace, long evictAfter, long now){
+        this.lastSeen = new ConcurrentHashMap<String, Long>();
+        this.suspended = ConcurrentHashMap.newKeySet();
+        this.revived = new ConcurrentLinkedQueue<String>();
+        this.wheel = new TimingWheel<String>(1000, 4, now);
+        this.nextCheck = new HashMap<String, Long>();
+        setTimes(grace, evictAfter);
+    }
+
+    /**
+     * Changes the times of silence (the scheduled checks keep their deadline)
+     * @param grace The milliseconds of silence to suspend an agent
+     * @param evictAfter The milliseconds of silence to remove the subscription of an agent
+     */
+    public void setTimes(long grace, long evictAfter){
+        this.grace = grace;
+        this.evictAfter = Math.max(grace, evictAfter);
+    }
+
+    /**
+     * Gets the milliseconds of silence to suspend an agent
+     * @return The milliseconds
+     */
+    public long getGrace(){
+        return grace;
+    }
+
+    /**
+     * Gets the milliseconds of silence to remove the subscription of an agent
+     * @return The milliseconds
+     */
+    public long getEvictAfter(){
+        return evictAfter;
+    }
+
+    /**
+     * Starts following a subscribed agent, as heard now
+     * @param agent The name of the agent
+     * @param now The current time in milliseconds
+     */
+    public void track(String agent, long now){
+        lastSeen.put(agent, now);
+        suspended.remove(agent);
+        schedule(agent, now + grace);
+    }
+
+    /**
+     * Stops following an agent (its subscription was cancelled)
+     * @param agent The name of the agent
+     */
+    public void forget(String agent){
+        lastSeen.remove(agent);
+        suspended.remove(agent);
+        nextCheck.remove(agent);
+    }
+
+    /**
+     * Takes note of a message of an agent. It can be called from any thread
+     * @param agent The name of the agent
+     * @param now The current time in milliseconds
+     * @return true if the agent is subscribed, false otherwise
+     */
+    public boolean seen(String agent, long now){
+        if(lastSeen.replace(agent, now) == null)
+            return false;
+
+        //Admitted again at once (the next check gets the grace time in the agent thread)
+        if(suspended.remove(agent))
+            revived.add(agent);
+
+        return true;
+    }
+
+    /**
+     * Checks if an agent is suspended
+     * @param agent The name of the agent
+     * @return true if it is suspended, false otherwise
+     */
+    public boolean isSuspended(String agent){
+        return suspended.contains(agent);
+    }
+
+    /**
+     * Gets the number of agents followed
+     * @return The number of agents
+     */
+    public int size(){
+        return lastSeen.size();
+    }
+
+    /**
+     * Gets the number of suspended agents
+     * @return The number of agents
+     */
+    public int suspendedCount(){
+        return suspended.size();
+    }
+
+    /**
+     * Checks the deadlines that expired: the agents silent for the grace time
+     * are suspended, and the ones silent for the eviction time are forgotten
+     * @param now The current time in milliseconds
+     * @param suspendedNow Where the agents suspended now are added
+     * @param evicted Where the agents whose subscription must be removed are added
+     */
+    public void check(long now, List<String> suspendedNow, List<String> evicted){
+        String agent;
+
+        while((agent = revived.poll()) != null){
+            Long seen = lastSeen.get(agent);
+            if(seen != null && !suspended.contains(agent))
+                schedule(agent, seen + grace);
+        }
+
+        for(String expired : wheel.advance(now)){
+            Long next = nextCheck.get(expired);
+            Long seen = lastSeen.get(expired);
+
+            //The timers of forgotten agents, or replaced by a later one, are ignored
+            if(next == null || seen == null || next > now)
+                continue;
+
+            if(suspended.contains(expired)){
+                if(now - seen >= evictAfter){
+                    forget(expired);
+                    evicted.add(expired);
+                }
+                else{
+                    schedule(expired, seen + evictAfter);
+                }
+            }
+            else if(now - seen >= grace){
+                suspended.add(expired);
+                suspendedNow.add(expired);
+                schedule(expired, seen + evictAfter);
+            }
+            else{
+                schedule(expired, seen + grace);
+            }
+        }
+    }
+
+    /**
+     * Schedules the next check of an agent
+     * @param agent The name of the agent
+     * @param deadline The time in milliseconds
+     */
+    private void schedule(String agent, long deadline){
+        nextCheck.put(agent, deadline);
+        wheel.schedule(agent, deadline);
+    }
+}
@@ -7,16 +7,22 @@ package SubscribedAgent;
 
 import es.upv.dsic.gti_ia.core.AgentID;
 import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Class that registers the IP, ConversationID and Reply with other agent
  * @author Aaron Rodriguez Bueno
  */
 public class SubscribedAgent {
+    //The ReplyIDs are a counter from a random start (a UUID for every message sent is too slow with many agents)
+    private static final AtomicLong nextReplyID = new AtomicLong(ThreadLocalRandom.current().nextLong());
+    
     private AgentID agent;
     private String ip;
     private String conversationID;
     private String replyID;
+    private String encoding;
     
     /**
      * Constructor
@@ -27,6 +33,7 @@ public class SubscribedAgent {
         this.conversationID = "";
         this.replyID = "";
         this.ip = "";
+        this.encoding = "json";
     }
     
     /**
@@ -41,6 +48,7 @@ public class SubscribedAgent {
         this.conversationID = cid;
         this.replyID = rid;
         this.ip = ip;
+        this.encoding = "json";
     }
     
     /**
@@ -64,11 +72,11 @@ public class SubscribedAgent {
     }
     
     /**
-     * Fills the ReplyWith with a random String
+     * Fills the ReplyWith with a new String (unique in this run of the server)
      * @return The ReplyWith
      */
     public String generateReplyID(){
-        replyID = UUID.randomUUID().toString().substring(0, 5);
+        replyID = Long.toString(nextReplyID.getAndIncrement() & Long.MAX_VALUE, 36);
         return getReplyID();
     }
 
@@ -98,6 +106,14 @@ public class SubscribedAgent {
             this.ip = ip;
     }
     
+    /**
+     * Sets the encoding of the messages with that agent
+     * @param encoding The encoding ("json" or "compact")
+     */
+    public void setEncoding(String encoding){
+        this.encoding = encoding;
+    }
+    
     /**
      * Gets the AgentID
      * @return The AgentID
@@ -131,4 +147,12 @@ public class SubscribedAgent {
     public String getIp(){
         return this.ip;
     }
+    
+    /**
+     * Gets the encoding of the messages with that agent
+     * @return The encoding ("json" or "compact")
+     */
+    public String getEncoding(){
+        return this.encoding;
+    }
 }